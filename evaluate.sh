@@ -38,6 +38,7 @@ RUNS=10
 DEFAULT_JAVA_VERSION="21.0.1-open"
 : "${BUILD_JAVA_VERSION:=21.0.1-open}"
 RUN_TIME_LIMIT=300 # seconds
+: "${BASELINE:=}" # optional JSON file of earlier times per fork, see process_output.java; slower forks fail the run
 
 TIMEOUT=""
 if [ "$(uname -s)" == "Linux" ]; then
@@ -50,6 +51,31 @@ else # MacOs
   fi
 fi
 
+# Peak RSS, CPU time, page faults and context switches of each run. On Linux, measure.sh follows all processes of the
+# run in /proc, including workers that are still running when the launcher exits. Elsewhere, GNU time reports the
+# getrusage() of the run, which does not cover such workers, so forks that start one are not measured there.
+MEASURE=""
+if [ "$(uname -s)" == "Linux" ]; then
+  MEASURE="./measure.sh"
+elif [ -x "$(command -v gtime)" ]; then
+  MEASURE="gtime" # from `brew install gnu-time`
+elif [ -x /usr/bin/time ] && /usr/bin/time --version 2>&1 | grep -q GNU; then
+  MEASURE="/usr/bin/time"
+else
+  echo -e "${BOLD_YELLOW}WARNING${RESET} GNU time not available, only wall time will be measured."
+fi
+
+# Forks whose result comes from a worker process left running by the launcher, see CalculateAverage_thomaswue
+function spawns_worker {
+  grep -F -q '"--worker"' ./src/main/java*/dev/morling/onebrc/CalculateAverage_$1.java 2> /dev/null
+}
+RESOURCES_FORMAT='{"max_rss_kb": %M, "user": %U, "system": %S, "major_page_faults": %F, "minor_page_faults": %R, "voluntary_context_switches": %w, "involuntary_context_switches": %c}'
+
+# median over the runs of an expression on the resources recorded for a fork, or "-" if there are none
+function resources_median {
+  jq -r ".results[0].resources // [] | map($2) | sort | if length == 0 then \"-\" else .[length / 2 | floor] end" $1
+}
+
 function check_command_installed {
   if ! [ -x "$(command -v $1)" ]; then
     echo "Error: $1 is not installed." >&2
@@ -132,6 +158,8 @@ if [ ! -f "${MEASUREMENTS_FILE%.txt}.out" ]; then
   echo ""
   echo "  ./calculate_average_baseline.sh > ${MEASUREMENTS_FILE%.txt}.out"
   echo ""
+  echo "The create_measurements scripts write it next to the file they generate, e.g. measurements.out."
+  echo ""
   exit 1
 fi
 
@@ -177,15 +205,24 @@ for fork in "$@"; do
   # Use hyperfine to run the benchmark for each fork
   HYPERFINE_OPTS="--warmup 0 --runs $RUNS --export-json $fork-$filetimestamp-timing.json --output ./$fork-$filetimestamp.out"
 
+  # One line of resources per run, written by measure.sh or GNU time next to the output of the fork
+  RUN="$TIMEOUT ./calculate_average_$fork.sh 2>&1"
+  rm -f $fork-$filetimestamp-resources.json
+  if [ "$MEASURE" == "./measure.sh" ]; then
+    RUN="$TIMEOUT $MEASURE $fork-$filetimestamp-resources.json ./calculate_average_$fork.sh 2>&1"
+  elif [ -n "$MEASURE" ] && ! spawns_worker $fork; then
+    RUN="$TIMEOUT $MEASURE --append --output=$fork-$filetimestamp-resources.json --format='$RESOURCES_FORMAT' ./calculate_average_$fork.sh 2>&1"
+  fi
+
   # check if this script is running on a Linux box
   if [ "$(uname -s)" == "Linux" ]; then
     check_command_installed numactl
 
     # Linux platform
     # prepend this with numactl --physcpubind=0-7 for running it only with 8 cores
-    numactl --physcpubind=0-7 hyperfine $HYPERFINE_OPTS "$TIMEOUT ./calculate_average_$fork.sh 2>&1"
+    numactl --physcpubind=0-7 hyperfine $HYPERFINE_OPTS "$RUN"
   else # MacOS
-    hyperfine $HYPERFINE_OPTS "$TIMEOUT ./calculate_average_$fork.sh 2>&1"
+    hyperfine $HYPERFINE_OPTS "$RUN"
   fi
   # Catch hyperfine command failed
   if [ $? -ne 0 ]; then
@@ -194,6 +231,20 @@ for fork in "$@"; do
     echo ""
     continue
   fi
+
+  # measure.sh appends the line of a run once its last process has exited
+  for ((tries = 0; tries < RUN_TIME_LIMIT * 10; tries++)); do
+    ls $fork-$filetimestamp-resources.json.pending.* > /dev/null 2>&1 || break
+    sleep 0.1
+  done
+
+  # Add the resources of the runs to the timing JSON; GNU time writes a line of its own for runs that failed
+  if [ -f "$fork-$filetimestamp-resources.json" ]; then
+    grep '^{' $fork-$filetimestamp-resources.json | jq -s . > $fork-$filetimestamp-resources.tmp
+    jq --slurpfile resources $fork-$filetimestamp-resources.tmp '.results[0].resources = $resources[0]' $fork-$filetimestamp-timing.json > $fork-$filetimestamp-timing.tmp
+    mv $fork-$filetimestamp-timing.tmp $fork-$filetimestamp-timing.json
+    rm $fork-$filetimestamp-resources.json $fork-$filetimestamp-resources.tmp
+  fi
 done
 set -e
 
@@ -220,6 +271,18 @@ for fork in "$@"; do
   fi
 
   echo -e "  ${color}$fork${RESET}: trimmed mean ${BOLD_WHITE}$trimmed_mean${RESET}, raw times ${BOLD_WHITE}$raw_times${RESET}"
+
+  if [ "$(resources_median $fork-$filetimestamp-timing.json .max_rss_kb)" == "-" ] && [ -n "$MEASURE" ] && spawns_worker $fork; then
+    echo "    resources not measured, the fork runs in a worker process that GNU time does not see"
+  elif [ "$(resources_median $fork-$filetimestamp-timing.json .max_rss_kb)" != "-" ]; then
+    echo -n "    median of runs: peak RSS ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .max_rss_kb) KB${RESET}"
+    echo -n ", user ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .user) s${RESET}"
+    echo -n ", system ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .system) s${RESET}"
+    echo -n ", page faults major ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .major_page_faults)${RESET}"
+    echo -n " minor ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .minor_page_faults)${RESET}"
+    echo -n ", context switches voluntary ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .voluntary_context_switches)${RESET}"
+    echo -e " involuntary ${BOLD_WHITE}$(resources_median $fork-$filetimestamp-timing.json .involuntary_context_switches)${RESET}"
+  fi
 done
 echo ""
 
@@ -277,9 +340,15 @@ for fork in "$@"; do
     notes="${notes:+$notes, }uses Unsafe"
   fi
 
+  # Peak RSS in MB and CPU time (user + system) in seconds, medians of all runs
+  peak_rss=$(resources_median $fork-$filetimestamp-timing.json '.max_rss_kb / 1024 | round')
+  cpu_time=$(resources_median $fork-$filetimestamp-timing.json '.user + .system | . * 100 | round / 100')
+
   echo -n "$trimmed_mean;" >> $leaderboard_temp_file # for sorting
   echo -n "| # " >> $leaderboard_temp_file
   echo -n "| $trimmed_mean_formatted " >> $leaderboard_temp_file
+  echo -n "| $peak_rss " >> $leaderboard_temp_file
+  echo -n "| $cpu_time " >> $leaderboard_temp_file
   echo -n "| [link](https://github.com/gunnarmorling/1brc/blob/main/src/main/java/dev/morling/onebrc/CalculateAverage_$fork.java)" >> $leaderboard_temp_file
   echo -n "| $java_version " >> $leaderboard_temp_file
   echo -n "| [$github_user__name](https://github.com/$fork) " >> $leaderboard_temp_file
@@ -292,8 +361,8 @@ sort -n $leaderboard_temp_file | cut -d ';' -f 2 > $leaderboard_temp_file.sorted
 
 # 4. Print the leaderboard
 echo ""
-echo "| # | Result (m:s.ms) | Implementation     | JDK | Submitter     | Notes     |"
-echo "|---|-----------------|--------------------|-----|---------------|-----------|"
+echo "| # | Result (m:s.ms) | Peak RSS (MB) | CPU (s) | Implementation     | JDK | Submitter     | Notes     |"
+echo "|---|-----------------|---------------|---------|--------------------|-----|---------------|-----------|"
 # If $leaderboard_temp_file.sorted has more than 3 entires, include rankings
 if [ $(wc -l < $leaderboard_temp_file.sorted) -gt 3 ]; then
   head -n 1 $leaderboard_temp_file.sorted | tr '#' 1
@@ -311,14 +380,38 @@ rm $leaderboard_temp_file
 ## END - Leaderboard
 
 # Finalize .out files
-echo "Raw results saved to file(s):"
 for fork in "$@"; do
   if [ -f "$fork-$filetimestamp-timing.json" ]; then
       cat $fork-$filetimestamp-timing.json >> $fork-$filetimestamp.out
       rm $fork-$filetimestamp-timing.json
   fi
+done
+
+# Compare with the baseline, pipefail catches the exit code of process_output.java
+regressed=()
+if [ -n "$BASELINE" ]; then
+  echo -e "${BOLD_WHITE}Baseline${RESET} $BASELINE"
+  for fork in "$@"; do
+    if [[ " ${failed[@]} " =~ " ${fork} " ]] || [ ! -f "$fork-$filetimestamp.out" ]; then
+      continue
+    fi
+    echo -e "  ${BOLD_WHITE}$fork${RESET}"
+    if ! java --enable-preview --source=21 process_output.java --baseline=$BASELINE --fork=$fork ${MEASUREMENTS_FILE%.txt}.out $fork-$filetimestamp.out | grep -E "^  (median|mean|baseline|WARNING|IMPROVEMENT)"; then
+      regressed+=("$fork")
+    fi
+  done
+  echo ""
+fi
 
+echo "Raw results saved to file(s):"
+for fork in "$@"; do
   if [ -f "$fork-$filetimestamp.out" ]; then
     echo "  $fork-$filetimestamp.out"
   fi
 done
+
+if [ ${#regressed[@]} -gt 0 ]; then
+  echo ""
+  echo -e "${BOLD_RED}REGRESSION${RESET} compared to $BASELINE: ${regressed[@]}" >&2
+  exit 1
+fi
@@ -0,0 +1,94 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+if [ $# -lt 2 ] || [ "$1" = "-h" ]; then
+  echo "Usage: measure.sh <resources file> <command> [<args>...]"
+  echo
+  echo "Runs the command and appends a JSON line with the peak RSS, CPU time, page faults and context switches of it"
+  echo "and of every process it starts to the resources file, in the format of evaluate.sh. Processes the command"
+  echo "leaves running, like the worker of entries that print from a child process, are followed until they exit."
+  echo "Returns as soon as the command does, with its exit status; the line is appended once the last process is"
+  echo "gone, and <resources file>.pending.<pid> exists until then. Linux only, it reads /proc."
+  exit 1
+fi
+
+output=$1
+shift
+
+# The command gets a session of its own, which all processes it starts share unless they ask for another one
+setsid "$@" &
+sid=$!
+# timeout signals this script only, pass it on to the whole process group of the command
+trap 'kill -TERM -- -$sid 2> /dev/null' TERM INT
+
+# Sampled every 10 ms from /proc while any process of the session is alive. Peak RSS is the largest high water mark
+# of any one process, like getrusage() reports it; the other values are the sums over all processes, as last seen
+# before each exited, so a process loses at most its last 10 ms.
+function sample {
+  local -A utime stime minflt majflt hwm voluntary involuntary
+  local ticks=$(getconf CLK_TCK)
+  local stat line alive key value pid
+  while true; do
+    alive=0
+    for stat in /proc/[0-9]*/stat; do
+      read -r line 2> /dev/null < $stat || continue
+      # The name in parentheses may contain spaces, the fields after it are: state ppid pgrp session ...
+      set -- ${line##*) }
+      [ "$4" = "$sid" ] || continue
+      [ "$1" = "Z" ] && continue
+      alive=1
+      pid=${stat#/proc/}
+      pid=${pid%/stat}
+      minflt[$pid]=$8
+      majflt[$pid]=${10}
+      utime[$pid]=${12}
+      stime[$pid]=${13}
+      while read -r key value _; do
+        case $key in
+          VmHWM:) hwm[$pid]=$value ;;
+          voluntary_ctxt_switches:) voluntary[$pid]=$value ;;
+          nonvoluntary_ctxt_switches:) involuntary[$pid]=$value ;;
+        esac
+      done 2> /dev/null < /proc/$pid/status
+    done
+    if [ $alive = 0 ] && ! kill -0 $sid 2> /dev/null; then
+      break
+    fi
+    sleep 0.01
+  done
+
+  local max_rss=0 user=0 system=0 major=0 minor=0 vol=0 invol=0
+  for pid in "${!utime[@]}"; do
+    [ "${hwm[$pid]:-0}" -gt $max_rss ] && max_rss=${hwm[$pid]}
+    user=$((user + utime[$pid]))
+    system=$((system + stime[$pid]))
+    major=$((major + majflt[$pid]))
+    minor=$((minor + minflt[$pid]))
+    vol=$((vol + ${voluntary[$pid]:-0}))
+    invol=$((invol + ${involuntary[$pid]:-0}))
+  done
+  awk -v rss=$max_rss -v usr=$user -v sys=$system -v ticks=$ticks -v major=$major -v minor=$minor -v vol=$vol -v invol=$invol 'BEGIN {
+    printf "{\"max_rss_kb\": %d, \"user\": %.2f, \"system\": %.2f, \"major_page_faults\": %d, \"minor_page_faults\": %d, \"voluntary_context_switches\": %d, \"involuntary_context_switches\": %d}\n", rss, usr / ticks, sys / ticks, major, minor, vol, invol
+  }' >> $output
+}
+
+pending=$output.pending.$$
+touch $pending
+# timeout signals its whole process group, the sampler goes on until the command is gone
+(trap '' TERM INT; sample; rm -f $pending) < /dev/null > /dev/null 2>&1 &
+
+wait $sid
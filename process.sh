@@ -17,8 +17,10 @@
 
 if [ -z "$1" ]
   then
-    echo "Usage: process_output.sh <fork name>"
+    echo "Usage: process_output.sh <fork name> [--baseline=<file>] [--update-baseline] [--threshold=<percent>]"
     exit 1
 fi
 
-java --enable-preview --source=21 process_output.java out_expected.txt $1.out
+fork=$1
+shift
+java --enable-preview --source=21 process_output.java "$@" out_expected.txt $fork.out
@@ -15,75 +15,272 @@
  */
 
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.time.Duration;
 
+/**
+ * Checks the results in the output of a benchmark run and summarizes its timings:
+ *
+ * <pre>
+ * process_output.java [--baseline=&lt;file&gt;] [--update-baseline] [--threshold=&lt;percent&gt;] [--max-cv=&lt;percent&gt;]
+ *                     [--fork=&lt;name&gt;] &lt;expected output&gt; &lt;fork output&gt;
+ * </pre>
+ *
+ * The fork output is either what evaluate.sh keeps of a fork, the program output of all runs followed by the
+ * hyperfine JSON, or the output of running the fork under {@code time}. Besides the trimmed mean of the leaderboard,
+ * it reports the median with its bootstrap confidence interval, p10/p90, standard deviation and coefficient of
+ * variation, and warns about runs noisier than {@code --max-cv} (default 5%).
+ * <p>
+ * With {@code --baseline}, the times are compared with those stored for the fork in that JSON file, an object of
+ * fork names to arrays of times in seconds. If the bootstrap confidence interval of the change in the median lies
+ * entirely above {@code --threshold} (default 1%), that is a regression and the exit code is 1.
+ * {@code --update-baseline} stores the times of this run as the new baseline of the fork.
+ */
 public class process_output {
 
+    private static final Pattern HYPERFINE_TIMES = Pattern.compile("\"times\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Pattern REAL_TIME = Pattern.compile("^real\\s+(?:(\\d+)m)?([\\d.,]+)s");
+    private static final Pattern BASELINE_ENTRY = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Pattern TIMESTAMP_SUFFIX = Pattern.compile("-\\d{14}$");
+
+    // Fixed, so that the same times always give the same report
+    private static final long BOOTSTRAP_SEED = 1_000_000_000L;
+    private static final int BOOTSTRAP_RESAMPLES = 10_000;
+    private static final double CONFIDENCE = 0.95;
+
+    record Stats(int runs, double median, double medianLow, double medianHigh, double mean, double trimmedMean,
+                 double stddev, double p10, double p90) {
+
+        double cv() {
+            return stddev / mean;
+        }
+    }
+
     public static void main(String... args) throws Exception {
-        String expectedFile = args[0];
-        String actualFile = args[1];
+        Map<String, String> options = new TreeMap<>();
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] option = arg.substring(2).split("=", 2);
+                options.put(option[0], option.length > 1 ? option[1] : "true");
+            }
+            else {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 2) {
+            System.err.println("Usage: process_output.java [--baseline=<file>] [--update-baseline] [--threshold=<percent>] "
+                    + "[--max-cv=<percent>] [--fork=<name>] <expected output> <fork output>");
+            System.exit(1);
+        }
 
-        String expected = new String(Files.readAllBytes(Paths.get(expectedFile)));
-        List<String> times = new ArrayList<>();
+        String expectedFile = files.get(0);
+        String actualFile = files.get(1);
+        String fork = options.getOrDefault("fork",
+                TIMESTAMP_SUFFIX.matcher(Paths.get(actualFile).getFileName().toString().replace(".out", "")).replaceFirst(""));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", "1")) / 100;
+        double maxCv = Double.parseDouble(options.getOrDefault("max-cv", "5")) / 100;
 
-        var outputLines = Files.lines(Paths.get(actualFile))
-                .collect(Collectors.toList());
+        String expected = Files.readString(Paths.get(expectedFile)).strip();
+        String output = Files.readString(Paths.get(actualFile));
+        double[] times = times(output);
 
+        // Every run prints one result, the hyperfine JSON after them is no result
         int matched = 0;
-
-        for (String line : outputLines) {
-            if (line.contains("Hamburg")) {
+        int unexpected = 0;
+        for (String line : output.lines().toList()) {
+            if (line.startsWith("{") && !line.equals("{") && !line.startsWith("{\"")) {
                 if (!line.equals(expected)) {
                     System.err.println("FAILURE Unexpected output");
                     System.err.println(line);
+                    unexpected++;
                 }
                 else {
                     matched++;
                 }
             }
-            else if (line.startsWith("real")) {
-                times.add(line);
-            }
         }
 
-        if (matched == 5) {
+        if (unexpected == 0 && matched == times.length && matched > 0) {
             System.out.println("OK Output matched");
         }
         else {
-            System.err.println("FAILURE Output didn't match");
+            System.err.println("FAILURE Output didn't match, " + matched + " of " + times.length + " runs matched, " + unexpected + " unexpected");
+        }
+
+        if (times.length == 0) {
+            System.err.println("FAILURE No times in " + actualFile);
+            System.exit(1);
         }
 
         System.out.println();
         System.out.println(actualFile);
+        System.out.println(Arrays.stream(times).mapToObj(process_output::format).collect(Collectors.joining(System.lineSeparator())));
 
-        System.out.println(times.stream()
-            .map(t -> t.substring(5))
-            .map(t -> t.replace("s", "").replace("m", ":"))
-            .collect(Collectors.joining(System.lineSeparator())));
+        Stats stats = stats(times);
+        System.out.println();
+        System.out.println(String.format("%s: %d runs", fork, stats.runs()));
+        System.out.println(String.format("  median %.3f s (%.0f%% CI %.3f - %.3f s), p10 %.3f s, p90 %.3f s",
+                stats.median(), CONFIDENCE * 100, stats.medianLow(), stats.medianHigh(), stats.p10(), stats.p90()));
+        System.out.println(String.format("  mean %.3f s, trimmed mean %.3f s, stddev %.3f s, CV %.1f%%",
+                stats.mean(), stats.trimmedMean(), stats.stddev(), stats.cv() * 100));
+        if (stats.cv() > maxCv) {
+            System.out.println(String.format("  WARNING Noisy: CV %.1f%% is above %.1f%%, the machine may not have been idle",
+                    stats.cv() * 100, maxCv * 100));
+        }
+        if (stats.runs() < 5) {
+            System.out.println("  WARNING Too few runs for reliable statistics");
+        }
 
-        var asDurations = times.stream()
-            .map(t -> t.substring(5))
-            .map(t -> t.replace("s", "S").replace("m", "M"))
-            .map(t -> "PT" + t)
-            .map(Duration::parse)
-            .collect(Collectors.toList());
+        boolean regression = false;
+        if (options.containsKey("baseline")) {
+            Path baselineFile = Paths.get(options.get("baseline"));
+            Map<String, double[]> baseline = Files.exists(baselineFile) ? readBaseline(baselineFile) : new TreeMap<>();
+            double[] previous = baseline.get(fork);
+            if (previous == null || previous.length == 0) {
+                System.out.println("  No baseline for " + fork + " in " + baselineFile);
+            }
+            else {
+                double[] change = medianChange(previous, times);
+                System.out.println(String.format("  baseline median %.3f s, change %+.1f%% (%.0f%% CI %+.1f%% - %+.1f%%)",
+                        median(previous), change[0] * 100, CONFIDENCE * 100, change[1] * 100, change[2] * 100));
+                if (change[1] > threshold) {
+                    regression = true;
+                    System.err.println(String.format("REGRESSION %s is slower than its baseline by more than %.1f%%", fork, threshold * 100));
+                }
+                else if (change[2] < -threshold) {
+                    System.out.println(String.format("  IMPROVEMENT %s is faster than its baseline by more than %.1f%%", fork, threshold * 100));
+                }
+            }
+            if (options.containsKey("update-baseline")) {
+                baseline.put(fork, times);
+                writeBaseline(baselineFile, baseline);
+                System.out.println("  Updated baseline of " + fork + " in " + baselineFile);
+            }
+        }
 
-        var min = asDurations.stream().min(Comparator.naturalOrder()).get();
-        var max = asDurations.stream().max(Comparator.naturalOrder()).get();
+        var author = fork;
+        System.out.println(String.format("\n|   |        %s| [link](https://github.com/gunnarmorling/1brc/blob/main/src/main/java/dev/morling/onebrc/CalculateAverage_%s.java)| 21.0.1-open | [%s](https://github.com/%s)|", format(stats.trimmedMean()), author, author, author));
 
-        var evaluated = asDurations.stream()
-            .filter(d -> d != min && d != max)
-            .collect(Collectors.toList());
+        if (regression) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The times in seconds, from the hyperfine JSON if there is one, otherwise from the {@code real} lines of {@code time}.
+     */
+    private static double[] times(String output) {
+        Matcher hyperfine = HYPERFINE_TIMES.matcher(output);
+        if (hyperfine.find()) {
+            return parseTimes(hyperfine.group(1));
+        }
+        return output.lines()
+                .map(REAL_TIME::matcher)
+                .filter(Matcher::find)
+                .mapToDouble(m -> (m.group(1) != null ? Integer.parseInt(m.group(1)) * 60 : 0) + Double.parseDouble(m.group(2).replace(',', '.')))
+                .toArray();
+    }
+
+    private static double[] parseTimes(String list) {
+        return Arrays.stream(list.split(","))
+                .map(String::strip)
+                .filter(t -> !t.isEmpty())
+                .mapToDouble(Double::parseDouble)
+                .toArray();
+    }
+
+    static Stats stats(double[] times) {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+
+        double mean = Arrays.stream(sorted).average().orElseThrow();
+        double variance = n > 1 ? Arrays.stream(sorted).map(t -> (t - mean) * (t - mean)).sum() / (n - 1) : 0;
+        // The leaderboard: the slowest and the fastest run are discarded
+        double trimmedMean = n > 2 ? Arrays.stream(sorted, 1, n - 1).average().orElseThrow() : mean;
+
+        Random random = new Random(BOOTSTRAP_SEED);
+        double[] medians = new double[BOOTSTRAP_RESAMPLES];
+        for (int i = 0; i < BOOTSTRAP_RESAMPLES; i++) {
+            medians[i] = median(resample(sorted, random));
+        }
+        Arrays.sort(medians);
+
+        return new Stats(n, percentile(sorted, 0.5),
+                percentile(medians, (1 - CONFIDENCE) / 2), percentile(medians, (1 + CONFIDENCE) / 2),
+                mean, trimmedMean, Math.sqrt(variance), percentile(sorted, 0.1), percentile(sorted, 0.9));
+    }
+
+    /**
+     * The relative change of the median from the baseline to the current times, and the bounds of its bootstrap
+     * confidence interval.
+     */
+    static double[] medianChange(double[] baseline, double[] current) {
+        Random random = new Random(BOOTSTRAP_SEED);
+        double[] changes = new double[BOOTSTRAP_RESAMPLES];
+        for (int i = 0; i < BOOTSTRAP_RESAMPLES; i++) {
+            changes[i] = median(resample(current, random)) / median(resample(baseline, random)) - 1;
+        }
+        Arrays.sort(changes);
+        return new double[]{ median(current) / median(baseline) - 1,
+                percentile(changes, (1 - CONFIDENCE) / 2), percentile(changes, (1 + CONFIDENCE) / 2) };
+    }
+
+    private static double[] resample(double[] values, Random random) {
+        double[] sample = new double[values.length];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = values[random.nextInt(values.length)];
+        }
+        return sample;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return percentile(sorted, 0.5);
+    }
 
-        var mean = evaluated.get(0).plus(evaluated.get(1)).plus(evaluated.get(2)).dividedBy(3);
-        var result = String.format("%02d:%02d.%.0f", mean.toMinutesPart(), mean.toSecondsPart(), (double) mean.toNanosPart() / 1_000_000);
-        var author = actualFile.replace(".out", "");
+    /**
+     * Linear interpolation between the closest ranks of the sorted values.
+     */
+    private static double percentile(double[] sorted, double p) {
+        double rank = p * (sorted.length - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (rank - lower) * (sorted[upper] - sorted[lower]);
+    }
+
+    private static Map<String, double[]> readBaseline(Path file) throws Exception {
+        Map<String, double[]> baseline = new TreeMap<>();
+        Matcher entry = BASELINE_ENTRY.matcher(Files.readString(file));
+        while (entry.find()) {
+            baseline.put(entry.group(1), parseTimes(entry.group(2)));
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(Path file, Map<String, double[]> baseline) throws Exception {
+        String json = baseline.entrySet().stream()
+                .map(e -> "  \"" + e.getKey() + "\": [" + Arrays.stream(e.getValue()).mapToObj(Double::toString).collect(Collectors.joining(", ")) + "]")
+                .collect(Collectors.joining(",\n", "{\n", "\n}\n"));
+        Files.writeString(file, json);
+    }
 
-        System.out.println(String.format("\n|   |        %s| [link](https://github.com/gunnarmorling/1brc/blob/main/src/main/java/dev/morling/onebrc/CalculateAverage_%s.java)| 21.0.1-open | [%s](https://github.com/%s)|", result, author, author, author));
+    /**
+     * Seconds as m:s.ms, like the leaderboard.
+     */
+    private static String format(double seconds) {
+        long millis = Math.round(seconds * 1000);
+        return String.format("%02d:%02d.%03d", millis / 60_000, millis / 1000 % 60, millis % 1000);
     }
 }
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the ';' after the station name, the time is per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@OperationsPerInvocation(Rows.ROWS)
+public class DelimiterSearchBenchmark {
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // As in CalculateAverage_merykitty
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.length() >= 32
+            ? ByteVector.SPECIES_256
+            : ByteVector.SPECIES_128;
+
+    @Benchmark
+    public long scalar(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long pos : rows.rowStarts) {
+            while (data.get(ValueLayout.JAVA_BYTE, pos) != ';') {
+                pos++;
+            }
+            sum += pos;
+        }
+        return sum;
+    }
+
+    /**
+     * A word at a time, the {@code findDelimiter()} of CalculateAverage_thomaswue.
+     */
+    @Benchmark
+    public long swar(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long pos : rows.rowStarts) {
+            while (true) {
+                long mask = findDelimiter(data.get(LONG_LE, pos));
+                if (mask != 0) {
+                    sum += pos + (Long.numberOfTrailingZeros(mask) >>> 3);
+                    break;
+                }
+                pos += Long.BYTES;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * A vector at a time, the {@code iterate()} of CalculateAverage_merykitty.
+     */
+    @Benchmark
+    public long vector(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long pos : rows.rowStarts) {
+            while (true) {
+                long semicolons = ByteVector.fromMemorySegment(BYTE_SPECIES, data, pos, ByteOrder.LITTLE_ENDIAN)
+                        .compare(VectorOperators.EQ, ';')
+                        .toLong();
+                if (semicolons != 0) {
+                    sum += pos + Long.numberOfTrailingZeros(semicolons);
+                    break;
+                }
+                pos += BYTE_SPECIES.length();
+            }
+        }
+        return sum;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing the name of a row, finding its entry and updating the aggregates, the time is per row. The maps live for a
+ * whole iteration, so after the first invocation every row hits an existing key, as it does for most of a real run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@OperationsPerInvocation(Rows.ROWS)
+@State(Scope.Thread)
+public class HashProbeBenchmark {
+
+    private ShipilevMap shipilevMap;
+    private SerkanOzalMap serkanOzalMap;
+
+    @Setup(Level.Iteration)
+    public void newMaps() {
+        shipilevMap = new ShipilevMap();
+        serkanOzalMap = new SerkanOzalMap();
+    }
+
+    @Benchmark
+    public ShipilevMap shipilev(Rows rows) {
+        MemorySegment data = rows.data;
+        long[] rowStarts = rows.rowStarts;
+        int[] temperatures = rows.temperatures;
+        for (int i = 0; i < Rows.ROWS; i++) {
+            shipilevMap.update(data, rowStarts[i], rows.nameLength, temperatures[i]);
+        }
+        return shipilevMap;
+    }
+
+    @Benchmark
+    public SerkanOzalMap serkanOzal(Rows rows) {
+        MemorySegment data = rows.data;
+        long[] rowStarts = rows.rowStarts;
+        int[] temperatures = rows.temperatures;
+        for (int i = 0; i < Rows.ROWS; i++) {
+            serkanOzalMap.put(data, rowStarts[i], rows.nameLength, temperatures[i]);
+        }
+        return serkanOzalMap;
+    }
+}
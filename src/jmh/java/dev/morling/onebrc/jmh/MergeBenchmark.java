@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging the maps of all worker threads into the sorted result, the time is per merge. Every worker has seen all
+ * rows, so each map holds every key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class MergeBenchmark {
+
+    @Param({ "8" })
+    public int workers;
+
+    private ShipilevMap[] shipilevMaps;
+    private SerkanOzalMap[] serkanOzalMaps;
+
+    // Merging changes the maps, so every invocation needs new ones
+    @Setup(Level.Invocation)
+    public void fillMaps(Rows rows) {
+        shipilevMaps = new ShipilevMap[workers];
+        serkanOzalMaps = new SerkanOzalMap[workers];
+        for (int w = 0; w < workers; w++) {
+            shipilevMaps[w] = new ShipilevMap();
+            serkanOzalMaps[w] = new SerkanOzalMap();
+            for (int i = 0; i < Rows.ROWS; i++) {
+                shipilevMaps[w].update(rows.data, rows.rowStarts[i], rows.nameLength, rows.temperatures[i]);
+                serkanOzalMaps[w].put(rows.data, rows.rowStarts[i], rows.nameLength, rows.temperatures[i]);
+            }
+        }
+    }
+
+    /**
+     * Into the map of the first worker, then sorting its rows.
+     */
+    @Benchmark
+    public ShipilevMap.Row[] shipilev() {
+        for (int w = 1; w < workers; w++) {
+            shipilevMaps[0].merge(shipilevMaps[w]);
+        }
+        return shipilevMaps[0].rows();
+    }
+
+    /**
+     * Into a {@code TreeMap} keyed by the name.
+     */
+    @Benchmark
+    public Map<String, SerkanOzalMap.KeyResult> serkanOzal() {
+        Map<String, SerkanOzalMap.KeyResult> result = new TreeMap<>();
+        for (SerkanOzalMap map : serkanOzalMaps) {
+            map.merge(result);
+        }
+        return result;
+    }
+}
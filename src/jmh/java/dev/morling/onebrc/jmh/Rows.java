@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A block of measurement rows in off-heap memory, like a slice of the mapped file the entries work on, plus where
+ * each row, name and temperature starts, so that a benchmark can look at one kernel without the others.
+ */
+@State(Scope.Benchmark)
+public class Rows {
+
+    /**
+     * Rows per benchmark invocation, use with {@code @OperationsPerInvocation} to get the time per row.
+     */
+    public static final int ROWS = 1 << 16;
+
+    // Room for the word and vector reads past the last row
+    private static final int PADDING = 128;
+
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+
+    // The rules allow up to 10,000 stations, some entries size their tables for exactly that
+    @Param({ "100", "1000", "10000" })
+    public int keys;
+
+    @Param({ "4", "8", "16", "32", "100" })
+    public int nameLength;
+
+    public MemorySegment data;
+    // offset of each row, which is also the start of its name
+    public long[] rowStarts;
+    // offset of the temperature of each row, right after the ';'
+    public long[] temperatureStarts;
+    public int[] temperatures;
+    public int[] stations;
+    public byte[][] names;
+
+    @Setup
+    public void setup() {
+        SplittableRandom rnd = new SplittableRandom(42);
+        names = new byte[keys][];
+        HashSet<String> unique = new HashSet<>();
+        for (int i = 0; i < keys; i++) {
+            byte[] name;
+            do {
+                name = new byte[nameLength];
+                for (int j = 0; j < nameLength; j++) {
+                    name[j] = ALPHABET[rnd.nextInt(ALPHABET.length)];
+                }
+            } while (!unique.add(new String(name, StandardCharsets.US_ASCII)));
+            names[i] = name;
+        }
+        int[] means = rnd.ints(keys, -300, 400).toArray();
+
+        rowStarts = new long[ROWS];
+        temperatureStarts = new long[ROWS];
+        temperatures = new int[ROWS];
+        stations = new int[ROWS];
+        data = Arena.ofAuto().allocate((long) ROWS * (nameLength + 7) + PADDING, 64);
+        long pos = 0;
+        for (int i = 0; i < ROWS; i++) {
+            int station = rnd.nextInt(keys);
+            int temperature = (int) Math.max(-999, Math.min(999, Math.round(rnd.nextGaussian(means[station], 100.0))));
+            stations[i] = station;
+            temperatures[i] = temperature;
+            rowStarts[i] = pos;
+            MemorySegment.copy(names[station], 0, data, ValueLayout.JAVA_BYTE, pos, nameLength);
+            pos += nameLength;
+            data.set(ValueLayout.JAVA_BYTE, pos++, (byte) ';');
+            temperatureStarts[i] = pos;
+            byte[] value = String.format(Locale.ROOT, "%.1f\n", temperature / 10.0).getBytes(StandardCharsets.US_ASCII);
+            MemorySegment.copy(value, 0, data, ValueLayout.JAVA_BYTE, pos, value.length);
+            pos += value.length;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@code OpenMap} of CalculateAverage_serkan_ozal: 128 byte entries with the key inline in one array, the first
+ * bytes of a key compared as a vector. The Unsafe accesses are done through {@link MemorySegment}s here.
+ */
+final class SerkanOzalMap {
+
+    static final int MAP_CAPACITY = 1 << 17;
+
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.length() >= 16
+            ? ByteVector.SPECIES_128
+            : ByteVector.SPECIES_64;
+    private static final int BYTE_SPECIES_SIZE = BYTE_SPECIES.vectorByteSize();
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final int ENTRY_SIZE = 128;
+    private static final int ENTRY_SIZE_SHIFT = 7;
+
+    private static final int COUNT_OFFSET = 0;
+    private static final int MIN_VALUE_OFFSET = 4;
+    private static final int MAX_VALUE_OFFSET = 6;
+    private static final int VALUE_SUM_OFFSET = 8;
+    private static final int KEY_SIZE_OFFSET = 16;
+    private static final int KEY_OFFSET = 24;
+
+    private static final int ENTRY_HASH_MASK = MAP_CAPACITY - 1;
+    private static final int MAP_SIZE = ENTRY_SIZE * MAP_CAPACITY;
+    private static final int ENTRY_MASK = MAP_SIZE - 1;
+
+    private static final int HASH_SEED = 0x9E3779B9;
+    private static final int HASH_ROTATE = 5;
+
+    private final byte[] data = new byte[MAP_SIZE];
+    private final MemorySegment entries = MemorySegment.ofArray(data);
+    // Max number of unique keys are 10K
+    private final int[] entryOffsets = new int[1 << 14];
+    private int entryOffsetIdx;
+
+    void put(MemorySegment input, long keyStart, int keyLength, int value) {
+        int entryIdx = calculateEntryIndex(input, keyStart, keyLength);
+        ByteVector keyVector = ByteVector.fromMemorySegment(BYTE_SPECIES, input, keyStart, ByteOrder.LITTLE_ENDIAN);
+        int entryOffset = putKey(keyVector, input, keyStart, keyLength, entryIdx);
+        putValue(entryOffset, value);
+    }
+
+    private static int calculateEntryIndex(MemorySegment input, long address, int keyLength) {
+        int x, y;
+        if (keyLength >= Integer.BYTES) {
+            x = input.get(INT, address);
+            y = input.get(INT, address + keyLength - Integer.BYTES);
+        }
+        else {
+            x = input.get(ValueLayout.JAVA_BYTE, address);
+            y = input.get(ValueLayout.JAVA_BYTE, address + keyLength - Byte.BYTES);
+        }
+        int keyHash = (Integer.rotateLeft(x * HASH_SEED, HASH_ROTATE) ^ y) * HASH_SEED;
+        return (keyHash & ENTRY_HASH_MASK) << ENTRY_SIZE_SHIFT;
+    }
+
+    private int putKey(ByteVector keyVector, MemorySegment input, long keyStart, int keyLength, int entryIdx) {
+        for (int entryOffset = entryIdx;; entryOffset = (entryOffset + ENTRY_SIZE) & ENTRY_MASK) {
+            int keySize = entries.get(INT, entryOffset + KEY_SIZE_OFFSET);
+            if (keySize == 0) {
+                entries.set(SHORT, entryOffset + MIN_VALUE_OFFSET, Short.MAX_VALUE);
+                entries.set(SHORT, entryOffset + MAX_VALUE_OFFSET, Short.MIN_VALUE);
+                entries.set(INT, entryOffset + KEY_SIZE_OFFSET, keyLength);
+                MemorySegment.copy(input, keyStart, entries, entryOffset + KEY_OFFSET, keyLength);
+                entryOffsets[entryOffsetIdx++] = entryOffset;
+                return entryOffset;
+            }
+            if (keySize == keyLength && keysEqual(keyVector, input, keyStart, keyLength, entryOffset + KEY_OFFSET)) {
+                return entryOffset;
+            }
+        }
+    }
+
+    private boolean keysEqual(ByteVector keyVector, MemorySegment input, long keyStart, int keyLength, int keyOffset) {
+        ByteVector entryKeyVector = ByteVector.fromArray(BYTE_SPECIES, data, keyOffset);
+        int eqCount = keyVector.compare(VectorOperators.EQ, entryKeyVector).trueCount();
+        if (eqCount == keyLength) {
+            return true;
+        }
+        else if (keyLength <= BYTE_SPECIES_SIZE) {
+            return false;
+        }
+
+        int alignedKeyLength = keyLength & 0xFFFFFFF8;
+        int i;
+        for (i = BYTE_SPECIES_SIZE; i < alignedKeyLength; i += Long.BYTES) {
+            if (input.get(LONG, keyStart + i) != entries.get(LONG, keyOffset + i)) {
+                return false;
+            }
+        }
+
+        long wordA = input.get(LONG, keyStart + i);
+        long wordB = entries.get(LONG, keyOffset + i);
+        int halfShift = (Long.BYTES - (keyLength & 0x00000007)) << 2;
+        long mask = (0xFFFFFFFFFFFFFFFFL >>> halfShift) >> halfShift;
+        wordA = wordA & mask;
+        // No need to mask "wordB" (word from key in the map), because it is already padded with 0s
+        return wordA == wordB;
+    }
+
+    private void putValue(int entryOffset, int value) {
+        int countOffset = entryOffset + COUNT_OFFSET;
+        int minValueOffset = entryOffset + MIN_VALUE_OFFSET;
+        int maxValueOffset = entryOffset + MAX_VALUE_OFFSET;
+        int sumOffset = entryOffset + VALUE_SUM_OFFSET;
+
+        entries.set(INT, countOffset, entries.get(INT, countOffset) + 1);
+        if (value < entries.get(SHORT, minValueOffset)) {
+            entries.set(SHORT, minValueOffset, (short) value);
+        }
+        if (value > entries.get(SHORT, maxValueOffset)) {
+            entries.set(SHORT, maxValueOffset, (short) value);
+        }
+        entries.set(LONG, sumOffset, entries.get(LONG, sumOffset) + value);
+    }
+
+    /**
+     * Merges this map into the global result, which the entry keeps in a {@code TreeMap}.
+     */
+    void merge(Map<String, KeyResult> resultMap) {
+        Arrays.sort(entryOffsets, 0, entryOffsetIdx);
+        for (int i = 0; i < entryOffsetIdx; i++) {
+            int entryOffset = entryOffsets[i];
+            int keyLength = entries.get(INT, entryOffset + KEY_SIZE_OFFSET);
+            if (keyLength == 0) {
+                continue;
+            }
+            String key = new String(data, entryOffset + KEY_OFFSET, keyLength, StandardCharsets.UTF_8);
+            int count = entries.get(INT, entryOffset + COUNT_OFFSET);
+            short minValue = entries.get(SHORT, entryOffset + MIN_VALUE_OFFSET);
+            short maxValue = entries.get(SHORT, entryOffset + MAX_VALUE_OFFSET);
+            long sum = entries.get(LONG, entryOffset + VALUE_SUM_OFFSET);
+            KeyResult result = new KeyResult(count, minValue, maxValue, sum);
+            KeyResult existingResult = resultMap.get(key);
+            if (existingResult == null) {
+                resultMap.put(key, result);
+            }
+            else {
+                existingResult.merge(result);
+            }
+        }
+    }
+
+    static final class KeyResult {
+        private int count;
+        private int minValue;
+        private int maxValue;
+        private long sum;
+
+        KeyResult(int count, int minValue, int maxValue, long sum) {
+            this.count = count;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            this.sum = sum;
+        }
+
+        void merge(KeyResult result) {
+            count += result.count;
+            minValue = Math.min(minValue, result.minValue);
+            maxValue = Math.max(maxValue, result.maxValue);
+            sum += result.sum;
+        }
+    }
+}
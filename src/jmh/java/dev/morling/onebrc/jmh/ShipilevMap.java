@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The {@code MeasurementsMap} of CalculateAverage_shipilev: linear probing over lazily allocated buckets that keep
+ * the first 8 bytes of the name as two ints. Reads from a {@link MemorySegment} instead of a {@code ByteBuffer}.
+ */
+final class ShipilevMap {
+
+    static final int MAP_SIZE = 1 << 15;
+
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Bucket[] buckets = new Bucket[MAP_SIZE];
+
+    /**
+     * The hash the entry computes while scanning for the ';'.
+     */
+    static int hash(MemorySegment data, long begin, int length) {
+        int nameHash = 0;
+        for (int i = 0; i < length; i++) {
+            nameHash ^= (data.get(ValueLayout.JAVA_BYTE, begin + i) & 0xFF) * 82805;
+        }
+        return nameHash;
+    }
+
+    void update(MemorySegment data, long begin, int length, int temp) {
+        int hash = hash(data, begin, length);
+        Bucket bucket = buckets[hash & (MAP_SIZE - 1)];
+        if ((bucket != null) && (hash == bucket.hash) && bucket.matches(data, begin, length)) {
+            bucket.merge(temp);
+        }
+        else {
+            updateSlow(data, begin, length, hash, temp);
+        }
+    }
+
+    private void updateSlow(MemorySegment data, long begin, int length, int hash, int temp) {
+        int idx = hash & (MAP_SIZE - 1);
+        while (true) {
+            Bucket cur = buckets[idx];
+            if (cur == null) {
+                buckets[idx] = new Bucket(data, begin, length, hash, temp);
+                return;
+            }
+            else if ((cur.hash == hash) && cur.matches(data, begin, length)) {
+                cur.merge(temp);
+                return;
+            }
+            else {
+                idx = (idx + 1) & (MAP_SIZE - 1);
+            }
+        }
+    }
+
+    void merge(ShipilevMap otherMap) {
+        for (Bucket other : otherMap.buckets) {
+            if (other == null)
+                continue;
+            int idx = other.hash & (MAP_SIZE - 1);
+            while (true) {
+                Bucket cur = buckets[idx];
+                if (cur == null) {
+                    buckets[idx] = other;
+                    break;
+                }
+                else if ((cur.hash == other.hash) && cur.matches(other)) {
+                    cur.merge(other);
+                    break;
+                }
+                else {
+                    idx = (idx + 1) & (MAP_SIZE - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * The rows of the result, sorted by name.
+     */
+    Row[] rows() {
+        Row[] rows = new Row[MAP_SIZE];
+        int count = 0;
+        for (Bucket bucket : buckets) {
+            if (bucket != null) {
+                rows[count++] = bucket.toRow();
+            }
+        }
+        Arrays.sort(rows, 0, count, Comparator.comparing(Row::name));
+        return Arrays.copyOf(rows, count);
+    }
+
+    record Row(String name, double min, double mean, double max) {
+    }
+
+    private static final class Bucket {
+        final byte[] nameTail;
+        final int len;
+        final int hash;
+        final int prefix1, prefix2;
+
+        long sum;
+        int count;
+        int min;
+        int max;
+
+        Bucket(MemorySegment data, long begin, int len, int hash, int temp) {
+            this.len = len;
+            int tailStart = 0;
+            if (len >= 8) {
+                prefix1 = data.get(INT_LE, begin);
+                prefix2 = data.get(INT_LE, begin + 4);
+                tailStart += 8;
+            }
+            else if (len >= 4) {
+                prefix1 = data.get(INT_LE, begin);
+                prefix2 = 0;
+                tailStart += 4;
+            }
+            else {
+                prefix1 = 0;
+                prefix2 = 0;
+            }
+            nameTail = data.asSlice(begin + tailStart, len - tailStart).toArray(ValueLayout.JAVA_BYTE);
+
+            this.hash = hash;
+            this.sum = temp;
+            this.count = 1;
+            this.min = temp;
+            this.max = temp;
+        }
+
+        boolean matches(MemorySegment cand, long begin, int candLen) {
+            if (len != candLen) {
+                return false;
+            }
+            int tailStart = 0;
+            if (len >= 8) {
+                if (prefix1 != cand.get(INT_LE, begin)) {
+                    return false;
+                }
+                if (prefix2 != cand.get(INT_LE, begin + 4)) {
+                    return false;
+                }
+                tailStart += 8;
+            }
+            else if (len >= 4) {
+                if (prefix1 != cand.get(INT_LE, begin)) {
+                    return false;
+                }
+                tailStart += 4;
+            }
+            for (int i = 0; i < len - tailStart; i++) {
+                if (nameTail[i] != cand.get(ValueLayout.JAVA_BYTE, begin + tailStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(Bucket other) {
+            return len == other.len &&
+                    prefix1 == other.prefix1 &&
+                    prefix2 == other.prefix2 &&
+                    Arrays.equals(nameTail, other.nameTail);
+        }
+
+        void merge(int value) {
+            sum += value;
+            count++;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        void merge(Bucket s) {
+            sum += s.sum;
+            count += s.count;
+            min = Math.min(min, s.min);
+            max = Math.max(max, s.max);
+        }
+
+        Row toRow() {
+            byte[] name = new byte[len];
+            int pos = 0;
+            if (len >= 4) {
+                putInt(name, pos, prefix1);
+                pos += 4;
+            }
+            if (len >= 8) {
+                putInt(name, pos, prefix2);
+                pos += 4;
+            }
+            System.arraycopy(nameTail, 0, name, pos, nameTail.length);
+            return new Row(new String(name, StandardCharsets.UTF_8),
+                    Math.round((double) min) / 10.0,
+                    Math.round((double) sum / count) / 10.0,
+                    Math.round((double) max) / 10.0);
+        }
+
+        private static void putInt(byte[] name, int pos, int value) {
+            MemorySegment.ofArray(name).set(INT_LE, pos, value);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.jmh;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning the temperature after the ';' into tenths of a degree, the time is per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@OperationsPerInvocation(Rows.ROWS)
+public class TemperatureParseBenchmark {
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // The perfect hash of CalculateAverage_hundredwatt, from the word holding a temperature to its value
+    private static final int TEMPERATURE_SLOTS = 5003;
+    private static final short[] TEMPERATURES = new short[TEMPERATURE_SLOTS];
+    private static final long PERFECT_HASH_SEED = -1982870890352534081L;
+
+    static {
+        for (short i = -999; i <= 999; i++) {
+            long word = 0;
+            int shift = 0;
+            if (i < 0) {
+                word |= ((long) '-') << shift;
+                shift += 8;
+            }
+            if (Math.abs(i) >= 100) {
+                word |= ((long) (Math.abs(i) / 100 + '0')) << shift;
+                shift += 8;
+            }
+            word |= ((long) (Math.abs(i) / 10 % 10 + '0')) << shift;
+            shift += 8;
+            word |= ((long) '.') << shift;
+            shift += 8;
+            word |= ((long) (Math.abs(i) % 10 + '0')) << shift;
+
+            int pos = (int) (((word * PERFECT_HASH_SEED) & ~(1L << 63)) % TEMPERATURE_SLOTS);
+            if (TEMPERATURES[pos] != 0) {
+                throw new IllegalStateException("collision at " + pos);
+            }
+            TEMPERATURES[pos] = i;
+        }
+    }
+
+    /**
+     * Digit by digit, the {@code parseDataPointSimple()} of CalculateAverage_merykitty.
+     */
+    @Benchmark
+    public long scalar(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long offset : rows.temperatureStarts) {
+            int value = 0;
+            boolean negative = false;
+            if (data.get(ValueLayout.JAVA_BYTE, offset) == '-') {
+                negative = true;
+                offset++;
+            }
+            for (;; offset++) {
+                int c = data.get(ValueLayout.JAVA_BYTE, offset);
+                if (c == '.') {
+                    value = value * 10 + (data.get(ValueLayout.JAVA_BYTE, offset + 1) - '0');
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            }
+            sum += negative ? -value : value;
+        }
+        return sum;
+    }
+
+    /**
+     * Without branches, the {@code parseDataPoint()} of CalculateAverage_merykitty.
+     */
+    @Benchmark
+    public long branchless(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long offset : rows.temperatureStarts) {
+            long word = data.get(LONG_LE, offset);
+            int decimalSepPos = Long.numberOfTrailingZeros(~word & 0x10101000);
+            int shift = 28 - decimalSepPos;
+            long signed = (~word << 59) >> 63;
+            long designMask = ~(signed & 0xFF);
+            long digits = ((word & designMask) << shift) & 0x0F000F0F00L;
+            long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+            sum += (absValue ^ signed) - signed;
+        }
+        return sum;
+    }
+
+    /**
+     * Table lookup of the whole word up to the line break, as in CalculateAverage_hundredwatt.
+     */
+    @Benchmark
+    public long perfectHash(Rows rows) {
+        MemorySegment data = rows.data;
+        long sum = 0;
+        for (long offset : rows.temperatureStarts) {
+            long word = data.get(LONG_LE, offset);
+            long hasValue = (word - 0x0B0B0B0B0B0B0B0BL) & 0x8080808080808080L;
+            int newlinePos = Long.numberOfTrailingZeros(hasValue) - 8;
+            word = word & (~(-(1L << newlinePos)));
+            long hash = (word * PERFECT_HASH_SEED) & ~(1L << 63);
+            sum += TEMPERATURES[(int) (hash % TEMPERATURE_SLOTS)];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Unmaps parts of the input in a low-priority thread while the workers go on parsing, with nothing but {@link Arena}:
+ *
+ * <pre>
+ * BackgroundUnmapper unmapper = new BackgroundUnmapper(64 &lt;&lt; 20);
+ * ...
+ * Arena arena = Arena.ofShared();
+ * MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, size, arena);
+ * ... parse segment ...
+ * unmapper.release(arena, size);
+ * ...
+ * unmapper.close();   // or detach()
+ * </pre>
+ * <p>
+ * Each part is mapped into an arena of its own, which has to be shared as the cleaner thread closes it. Closing a
+ * shared arena waits for a handshake with all threads, that is for each worker to reach a safepoint, which the cleaner
+ * does instead of the workers; parts should be a few megabytes at least.
+ * <p>
+ * At the end, {@link #close()} waits until all released parts are unmapped, for when the process goes on with other
+ * work. {@link #detach()} instead returns right away and leaves what is still queued, and every part not released, to
+ * the cleaner and to the exit of the process, which unmaps the rest; entries print and close {@code System.out} first,
+ * so that the result is out while the tail is torn down.
+ * <p>
+ * Released parts count towards a limit of pending bytes, if one is given; {@link #release(Arena, long)} then blocks
+ * until the cleaner has caught up, so that no more than that stays mapped after the workers are done with it.
+ */
+public final class BackgroundUnmapper implements AutoCloseable {
+
+    private record Part(Arena arena, long size) {
+    }
+
+    private static final Part STOP = new Part(null, 0);
+
+    private final LinkedBlockingQueue<Part> queue = new LinkedBlockingQueue<>();
+    private final Thread cleaner;
+    private final long maxPending;
+    private long pending;
+
+    public BackgroundUnmapper() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPending bytes released but not yet unmapped, beyond which {@link #release(Arena, long)} blocks
+     */
+    public BackgroundUnmapper(long maxPending) {
+        this.maxPending = maxPending;
+        cleaner = new Thread(this::run, "unmapper");
+        cleaner.setDaemon(true);
+        cleaner.setPriority(Thread.MIN_PRIORITY);
+        cleaner.start();
+    }
+
+    /**
+     * Queues the arena to be closed by the cleaner thread; no thread may touch its segments anymore.
+     */
+    public void release(Arena arena, long size) {
+        if (maxPending != Long.MAX_VALUE) {
+            synchronized (this) {
+                while (pending > 0 && pending + size > maxPending) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                pending += size;
+            }
+        }
+        queue.add(new Part(arena, size));
+    }
+
+    /**
+     * Waits until all released parts are unmapped and stops the cleaner thread.
+     */
+    @Override
+    public void close() {
+        queue.add(STOP);
+        try {
+            cleaner.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns right away, the cleaner goes on with what is queued until the process exits.
+     */
+    public void detach() {
+        queue.add(STOP);
+    }
+
+    private void run() {
+        while (true) {
+            Part part;
+            try {
+                part = queue.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (part == STOP) {
+                return;
+            }
+            JfrEvents.Unmap event = JfrEvents.ENABLED ? new JfrEvents.Unmap() : null;
+            if (event != null) {
+                event.begin();
+            }
+            part.arena.close();
+            if (event != null && event.shouldCommit()) {
+                event.size = part.size;
+                event.commit();
+            }
+            if (maxPending != Long.MAX_VALUE) {
+                synchronized (this) {
+                    pending -= part.size;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
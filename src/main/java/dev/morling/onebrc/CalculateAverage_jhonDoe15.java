@@ -16,31 +16,41 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
-
 public class CalculateAverage_jhonDoe15 {
 
     private static final String FILE = "./measurements.txt";
 
+    // Segments handed to the mmap workers, aligned to the next line start
+    private static final long SEGMENT_SIZE = 1 << 24;
+    // 100 bytes of name, ';', "-99.9" and '\n'
+    private static final int MAX_LINE_LENGTH = 107;
+    private static final int TABLE_SIZE = 1 << 14;
+
     // private static record Measurement(String station, float value) {
     // private Measurement(String[] parts) {
     // this(parts[0], Double.parseDouble(parts[1]));
     // }
     // }
 
-    private record ResultRow(float min, float mean, float max) {
+    private record ResultRow(double min, double mean, double max) {
 
         public String toString() {
-            return round(min) + "/" + round(mean) + "/" + round(max);
-        }
-
-        private float round(float value) {
-            return (float) (Math.round(value * 10.0) / 10.0);
+            return min + "/" + mean + "/" + max;
         }
     }
 
@@ -51,53 +61,71 @@ public class CalculateAverage_jhonDoe15 {
     // private long count = 0;
     // }
 
+    // Measurements are kept in tenths of a degree, see FixedPoint_jhonDoe15
     private static class StationData {
-        float min;
-        float max;
-        float sum;
+        int min;
+        int max;
+        long sum;
         long count;
 
         public StationData() {
-            min = Float.POSITIVE_INFINITY;
-            max = Float.NEGATIVE_INFINITY;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
         }
 
-        public StationData(float measurement) {
+        public StationData(int measurement) {
             this.min = measurement;
             this.max = measurement;
             this.sum = measurement;
             this.count = 1L;
         }
     }
-    private static String[] splitLine(String line) {
-        int sepIdx = line.indexOf(';');
-//        String station = line.substring(0, sepIdx);
-//        String valueStr = line.substring(sepIdx + 1);
-//        float value = Double.parseDouble(valueStr);
-
-        return new String[]{line.substring(0, sepIdx), line.substring(sepIdx + 1)};
-    }
 
     private static String getStationNameFromLine(String line) {
         int sepIdx = line.indexOf(';');
-//        String station = line.substring(0, sepIdx);
-//        String valueStr = line.substring(sepIdx + 1);
-//        float value = Double.parseDouble(valueStr);
+        // String station = line.substring(0, sepIdx);
+        // String valueStr = line.substring(sepIdx + 1);
+        // float value = Double.parseDouble(valueStr);
 
         return line.substring(0, sepIdx);
     }
 
-    private static float getMeasurementFromLine(String line) {
+    private static int getMeasurementFromLine(String line) {
         int sepIdx = line.indexOf(';');
-//        String station = line.substring(0, sepIdx);
-//        String valueStr = line.substring(sepIdx + 1);
-//        float value = Double.parseDouble(valueStr);
+        // String station = line.substring(0, sepIdx);
+        // String valueStr = line.substring(sepIdx + 1);
+        // float value = Double.parseDouble(valueStr);
 
-        return Float.parseFloat(line.substring(sepIdx + 1));
+        return FixedPoint_jhonDoe15.parseTenths(line, sepIdx + 1, line.length());
     }
 
-
     public static void main(String[] args) throws IOException {
+        String mode = "stream";
+        for (String arg : args) {
+            String key = arg.substring(0, arg.indexOf('=')).trim();
+            String value = arg.substring(key.length() + 1).trim();
+            switch (key) {
+                case "mode":
+                    mode = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        switch (mode) {
+            case "stream":
+                runStream();
+                break;
+            case "mmap":
+                runMapped();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static void runStream() throws IOException {
 
         long startTime = System.nanoTime();
 
@@ -106,7 +134,6 @@ public class CalculateAverage_jhonDoe15 {
         Stream<String> lines = Files.lines(Paths.get(FILE));
 
         lines.parallel()
-                .map(CalculateAverage_jhonDoe15::splitLine)
                 .forEach(l -> handleMeasurementClaude(stations, l));
 
         List<ResultRow> resultRows = stations.keySet()
@@ -120,20 +147,225 @@ public class CalculateAverage_jhonDoe15 {
         System.out.printf("%s ms%n", timeTaken / 1000 / 1000);
     }
 
+    /**
+     * Maps the file segment by segment and parses raw bytes; every worker aggregates into its own
+     * {@link ByteStationTable}, and names only become {@code String}s when the tables are merged for the report.
+     */
+    private static void runMapped() throws IOException {
+        long startTime = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(FILE), StandardOpenOption.READ)) {
+            long[] segmentBounds = lineAlignedSegments(channel);
+            int segmentCount = segmentBounds.length - 1;
+            int numberOfWorkers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), segmentCount));
+            AtomicInteger nextSegment = new AtomicInteger();
+            ByteStationTable[] tables = new ByteStationTable[numberOfWorkers];
+            Thread[] workers = new Thread[numberOfWorkers];
+            Throwable[] failures = new Throwable[numberOfWorkers];
+            for (int i = 0; i < numberOfWorkers; i++) {
+                int index = i;
+                tables[index] = new ByteStationTable(TABLE_SIZE);
+                workers[i] = new Thread(() -> {
+                    try {
+                        int segment;
+                        while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+                            long start = segmentBounds[segment];
+                            long size = segmentBounds[segment + 1] - start;
+                            parseSegment(channel.map(FileChannel.MapMode.READ_ONLY, start, size), tables[index]);
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            checkWorkers(failures);
+
+            TreeMap<String, ByteStationData> result = new TreeMap<>();
+            for (ByteStationTable table : tables) {
+                table.mergeInto(result);
+            }
+            System.out.println(result);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        long timeTaken = System.nanoTime() - startTime;
+        System.err.printf("%s ms%n", timeTaken / 1000 / 1000);
+    }
 
+    // A worker that throws only ends its own thread, so the failures are collected and rethrown after the join
+    // instead of printing the partial result of the others
+    private static void checkWorkers(Throwable[] failures) {
+        IllegalStateException exception = null;
+        for (Throwable failure : failures) {
+            if (failure == null) {
+                continue;
+            }
+            if (exception == null) {
+                exception = new IllegalStateException("Worker failed", failure);
+            }
+            else {
+                exception.addSuppressed(failure);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
 
-    private static ResultRow calcStationAvg(String name, ConcurrentHashMap<String, StationData> stations) {
-        StationData stationData = stations.get(name);
-        return new ResultRow(stationData.min, round(stationData.sum / stationData.count), stationData.max);
+    private static long[] lineAlignedSegments(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        long position = SEGMENT_SIZE;
+        while (position < fileSize) {
+            probe.clear();
+            channel.read(probe, position);
+            int i = 0;
+            while (i < probe.position() && probe.get(i) != '\n') {
+                i++;
+            }
+            long lineStart = position + i + 1;
+            if (lineStart >= fileSize) {
+                break;
+            }
+            bounds.add(lineStart);
+            position = lineStart + SEGMENT_SIZE;
+        }
+        bounds.add(fileSize);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
     }
 
-    private static float round(float unRoundedAverage) {
-        return (float) (Math.round(unRoundedAverage * 10.0) / 10.0);
+    private static void parseSegment(MappedByteBuffer segment, ByteStationTable table) {
+        byte[] name = new byte[MAX_LINE_LENGTH];
+        int limit = segment.limit();
+        int pos = 0;
+        while (pos < limit) {
+            int nameLength = 0;
+            int hash = 0;
+            byte b;
+            while ((b = segment.get(pos++)) != ';') {
+                name[nameLength++] = b;
+                hash = 31 * hash + b;
+            }
+
+            int lineEnd = pos;
+            while (lineEnd < limit && segment.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            table.record(name, nameLength, hash, FixedPoint_jhonDoe15.parseTenths(segment, pos, lineEnd));
+            pos = lineEnd + 1;
+        }
     }
 
-    private static void handleMeasurement(ConcurrentHashMap<String, StationData> stations, String[] lineParts) {
-        String station = lineParts[0];
-        float value = parseDouble(lineParts[1]);
+    /**
+     * Open-addressing table keyed by the raw UTF-8 bytes of the station name, owned by a single worker.
+     */
+    private static class ByteStationTable {
+        private ByteStationData[] slots;
+        private int size;
+
+        ByteStationTable(int capacity) {
+            slots = new ByteStationData[capacity];
+        }
+
+        void record(byte[] name, int nameLength, int hash, int value) {
+            int mask = slots.length - 1;
+            int index = (hash ^ (hash >>> 16)) & mask;
+            ByteStationData data;
+            while ((data = slots[index]) != null) {
+                if (data.hash == hash && Arrays.equals(data.name, 0, data.name.length, name, 0, nameLength)) {
+                    data.add(value);
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            slots[index] = new ByteStationData(Arrays.copyOf(name, nameLength), hash, value);
+            if (++size > slots.length >> 1) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            ByteStationData[] old = slots;
+            slots = new ByteStationData[old.length << 1];
+            int mask = slots.length - 1;
+            for (ByteStationData data : old) {
+                if (data != null) {
+                    int index = (data.hash ^ (data.hash >>> 16)) & mask;
+                    while (slots[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    slots[index] = data;
+                }
+            }
+        }
+
+        void mergeInto(TreeMap<String, ByteStationData> result) {
+            for (ByteStationData data : slots) {
+                if (data != null) {
+                    result.merge(new String(data.name, StandardCharsets.UTF_8), data, ByteStationData::merge);
+                }
+            }
+        }
+    }
+
+    private static class ByteStationData {
+        final byte[] name;
+        final int hash;
+        int min;
+        int max;
+        long sum;
+        long count;
+
+        ByteStationData(byte[] name, int hash, int measurement) {
+            this.name = name;
+            this.hash = hash;
+            this.min = measurement;
+            this.max = measurement;
+            this.sum = measurement;
+            this.count = 1L;
+        }
+
+        void add(int measurement) {
+            min = Math.min(min, measurement);
+            max = Math.max(max, measurement);
+            sum += measurement;
+            count++;
+        }
+
+        ByteStationData merge(ByteStationData other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            return this;
+        }
+
+        public String toString() {
+            return FixedPoint_jhonDoe15.format(min, sum, count, max);
+        }
+    }
+
+    private static ResultRow calcStationAvg(String name, ConcurrentHashMap<String, StationData> stations) {
+        StationData stationData = stations.get(name);
+        return new ResultRow(
+                FixedPoint_jhonDoe15.toDouble(stationData.min),
+                FixedPoint_jhonDoe15.mean(stationData.sum, stationData.count),
+                FixedPoint_jhonDoe15.toDouble(stationData.max));
+    }
+
+    private static void handleMeasurement(ConcurrentHashMap<String, StationData> stations, String line) {
+        int sepIdx = line.indexOf(';');
+        String station = line.substring(0, sepIdx);
+        int value = FixedPoint_jhonDoe15.parseTenths(line, sepIdx + 1, line.length());
 
         StationData stationData = stations.getOrDefault(station, new StationData());
 
@@ -147,9 +379,10 @@ public class CalculateAverage_jhonDoe15 {
         stations.put(station, stationData);
     }
 
-    private static void handleMeasurementClaude(ConcurrentHashMap<String, StationData> stations, String[] lineParts) {
-        String station = lineParts[0];
-        float measurement = parseFloat(lineParts);
+    private static void handleMeasurementClaude(ConcurrentHashMap<String, StationData> stations, String line) {
+        int sepIdx = line.indexOf(';');
+        String station = line.substring(0, sepIdx);
+        int measurement = FixedPoint_jhonDoe15.parseTenths(line, sepIdx + 1, line.length());
 
         // Using computeIfPresent and computeIfAbsent
         stations.computeIfPresent(station, (_, value) -> {
@@ -163,33 +396,20 @@ public class CalculateAverage_jhonDoe15 {
         stations.computeIfAbsent(station, _ -> new StationData(measurement));
     }
 
-//    private static void handleMeasurementClaudePlus(ConcurrentHashMap<String, StationData> stations, String lineParts) {
-//        String station = lineParts[0];
-//        float measurement = parseFloat(lineParts);
-//
-//        // Using computeIfPresent and computeIfAbsent
-//        stations.computeIfPresent(station, (_, value) -> {
-//            value.min = Math.min(value.min, measurement);
-//            value.max = Math.max(value.max, measurement);
-//            value.count += 1;
-//            value.sum += measurement;
-//            return value;
-//        });
-//
-//        stations.computeIfAbsent(station, _ -> new StationData(measurement));
-//    }
-
-    private static float parseFloat(String[] lineParts) {
-        return Float.parseFloat(lineParts[1]);
-    }
-
-    private static float parseDouble(String str) {
-        // Assuming str is a valid float representation
-        // Parse str manually without using Double.parseDouble
-        int dotIndex = str.indexOf('.');
-        int integerPart = Integer.parseInt(str.substring(0, dotIndex));
-        int decimalPart = Integer.parseInt(str.substring(dotIndex + 1, dotIndex + 2));
-        return (float) (integerPart + decimalPart * 0.1);
-    }
+    // private static void handleMeasurementClaudePlus(ConcurrentHashMap<String, StationData> stations, String lineParts) {
+    // String station = lineParts[0];
+    // float measurement = parseFloat(lineParts);
+    //
+    // // Using computeIfPresent and computeIfAbsent
+    // stations.computeIfPresent(station, (_, value) -> {
+    // value.min = Math.min(value.min, measurement);
+    // value.max = Math.max(value.max, measurement);
+    // value.count += 1;
+    // value.sum += measurement;
+    // return value;
+    // });
+    //
+    // stations.computeIfAbsent(station, _ -> new StationData(measurement));
+    // }
 
 }
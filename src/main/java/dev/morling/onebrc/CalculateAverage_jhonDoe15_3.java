@@ -15,7 +15,7 @@
  */
 package dev.morling.onebrc;
 
-import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -24,16 +24,19 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toMap;
 
-
 public class CalculateAverage_jhonDoe15_3 {
 
     private static final String FILE = "./measurements.txt";
 
+    // Measurements buffered per station before they are reduced with the Vector API
+    private static final int BLOCK_SIZE = 256;
+
     // private static record Measurement(String station, double value) {
     // private Measurement(String[] parts) {
     // this(parts[0], Double.parseDouble(parts[1]));
@@ -43,97 +46,188 @@ public class CalculateAverage_jhonDoe15_3 {
     private record ResultRow(double min, double mean, double max) {
 
         public String toString() {
-            return round(min) + "/" + round(mean) + "/" + round(max);
-        }
-
-        private double round(double value) {
-            return Math.round(value * 10.0) / 10.0;
+            return min + "/" + mean + "/" + max;
         }
     }
-    private static String[] splitLine(String line) {
-        int sepIdx = line.indexOf(';');
-        return new String[]{line.substring(0, sepIdx), line.substring(sepIdx + 1)};
+
+    private static String stationOf(String line) {
+        return line.substring(0, line.indexOf(';'));
     }
 
+    // Measurement in tenths of a degree, see FixedPoint_jhonDoe15
+    private static int tenthsOf(String line) {
+        return FixedPoint_jhonDoe15.parseTenths(line, line.indexOf(';') + 1, line.length());
+    }
 
     public static void main(String[] args) throws IOException {
+        String mode = "lists";
+        for (String arg : args) {
+            String key = arg.substring(0, arg.indexOf('=')).trim();
+            String value = arg.substring(key.length() + 1).trim();
+            switch (key) {
+                case "mode":
+                    mode = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        switch (mode) {
+            case "lists":
+                runLists();
+                break;
+            case "blocks":
+                runBlocks();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static void runLists() throws IOException {
         long startTime = System.nanoTime();
 
         Stream<String> lines = Files.lines(Paths.get(FILE));
 
-        // Collect and convert List<Double> to double[]
+        // Collect and convert List<Integer> to int[]
 
         Map<String, ResultRow> stationsParsedData = lines.parallel()
-                .map(CalculateAverage_jhonDoe15_3::splitLine)
                 .collect(
-                                Collectors.groupingBy(
-                                        line -> line[0],
-                                        Collectors.mapping(
-                                                splittedLine -> Double.parseDouble(splittedLine[1]),
-                                                Collectors.toList()
-                                        )
-                                )
-                )
+                        Collectors.groupingBy(
+                                CalculateAverage_jhonDoe15_3::stationOf,
+                                Collectors.mapping(
+                                        CalculateAverage_jhonDoe15_3::tenthsOf,
+                                        Collectors.toList())))
                 .entrySet()
                 .stream()
                 .parallel()
                 .collect(toMap(Map.Entry::getKey,
-                        station -> {
-                            double[] measurementArray = station.getValue().stream().mapToDouble(Double::doubleValue).toArray();
-                            double min = getMin(measurementArray);
-                            double max = getMax(measurementArray);
-                            double mean = getAvg(measurementArray);
-                            return new ResultRow(
-                                    min,
-                                    mean,
-                                    max
-                            );
-                        }
-                ));
+                        station -> getStationResultInnerCasting(station.getValue())));
         System.out.println(stationsParsedData);
 
         long timeTaken = System.nanoTime() - startTime;
         System.out.printf("%s ms%n", timeTaken / 1000 / 1000);
     }
 
-    private static ResultRow getStationResultInnerCasting(List<Double> measurementList) {
-        double[] measurementArray = measurementList.stream().mapToDouble(Double::doubleValue).toArray();
-        double min = getMin(measurementArray);
-        double max = getMax(measurementArray);
-        double mean = getAvg(measurementArray);
+    private static ResultRow getStationResultInnerCasting(List<Integer> measurementList) {
+        int[] measurementArray = measurementList.stream().mapToInt(Integer::intValue).toArray();
+        int min = getMin(measurementArray);
+        int max = getMax(measurementArray);
+        long sum = getSum(measurementArray, measurementArray.length);
         return new ResultRow(
-                min,
-                mean,
-                max
-        );
+                FixedPoint_jhonDoe15.toDouble(min),
+                FixedPoint_jhonDoe15.mean(sum, measurementArray.length),
+                FixedPoint_jhonDoe15.toDouble(max));
     }
-    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
 
-    public static double getAvg(double[] arr) {
-        double sum = 0;
-        for (int i = 0; i< arr.length; i += SPECIES.length()) {
-            var mask = SPECIES.indexInRange(i, arr.length);
-            var V = DoubleVector.fromArray(SPECIES, arr, i, mask);
+    /**
+     * Streams the measurements into fixed-size primitive blocks per station instead of collecting them into lists, so
+     * memory stays bounded by the number of stations rather than the number of rows.
+     */
+    private static void runBlocks() throws IOException {
+        long startTime = System.nanoTime();
+
+        Stream<String> lines = Files.lines(Paths.get(FILE));
+
+        Collector<String, StationBlock, ResultRow> collector = Collector.of(
+                StationBlock::new,
+                (block, line) -> block.add(tenthsOf(line)),
+                StationBlock::combine,
+                StationBlock::toResultRow);
+
+        Map<String, ResultRow> stationsParsedData = lines.parallel()
+                .collect(Collectors.groupingBy(CalculateAverage_jhonDoe15_3::stationOf, collector));
+        System.out.println(stationsParsedData);
+
+        long timeTaken = System.nanoTime() - startTime;
+        System.out.printf("%s ms%n", timeTaken / 1000 / 1000);
+    }
+
+    /**
+     * Running aggregate of one station. Measurements are buffered in {@link #block}, which is reduced with the Vector
+     * API and reused once it is full.
+     */
+    private static class StationBlock {
+        final int[] block = new int[BLOCK_SIZE];
+        int filled;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum;
+        long count;
+
+        void add(int measurement) {
+            block[filled++] = measurement;
+            if (filled == BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (filled == 0) {
+                return;
+            }
+            min = Math.min(min, getMin(block, filled));
+            max = Math.max(max, getMax(block, filled));
+            sum += getSum(block, filled);
+            count += filled;
+            filled = 0;
+        }
+
+        StationBlock combine(StationBlock other) {
+            flush();
+            other.flush();
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            return this;
+        }
+
+        ResultRow toResultRow() {
+            flush();
+            return new ResultRow(
+                    FixedPoint_jhonDoe15.toDouble(min),
+                    FixedPoint_jhonDoe15.mean(sum, count),
+                    FixedPoint_jhonDoe15.toDouble(max));
+        }
+    }
+
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    public static long getSum(int[] arr, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i += SPECIES.length()) {
+            var mask = SPECIES.indexInRange(i, length);
+            var V = IntVector.fromArray(SPECIES, arr, i, mask);
             sum += V.reduceLanes(VectorOperators.ADD, mask);
         }
-        return sum / arr.length;
+        return sum;
     }
 
-    public static double getMin(double[] arr) {
-        double min = Double.POSITIVE_INFINITY;
-        for (int i = 0; i < arr.length; i += SPECIES.length()) {
-            var mask = SPECIES.indexInRange(i, arr.length);
-            var tempMaskedVector = DoubleVector.fromArray(SPECIES, arr, i, mask);
+    public static int getMin(int[] arr) {
+        return getMin(arr, arr.length);
+    }
+
+    public static int getMin(int[] arr, int length) {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < length; i += SPECIES.length()) {
+            var mask = SPECIES.indexInRange(i, length);
+            var tempMaskedVector = IntVector.fromArray(SPECIES, arr, i, mask);
             min = Math.min(min, tempMaskedVector.reduceLanes(VectorOperators.MIN, mask));
         }
         return min;
     }
 
-    public static double getMax(double[] arr) {
-        double max = Double.NEGATIVE_INFINITY;
-        for (int i = 0; i < arr.length; i += SPECIES.length()) {
-            var mask = SPECIES.indexInRange(i, arr.length);
-            var tempMaskedVector = DoubleVector.fromArray(SPECIES, arr, i, mask);
+    public static int getMax(int[] arr) {
+        return getMax(arr, arr.length);
+    }
+
+    public static int getMax(int[] arr, int length) {
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < length; i += SPECIES.length()) {
+            var mask = SPECIES.indexInRange(i, length);
+            var tempMaskedVector = IntVector.fromArray(SPECIES, arr, i, mask);
             max = Math.max(max, tempMaskedVector.reduceLanes(VectorOperators.MAX, mask));
         }
         return max;
@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Java port of the "independent reader workers throwing batch ends" design from {@code src/main/go/jhonDoe15}.
+ * <p>
+ * The file is cut into fixed-size batches without looking at line boundaries. Every worker claims batches and reads
+ * them on its own with a positional {@link FileChannel#read(ByteBuffer, long)} into a direct buffer it owns, so there
+ * is no shared reader. A worker parses the complete lines of its batch and throws the two partial lines at the batch
+ * ends to the neighbouring batches: the fragment before the first newline goes to the edge shared with the previous
+ * batch, the fragment after the last newline to the edge shared with the next one. Whichever side reaches an edge
+ * second takes the other side's fragment with a single atomic swap and parses the stitched line, no locks involved.
+ * Results are aggregated into per-worker tables keyed by name bytes and merged once at the end.
+ */
+public class CalculateAverage_jhonDoe15_independentreaders {
+
+    private static final String FILE = "./measurements.txt";
+
+    // Must be larger than the longest line so that every batch except the last one contains a newline
+    private static final int BATCH_SIZE = 1 << 22;
+    // 100 bytes of name, ';', "-99.9" and '\n'
+    private static final int MAX_LINE_LENGTH = 107;
+    private static final int TABLE_SIZE = 1 << 14;
+    private static final byte[] EMPTY = new byte[0];
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(Paths.get(FILE), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int batchCount = (int) ((fileSize + BATCH_SIZE - 1) / BATCH_SIZE);
+            int numberOfWorkers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), batchCount));
+
+            AtomicInteger nextBatch = new AtomicInteger();
+            // Slot i holds the fragment of whichever of batch i - 1 and batch i arrived first at their shared edge
+            AtomicReferenceArray<Fragment> edges = new AtomicReferenceArray<>(batchCount + 1);
+
+            StationTable[] tables = new StationTable[numberOfWorkers];
+            Thread[] workers = new Thread[numberOfWorkers];
+            Throwable[] failures = new Throwable[numberOfWorkers];
+            for (int i = 0; i < numberOfWorkers; i++) {
+                int index = i;
+                StationTable table = new StationTable(TABLE_SIZE);
+                tables[i] = table;
+                workers[i] = new Thread(() -> {
+                    try {
+                        Worker worker = new Worker(channel, fileSize, batchCount, edges, table);
+                        int batch;
+                        while ((batch = nextBatch.getAndIncrement()) < batchCount) {
+                            worker.process(batch);
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            checkWorkers(failures);
+
+            TreeMap<String, StationData> result = new TreeMap<>();
+            for (StationTable table : tables) {
+                table.mergeInto(result);
+            }
+            System.out.println(result);
+        }
+    }
+
+    // The other workers go on after one failed and never wait for its edges, so the result would just miss its batches
+    private static void checkWorkers(Throwable[] failures) {
+        IllegalStateException exception = null;
+        for (Throwable failure : failures) {
+            if (failure == null) {
+                continue;
+            }
+            if (exception == null) {
+                exception = new IllegalStateException("Worker failed", failure);
+            }
+            else {
+                exception.addSuppressed(failure);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * A partial line thrown to an edge, either the end of a line (the head of a batch) or its start (the tail).
+     */
+    private record Fragment(byte[] bytes, boolean isTail) {
+    }
+
+    private static class Worker {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int batchCount;
+        private final AtomicReferenceArray<Fragment> edges;
+        private final StationTable table;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_SIZE);
+        private final byte[] name = new byte[MAX_LINE_LENGTH];
+        private final byte[] line = new byte[2 * MAX_LINE_LENGTH];
+
+        Worker(FileChannel channel, long fileSize, int batchCount, AtomicReferenceArray<Fragment> edges, StationTable table) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.batchCount = batchCount;
+            this.edges = edges;
+            this.table = table;
+        }
+
+        void process(int batch) {
+            long start = (long) batch * BATCH_SIZE;
+            int size = (int) Math.min(BATCH_SIZE, fileSize - start);
+            read(start, size);
+
+            boolean first = batch == 0;
+            boolean last = batch == batchCount - 1;
+
+            int firstNewLine = 0;
+            while (firstNewLine < size && buffer.get(firstNewLine) != '\n') {
+                firstNewLine++;
+            }
+            if (firstNewLine == size) {
+                // Only the last batch can be shorter than a line; it is the end of the line started by its neighbour
+                if (first) {
+                    parseLine(0, size);
+                }
+                else {
+                    throwFragment(batch, new Fragment(copy(0, size), false));
+                }
+                return;
+            }
+
+            int lastNewLine = size - 1;
+            while (buffer.get(lastNewLine) != '\n') {
+                lastNewLine--;
+            }
+
+            int pos;
+            if (first) {
+                pos = 0;
+            }
+            else {
+                throwFragment(batch, new Fragment(copy(0, firstNewLine), false));
+                pos = firstNewLine + 1;
+            }
+
+            int linesEnd = lastNewLine + 1;
+            while (pos < linesEnd) {
+                pos = parseLine(pos, linesEnd);
+            }
+
+            if (last) {
+                // The file may not end with a newline, then the tail is a complete line
+                while (pos < size) {
+                    pos = parseLine(pos, size);
+                }
+            }
+            else {
+                throwFragment(batch + 1, new Fragment(copy(linesEnd, size), true));
+            }
+        }
+
+        private void read(long start, int size) {
+            buffer.clear().limit(size);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file at " + (start + buffer.position()));
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private byte[] copy(int from, int to) {
+            if (from == to) {
+                return EMPTY;
+            }
+            byte[] bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            return bytes;
+        }
+
+        /**
+         * Publishes a fragment to an edge; if the neighbour already published its side, stitches and parses the line.
+         */
+        private void throwFragment(int edge, Fragment fragment) {
+            Fragment other = edges.getAndSet(edge, fragment);
+            if (other == null) {
+                return;
+            }
+            Fragment tail = fragment.isTail() ? fragment : other;
+            Fragment head = fragment.isTail() ? other : fragment;
+            int length = tail.bytes().length + head.bytes().length;
+            System.arraycopy(tail.bytes(), 0, line, 0, tail.bytes().length);
+            System.arraycopy(head.bytes(), 0, line, tail.bytes().length, head.bytes().length);
+
+            int nameLength = 0;
+            int hash = 5381;
+            byte b;
+            while ((b = line[nameLength]) != ';') {
+                hash = (hash << 5) + hash + b;
+                nameLength++;
+            }
+            table.record(line, nameLength, hash, FixedPoint_jhonDoe15.parseTenths(line, nameLength + 1, length));
+        }
+
+        /**
+         * Parses the line starting at {@code pos} and returns the position after its newline.
+         */
+        private int parseLine(int pos, int limit) {
+            int nameLength = 0;
+            int hash = 5381;
+            byte b;
+            while ((b = buffer.get(pos++)) != ';') {
+                name[nameLength++] = b;
+                hash = (hash << 5) + hash + b;
+            }
+            int lineEnd = pos;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            table.record(name, nameLength, hash, FixedPoint_jhonDoe15.parseTenths(buffer, pos, lineEnd));
+            return lineEnd + 1;
+        }
+    }
+
+    /**
+     * Open-addressing table keyed by the raw UTF-8 bytes of the station name, owned by a single worker.
+     */
+    private static class StationTable {
+        private StationData[] slots;
+        private int size;
+
+        StationTable(int capacity) {
+            slots = new StationData[capacity];
+        }
+
+        void record(byte[] name, int nameLength, int hash, int value) {
+            int mask = slots.length - 1;
+            int index = (hash ^ (hash >>> 16)) & mask;
+            StationData data;
+            while ((data = slots[index]) != null) {
+                if (data.hash == hash && Arrays.equals(data.name, 0, data.name.length, name, 0, nameLength)) {
+                    data.add(value);
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            slots[index] = new StationData(Arrays.copyOf(name, nameLength), hash, value);
+            if (++size > slots.length >> 1) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            StationData[] old = slots;
+            slots = new StationData[old.length << 1];
+            int mask = slots.length - 1;
+            for (StationData data : old) {
+                if (data != null) {
+                    int index = (data.hash ^ (data.hash >>> 16)) & mask;
+                    while (slots[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    slots[index] = data;
+                }
+            }
+        }
+
+        void mergeInto(TreeMap<String, StationData> result) {
+            for (StationData data : slots) {
+                if (data != null) {
+                    result.merge(new String(data.name, StandardCharsets.UTF_8), data, StationData::merge);
+                }
+            }
+        }
+    }
+
+    // Measurements are kept in tenths of a degree, see FixedPoint_jhonDoe15
+    private static class StationData {
+        final byte[] name;
+        final int hash;
+        int min;
+        int max;
+        long sum;
+        long count;
+
+        StationData(byte[] name, int hash, int measurement) {
+            this.name = name;
+            this.hash = hash;
+            this.min = measurement;
+            this.max = measurement;
+            this.sum = measurement;
+            this.count = 1L;
+        }
+
+        void add(int measurement) {
+            min = Math.min(min, measurement);
+            max = Math.max(max, measurement);
+            sum += measurement;
+            count++;
+        }
+
+        StationData merge(StationData other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            return this;
+        }
+
+        public String toString() {
+            return FixedPoint_jhonDoe15.format(min, sum, count, max);
+        }
+    }
+}
@@ -15,16 +15,17 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-
 public class CalculateAverage_jhonDoe15_threading {
 
     private static final String FILE = "./measurements.txt";
@@ -35,14 +36,10 @@ public class CalculateAverage_jhonDoe15_threading {
     // }
     // }
 
-    private record ResultRow(float min, float mean, float max) {
+    private record ResultRow(double min, double mean, double max) {
 
         public String toString() {
-            return round(min) + "/" + round(mean) + "/" + round(max);
-        }
-
-        private float round(float value) {
-            return (float) (Math.round(value * 10.0) / 10.0);
+            return min + "/" + mean + "/" + max;
         }
     }
 
@@ -53,33 +50,45 @@ public class CalculateAverage_jhonDoe15_threading {
     // private long count = 0;
     // }
 
+    // Measurements are kept in tenths of a degree, see FixedPoint_jhonDoe15
     private static class StationData {
-        float min;
-        float max;
-        float sum;
+        int min;
+        int max;
+        long sum;
         long count;
 
         public StationData() {
-            min = Float.POSITIVE_INFINITY;
-            max = Float.NEGATIVE_INFINITY;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
         }
 
-        public StationData(float measurement) {
+        public StationData(int measurement) {
             this.min = measurement;
             this.max = measurement;
             this.sum = measurement;
             this.count = 1L;
         }
     }
-    private static String[] splitLine(String line) {
-        int sepIdx = line.indexOf(';');
-//        String station = line.substring(0, sepIdx);
-//        String valueStr = line.substring(sepIdx + 1);
-//        float value = Double.parseDouble(valueStr);
 
-        return new String[]{line.substring(0, sepIdx), line.substring(sepIdx + 1)};
+    /**
+     * A reusable slice of the input. The reader fills it with whole lines only; the partial line at the end of a read
+     * is carried over into the next batch.
+     */
+    private static class Batch {
+        final byte[] data;
+        int length;
+
+        Batch(int capacity) {
+            this.data = new byte[capacity];
+        }
     }
 
+    // Handed to each worker once the reader reached the end of the file
+    private static final Batch END_OF_INPUT = new Batch(0);
+
+    // The first exception of any worker; a failed worker no longer hands back batches, so the reader checks this
+    // whenever it waits for one instead of blocking forever
+    private static volatile Throwable workerFailure;
 
     public static void main(String[] args) throws IOException {
 
@@ -90,46 +99,90 @@ public class CalculateAverage_jhonDoe15_threading {
         // Get the number of logical processors in the computer
         int numProcessors = Runtime.getRuntime().availableProcessors();
 
-        // Create ExecutorService with a fixed thread pool size equal to the number of processors
-        ExecutorService executor = Executors.newFixedThreadPool(numProcessors);
-
-        final int bufferSize = 16384; // or any other appropriate value (e.g., 8KB)
-        final int BATCH_SIZE = 150;
-
-        try (BufferedReader br = new BufferedReader(new FileReader(FILE), bufferSize)) {
-            String[] batchLines = new String[BATCH_SIZE];
-            String line;
-            int i = 0;
-            while ((line = br.readLine()) != null) {
-                batchLines[i++] = line;
-
-                // If the batch size is reached, submit a task to process the batch
-                if (i >= BATCH_SIZE) {
-                    String[] finalBatchLines = batchLines;
-                    executor.submit(() -> handleMeasurementBatch(stations, finalBatchLines));
-                    batchLines = new String[BATCH_SIZE];
-                    i = 0;
+        final int BATCH_SIZE = 1 << 20;
+        // The ring of batches bounds the memory held by the pipeline regardless of the file size
+        final int RING_SIZE = numProcessors * 2;
+
+        BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(RING_SIZE);
+        BlockingQueue<Batch> filledBatches = new ArrayBlockingQueue<>(RING_SIZE + numProcessors);
+        for (int i = 0; i < RING_SIZE; i++) {
+            freeBatches.add(new Batch(BATCH_SIZE));
+        }
+
+        Thread[] workers = new Thread[numProcessors];
+        for (int i = 0; i < numProcessors; i++) {
+            workers[i] = new Thread(() -> {
+                HashMap<String, StationData> workerStations = new HashMap<>();
+                try {
+                    Batch batch;
+                    while ((batch = filledBatches.take()) != END_OF_INPUT) {
+                        handleMeasurementBatch(workerStations, batch);
+                        // Hand the buffer back to the reader
+                        freeBatches.put(batch);
+                    }
+                }
+                catch (Throwable t) {
+                    if (workerFailure == null) {
+                        workerFailure = t;
+                    }
+                    return;
+                }
+                workerStations.forEach((station, data) -> stations.merge(station, data, (oldData, newData) -> {
+                    oldData.min = Math.min(oldData.min, newData.min);
+                    oldData.max = Math.max(oldData.max, newData.max);
+                    oldData.count += newData.count;
+                    oldData.sum += newData.sum;
+                    return oldData;
+                }));
+            });
+            // The others still wait for batches when the reader gives up after a failure
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        try (InputStream in = new FileInputStream(FILE)) {
+            // Longest possible line: 100 bytes of name, ';', "-99.9" and '\n'
+            byte[] carry = new byte[107];
+            int carryLength = 0;
+            while (true) {
+                // Blocks while all batches are in flight, so the reader can never run ahead of the workers
+                Batch batch = take(freeBatches);
+                System.arraycopy(carry, 0, batch.data, 0, carryLength);
+                int length = carryLength;
+                int read;
+                while (length < batch.data.length && (read = in.read(batch.data, length, batch.data.length - length)) > 0) {
+                    length += read;
+                }
+
+                if (length < batch.data.length) {
+                    // End of file, the last line may come without a trailing newline
+                    batch.length = length;
+                    if (length > 0) {
+                        put(filledBatches, batch);
+                    }
+                    break;
                 }
+
+                int lastNewLine = length - 1;
+                while (batch.data[lastNewLine] != '\n') {
+                    lastNewLine--;
+                }
+                batch.length = lastNewLine + 1;
+                carryLength = length - batch.length;
+                System.arraycopy(batch.data, batch.length, carry, 0, carryLength);
+                put(filledBatches, batch);
             }
 
-            // Process the remaining lines (if any)
-            if (i != 0) {
-                String[] finalBatchLines1 = batchLines;
-                executor.submit(() -> handleMeasurementBatch(stations, finalBatchLines1));
+            for (int i = 0; i < numProcessors; i++) {
+                put(filledBatches, END_OF_INPUT);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            checkWorkers();
         }
-
-        // Shutdown the executor after all tasks are submitted
-        executor.shutdown();
-
-        // Wait until all tasks have completed or until the executor is terminated
-        try {
-            //noinspection ResultOfMethodCallIgnored
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            //noinspection CallToPrintStackTrace
+        catch (InterruptedException e) {
+            // noinspection CallToPrintStackTrace
             e.printStackTrace();
         }
 
@@ -144,51 +197,65 @@ public class CalculateAverage_jhonDoe15_threading {
         System.out.printf("%s ms%n", timeTaken / 1000 / 1000);
     }
 
-
-
-    private static ResultRow calcStationAvg(String name, ConcurrentHashMap<String, StationData> stations) {
-        StationData stationData = stations.get(name);
-        return new ResultRow(stationData.min, round(stationData.sum / stationData.count), stationData.max);
+    private static Batch take(BlockingQueue<Batch> queue) throws InterruptedException {
+        Batch batch;
+        while ((batch = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            checkWorkers();
+        }
+        return batch;
     }
 
-    private static float round(float unRoundedAverage) {
-        return (float) (Math.round(unRoundedAverage * 10.0) / 10.0);
+    private static void put(BlockingQueue<Batch> queue, Batch batch) throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            checkWorkers();
+        }
     }
 
-    private static void handleMeasurementBatch(ConcurrentHashMap<String, StationData> stations, String[] batchLines) {
-        for (int i = 0; i < batchLines.length; i++) {
-            // Process each line within the batch
-            handleMeasurementClaudePlus(stations, batchLines[i]);
+    private static void checkWorkers() {
+        Throwable failure = workerFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Worker failed", failure);
         }
     }
-    private static void handleMeasurementClaudePlus(ConcurrentHashMap<String, StationData> stations, String line) {
-        String[] lineParts = splitLine(line);
-        String station = lineParts[0];
-        float measurement = parseFloat(lineParts);
-
-        // Using computeIfPresent and computeIfAbsent
-        stations.computeIfPresent(station, (_, value) -> {
-            value.min = Math.min(value.min, measurement);
-            value.max = Math.max(value.max, measurement);
-            value.count += 1;
-            value.sum += measurement;
-            return value;
-        });
-
-        stations.computeIfAbsent(station, _ -> new StationData(measurement));
-    }
 
-    private static float parseFloat(String[] lineParts) {
-        return Float.parseFloat(lineParts[1]);
+    private static ResultRow calcStationAvg(String name, ConcurrentHashMap<String, StationData> stations) {
+        StationData stationData = stations.get(name);
+        return new ResultRow(
+                FixedPoint_jhonDoe15.toDouble(stationData.min),
+                FixedPoint_jhonDoe15.mean(stationData.sum, stationData.count),
+                FixedPoint_jhonDoe15.toDouble(stationData.max));
     }
 
-    private static float parseDouble(String str) {
-        // Assuming str is a valid float representation
-        // Parse str manually without using Double.parseDouble
-        int dotIndex = str.indexOf('.');
-        int integerPart = Integer.parseInt(str.substring(0, dotIndex));
-        int decimalPart = Integer.parseInt(str.substring(dotIndex + 1, dotIndex + 2));
-        return (float) (integerPart + decimalPart * 0.1);
+    private static void handleMeasurementBatch(HashMap<String, StationData> stations, Batch batch) {
+        byte[] data = batch.data;
+        int pos = 0;
+        while (pos < batch.length) {
+            // Process each line within the batch
+            int nameStart = pos;
+            while (data[pos] != ';') {
+                pos++;
+            }
+            String station = new String(data, nameStart, pos - nameStart, StandardCharsets.UTF_8);
+            pos++;
+
+            int lineEnd = pos;
+            while (lineEnd < batch.length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int measurement = FixedPoint_jhonDoe15.parseTenths(data, pos, lineEnd);
+            pos = lineEnd + 1;
+
+            StationData stationData = stations.get(station);
+            if (stationData == null) {
+                stations.put(station, new StationData(measurement));
+            }
+            else {
+                stationData.min = Math.min(stationData.min, measurement);
+                stationData.max = Math.max(stationData.max, measurement);
+                stationData.count += 1;
+                stationData.sum += measurement;
+            }
+        }
     }
 
 }
@@ -24,7 +24,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
-
 public class CalculateAverage_jhonDoe15_threading_mapmerging {
 
     private static final String FILE = "./measurements.txt";
@@ -35,14 +34,10 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
     // }
     // }
 
-    private record ResultRow(float min, float mean, float max) {
+    private record ResultRow(double min, double mean, double max) {
 
         public String toString() {
-            return round(min) + "/" + round(mean) + "/" + round(max);
-        }
-
-        private float round(float value) {
-            return (float) (Math.round(value * 10.0) / 10.0);
+            return min + "/" + mean + "/" + max;
         }
     }
 
@@ -53,39 +48,42 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
     // private long count = 0;
     // }
 
+    // Measurements are kept in tenths of a degree, see FixedPoint_jhonDoe15
     private static class StationData {
-        float min;
-        float max;
-        float sum;
+        int min;
+        int max;
+        long sum;
         long count;
 
         public StationData() {
-            min = Float.POSITIVE_INFINITY;
-            max = Float.NEGATIVE_INFINITY;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
         }
 
-        public StationData(float measurement) {
+        public StationData(int measurement) {
             this.min = measurement;
             this.max = measurement;
             this.sum = measurement;
             this.count = 1L;
         }
     }
-    private static String[] splitLine(String line) {
-        int sepIdx = line.indexOf(';');
-//        String station = line.substring(0, sepIdx);
-//        String valueStr = line.substring(sepIdx + 1);
-//        float value = Double.parseDouble(valueStr);
-
-        return new String[]{line.substring(0, sepIdx), line.substring(sepIdx + 1)};
-    }
 
+    // The first exception of any batch; there are too many batches to keep a future for each of them
+    private static volatile Throwable batchFailure;
 
     public static void main(String[] args) throws IOException {
 
         long startTime = System.nanoTime();
 
-        ConcurrentHashMap<String, StationData> stations = new ConcurrentHashMap<>();
+        // Every pool thread folds the batches it processes into one long-lived partial map
+        List<HashMap<String, StationData>> partials = new ArrayList<>();
+        ThreadLocal<HashMap<String, StationData>> threadPartial = ThreadLocal.withInitial(() -> {
+            HashMap<String, StationData> partial = new HashMap<>();
+            synchronized (partials) {
+                partials.add(partial);
+            }
+            return partial;
+        });
 
         // Get the number of logical processors in the computer
         int numProcessors = Runtime.getRuntime().availableProcessors();
@@ -93,9 +91,6 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
         // Create ExecutorService with a fixed thread pool size equal to the number of processors
         ExecutorService executor = Executors.newFixedThreadPool(numProcessors);
 
-        // List to hold Future objects representing the results of the tasks
-        List<Future<Map<String, StationData>>> futures = new ArrayList<>();
-
         final int bufferSize = 8192; // or any other appropriate value (e.g., 8KB)
         final int BATCH_SIZE = 250;
 
@@ -103,15 +98,13 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
             String[] batchLines = new String[BATCH_SIZE];
             String line;
             int i = 0;
-            while ((line = br.readLine()) != null) {
+            while ((line = br.readLine()) != null && batchFailure == null) {
                 batchLines[i++] = line;
 
                 // If the batch size is reached, submit a task to process the batch
                 if (i >= BATCH_SIZE) {
                     String[] finalBatchLines = batchLines;
-
-                    Future<Map<String, StationData>> future = executor.submit(() -> handleMeasurementBatch(stations, finalBatchLines));
-                    futures.add(future);
+                    executor.execute(() -> handleMeasurementBatch(threadPartial, finalBatchLines, BATCH_SIZE));
 
                     batchLines = new String[BATCH_SIZE];
                     i = 0;
@@ -121,45 +114,36 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
             // Process the remaining lines (if any)
             if (i != 0) {
                 String[] finalBatchLines1 = batchLines;
-
-                Future<Map<String, StationData>> future = executor.submit(() -> handleMeasurementBatch(stations, finalBatchLines1));
-                futures.add(future);
-            }
-
-            // Process the results
-            for (Future<Map<String, StationData>> future : futures) {
-                try {
-                    Map<String, StationData> result = future.get(); // This will block until the result is available
-                    //noinspection DuplicatedCode
-                    result.forEach((station, data) -> {
-                        stations.merge(station, data, (oldData, newData) -> {
-                            oldData.min = Math.min(oldData.min, newData.min);
-                            oldData.max = Math.max(oldData.max, newData.max);
-                            oldData.count += newData.count;
-                            oldData.sum += newData.sum;
-                            return oldData;
-                        });
-                    });
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                }
+                int remaining = i;
+                executor.execute(() -> handleMeasurementBatch(threadPartial, finalBatchLines1, remaining));
             }
-        } catch (IOException e) {
+        }
+        catch (IOException e) {
             e.printStackTrace();
         }
 
         // Shutdown the executor after all tasks are submitted
-        //noinspection DuplicatedCode
+        // noinspection DuplicatedCode
         executor.shutdown();
 
         // Wait until all tasks have completed or until the executor is terminated
         try {
-            //noinspection ResultOfMethodCallIgnored
+            // noinspection ResultOfMethodCallIgnored
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            //noinspection CallToPrintStackTrace
+        }
+        catch (InterruptedException e) {
+            // noinspection CallToPrintStackTrace
             e.printStackTrace();
         }
+        Throwable failure = batchFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Batch failed", failure);
+        }
+
+        // At most one partial per pool thread is left, combine them pairwise in parallel
+        Map<String, StationData> stations = partials.isEmpty()
+                ? new HashMap<>()
+                : ForkJoinPool.commonPool().invoke(new MergeTask(partials, 0, partials.size()));
 
         List<ResultRow> resultRows = stations.keySet()
                 .stream()
@@ -172,30 +156,72 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
         System.out.printf("%s ms%n", timeTaken / 1000 / 1000);
     }
 
-
-
-    private static ResultRow calcStationAvg(String name, ConcurrentHashMap<String, StationData> stations) {
+    private static ResultRow calcStationAvg(String name, Map<String, StationData> stations) {
         StationData stationData = stations.get(name);
-        return new ResultRow(stationData.min, round(stationData.sum / stationData.count), stationData.max);
+        return new ResultRow(
+                FixedPoint_jhonDoe15.toDouble(stationData.min),
+                FixedPoint_jhonDoe15.mean(stationData.sum, stationData.count),
+                FixedPoint_jhonDoe15.toDouble(stationData.max));
     }
 
-    private static float round(float unRoundedAverage) {
-        return (float) (Math.round(unRoundedAverage * 10.0) / 10.0);
+    private static void handleMeasurementBatch(ThreadLocal<HashMap<String, StationData>> threadPartial, String[] batchLines, int lineCount) {
+        try {
+            HashMap<String, StationData> partial = threadPartial.get();
+            for (int i = 0; i < lineCount; i++) {
+                // Process each line within the batch
+                handleMeasurementClaudePlus(partial, batchLines[i]);
+            }
+        }
+        catch (Throwable t) {
+            if (batchFailure == null) {
+                batchFailure = t;
+            }
+        }
     }
 
-    private static Map<String, StationData> handleMeasurementBatch(ConcurrentHashMap<String, StationData> stations, String[] batchLines) {
-        HashMap<String, StationData> staionsInner = new HashMap<>();
+    /**
+     * Merges the partials in {@code [from, to)} by splitting the range in halves, so the reduction has a depth of
+     * log2 of the number of partials and the merges of one level run in parallel.
+     */
+    private static class MergeTask extends RecursiveTask<HashMap<String, StationData>> {
+        private final List<HashMap<String, StationData>> partials;
+        private final int from;
+        private final int to;
+
+        MergeTask(List<HashMap<String, StationData>> partials, int from, int to) {
+            this.partials = partials;
+            this.from = from;
+            this.to = to;
+        }
 
-        for (int i = 0; i < batchLines.length; i++) {
-            // Process each line within the batch
-            handleMeasurementClaudePlus(staionsInner, batchLines[i]);
+        @Override
+        protected HashMap<String, StationData> compute() {
+            if (to - from == 1) {
+                return partials.get(from);
+            }
+            int mid = (from + to) >>> 1;
+            MergeTask left = new MergeTask(partials, from, mid);
+            left.fork();
+            HashMap<String, StationData> right = new MergeTask(partials, mid, to).compute();
+            HashMap<String, StationData> merged = left.join();
+            // noinspection DuplicatedCode
+            right.forEach((station, data) -> {
+                merged.merge(station, data, (oldData, newData) -> {
+                    oldData.min = Math.min(oldData.min, newData.min);
+                    oldData.max = Math.max(oldData.max, newData.max);
+                    oldData.count += newData.count;
+                    oldData.sum += newData.sum;
+                    return oldData;
+                });
+            });
+            return merged;
         }
-        return staionsInner;
     }
+
     private static void handleMeasurementClaudePlus(HashMap<String, StationData> stations, String line) {
-        String[] lineParts = splitLine(line);
-        String station = lineParts[0];
-        float measurement = parseFloat(lineParts);
+        int sepIdx = line.indexOf(';');
+        String station = line.substring(0, sepIdx);
+        int measurement = FixedPoint_jhonDoe15.parseTenths(line, sepIdx + 1, line.length());
 
         // Using computeIfPresent and computeIfAbsent
         stations.computeIfPresent(station, (_, value) -> {
@@ -209,17 +235,4 @@ public class CalculateAverage_jhonDoe15_threading_mapmerging {
         stations.computeIfAbsent(station, _ -> new StationData(measurement));
     }
 
-    private static float parseFloat(String[] lineParts) {
-        return Float.parseFloat(lineParts[1]);
-    }
-
-    private static float parseDouble(String str) {
-        // Assuming str is a valid float representation
-        // Parse str manually without using Double.parseDouble
-        int dotIndex = str.indexOf('.');
-        int integerPart = Integer.parseInt(str.substring(0, dotIndex));
-        int decimalPart = Integer.parseInt(str.substring(dotIndex + 1, dotIndex + 2));
-        return (float) (integerPart + decimalPart * 0.1);
-    }
-
 }
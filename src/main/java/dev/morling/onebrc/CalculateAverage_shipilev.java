@@ -16,6 +16,7 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
 import java.lang.reflect.InaccessibleObjectException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -92,6 +93,18 @@ public class CalculateAverage_shipilev {
     // feature would automatically turn off.
     private static final boolean DIRECT_UNMMAPS = true;
 
+    // Hard limit on the bytes mmap-ed at once, off by default. Huge files in
+    // containers with little memory would otherwise have all of the file
+    // mapped, which counts against the container and can make the kernel
+    // reclaim in a hurry. With the limit, a few chunks are in flight at a time,
+    // and the next one is only mapped when a completed one has been unmapped.
+    // Chunks shrink to a quarter of the limit, so that workers are not starved
+    // while a chunk is unmapped. This needs direct unmaps to work; without
+    // them, chunks go away whenever GC gets to them.
+    private static final long MMAP_LIMIT = Long.getLong("onebrc.mmap.limit", 0);
+    private static final int MMAP_LIMITED_CHUNK_SIZE = (int) Math.max(MAX_LINE_LENGTH * 2, Math.min(MMAP_CHUNK_SIZE, MMAP_LIMIT / 4));
+    private static final int MMAP_CHUNKS_IN_FLIGHT = (int) Math.max(1, MMAP_LIMIT / MMAP_LIMITED_CHUNK_SIZE);
+
     // ========================= Storage =========================
 
     // Thread-local measurement maps, each thread gets one.
@@ -268,16 +281,21 @@ public class CalculateAverage_shipilev {
         // null-check on bucket instead of multiple range-checks on inlined array.
         private final Bucket[] buckets = new Bucket[MAP_SIZE];
 
+        // Number of buckets in use, maintained on the slow paths only.
+        private int size;
+
         // Fast path is inlined in seqCompute. This is a slow-path that is taken
         // rarely, usually when there is a hash collision. We normally do not enter here.
         private void updateSlow(ByteBuffer name, int begin, int end, int hash, int temp) {
             int idx = hash & (MAP_SIZE - 1);
+            int probes = 0;
 
             while (true) {
                 Bucket cur = buckets[idx];
                 if (cur == null) {
                     // No bucket yet, lucky us. Create the bucket and be done.
                     buckets[idx] = new Bucket(name, begin, end, hash, temp);
+                    size++;
                     return;
                 }
                 else if ((cur.hash == hash) && cur.matches(name, begin, end)) {
@@ -289,6 +307,9 @@ public class CalculateAverage_shipilev {
                 else {
                     // No dice. Keep searching.
                     idx = (idx + 1) & (MAP_SIZE - 1);
+                    if (JfrEvents.ENABLED && ++probes == JfrEvents.PROBE_OVERFLOW) {
+                        probeOverflow(probes, end - begin);
+                    }
                 }
             }
         }
@@ -303,6 +324,7 @@ public class CalculateAverage_shipilev {
                     Bucket cur = buckets[idx];
                     if (cur == null) {
                         buckets[idx] = other;
+                        size++;
                         break;
                     }
                     else if ((cur.hash == other.hash) && cur.matches(other)) {
@@ -316,6 +338,16 @@ public class CalculateAverage_shipilev {
             }
         }
 
+        private static void probeOverflow(int probes, int nameLength) {
+            JfrEvents.ProbeOverflow event = new JfrEvents.ProbeOverflow();
+            if (event.shouldCommit()) {
+                event.probes = probes;
+                event.tableSize = MAP_SIZE;
+                event.nameLength = nameLength;
+                event.commit();
+            }
+        }
+
         // Convert from internal representation to the rows. This does several
         // major things: filters away null-s, instantates full Strings, and
         // computes the final rows.
@@ -336,6 +368,8 @@ public class CalculateAverage_shipilev {
     public static final class ParsingTask extends CountedCompleter<Void> {
         private final MappedByteBuffer mappedBuf;
         private final ByteBuffer buf;
+        // End address of the mmap-ed slice, for the prefetcher of InputAdvice
+        private final long limit;
 
         // Entered from the root task, records the original mmap-ed slice
         // for later cleanup.
@@ -343,13 +377,15 @@ public class CalculateAverage_shipilev {
             super(p);
             this.mappedBuf = mappedBuf;
             this.buf = mappedBuf;
+            this.limit = InputAdvice.ENABLED ? MemorySegment.ofBuffer(mappedBuf).address() + mappedBuf.capacity() : 0;
         }
 
         // Entered from the other parsing tasks.
-        public ParsingTask(CountedCompleter<Void> p, ByteBuffer buf) {
+        public ParsingTask(CountedCompleter<Void> p, ByteBuffer buf, long limit) {
             super(p);
             this.mappedBuf = null;
             this.buf = buf;
+            this.limit = limit;
         }
 
         @Override
@@ -370,7 +406,7 @@ public class CalculateAverage_shipilev {
             // we know the mmap-ed slice is not needed anymore, and can give it
             // out for unmmaps. We do not do unmmap here, let the main thread
             // handle it for us, as we go on doing other hot work.
-            if (DIRECT_UNMMAPS && (mappedBuf != null)) {
+            if ((DIRECT_UNMMAPS || MMAP_LIMIT > 0) && (mappedBuf != null)) {
                 RELEASABLE_BUFFERS.offer(mappedBuf);
             }
         }
@@ -392,11 +428,11 @@ public class CalculateAverage_shipilev {
                 // execute one of the computations directly.
                 // FJP API: Tell there is a pending task.
                 setPendingCount(1);
-                new ParsingTask(this, buf.slice(0, mid)).fork();
+                new ParsingTask(this, buf.slice(0, mid), limit).fork();
 
                 // The stack depth would be shallow enough for us to
                 // execute one of the computations directly.
-                new ParsingTask(this, buf.slice(mid, len - mid)).compute();
+                new ParsingTask(this, buf.slice(mid, len - mid), limit).compute();
             }
             else {
                 // Small enough chunk, time to process it.
@@ -412,14 +448,44 @@ public class CalculateAverage_shipilev {
                 // we have is LE.
                 buf.order(ByteOrder.LITTLE_ENDIAN);
 
-                // Go!
+                if (InputAdvice.ENABLED) {
+                    int worker = Thread.currentThread()instanceof ForkJoinWorkerThread t ? t.getPoolIndex() : 0;
+                    InputAdvice.progress(worker, MemorySegment.ofBuffer(buf).address(), limit);
+                }
+
+                // Go! Recording the chunk costs nothing unless JFR is on.
+                JfrEvents.ChunkParsed event = JfrEvents.ENABLED ? new JfrEvents.ChunkParsed() : null;
+                int keysBefore = map.size;
+                if (event != null) {
+                    event.begin();
+                }
                 seqCompute(map, buf, len);
+                if (event != null) {
+                    event.end();
+                }
+                if (event != null && event.shouldCommit()) {
+                    event.bytes = len;
+                    event.rows = countLines(buf, len);
+                    event.newKeys = map.size - keysBefore;
+                    event.commit();
+                }
 
                 // FJP API: Notify that this task have completed.
                 tryComplete();
             }
         }
 
+        // Only for JFR events, not on the hot path.
+        private static long countLines(ByteBuffer buf, int length) {
+            long lines = 0;
+            for (int i = 0; i < length; i++) {
+                if (buf.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            return lines;
+        }
+
         private void seqCompute(MeasurementsMap map, ByteBuffer origSlice, int length) throws IOException {
             Bucket[] buckets = map.buckets;
 
@@ -517,10 +583,18 @@ public class CalculateAverage_shipilev {
     // "long" start-s and length-s. So we have to chunk at least by mmap-ed
     // size first. It is a CountedCompleter for the same reason ParsingTask is.
     // This also gives us a very nice opportunity to process mmap-ed chunks
-    // one by one, thus allowing incremental unmmaps.
+    // one by one, thus allowing incremental unmmaps. With MMAP_LIMIT, the
+    // main thread maps the remaining chunks as it unmaps the completed ones.
     public static final class RootTask extends CountedCompleter<Void> {
-        public RootTask() {
+        private final ForkJoinPool pool;
+        private final ByteBuffer lineBuf = ByteBuffer.allocateDirect(MAX_LINE_LENGTH);
+        private FileChannel fc;
+        private long start;
+        private long size;
+
+        public RootTask(ForkJoinPool pool) {
             super(null);
+            this.pool = pool;
         }
 
         @Override
@@ -536,43 +610,84 @@ public class CalculateAverage_shipilev {
         }
 
         private void internalCompute() throws Exception {
-            ByteBuffer buf = ByteBuffer.allocateDirect(MAX_LINE_LENGTH);
-            FileChannel fc = FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
-
-            long start = 0;
-            long size = fc.size();
-            while (start < size) {
-                long end = Math.min(size, start + MMAP_CHUNK_SIZE);
+            fc = FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
 
-                // Read a little chunk into a little buffer.
-                long minEnd = Math.max(0, end - MAX_LINE_LENGTH);
-                buf.rewind();
-                fc.read(buf, minEnd);
+            InputAdvice.file(Path.of(FILE));
 
-                // Figure out the boundary that does not split the line.
-                int w = MAX_LINE_LENGTH;
-                while (buf.get(w - 1) != '\n') {
-                    w--;
+            size = fc.size();
+            if (size == 0) {
+                fc.close();
+                propagateCompletion();
+                return;
+            }
+            if (MMAP_LIMIT > 0) {
+                for (int c = 0; c < MMAP_CHUNKS_IN_FLIGHT && mapNext(); c++) {
                 }
-                end = minEnd + w;
+            }
+            else {
+                while (mapNext()) {
+                }
+            }
+        }
 
-                // Fork out the large slice.
-                long len = end - start;
-                MappedByteBuffer slice = fc.map(FileChannel.MapMode.READ_ONLY, start, len);
-                start += len;
+        // Maps the next chunk and forks it out, returns false if all chunks
+        // have been forked already. Called by the main thread as well when
+        // the mappings are limited, hence synchronized.
+        public synchronized boolean mapNext() throws IOException {
+            if (start >= size) {
+                return false;
+            }
+            long end = Math.min(size, start + (MMAP_LIMIT > 0 ? MMAP_LIMITED_CHUNK_SIZE : MMAP_CHUNK_SIZE));
+
+            // Read a little chunk into a little buffer.
+            long minEnd = Math.max(0, end - MAX_LINE_LENGTH);
+            lineBuf.rewind();
+            fc.read(lineBuf, minEnd);
+
+            // Figure out the boundary that does not split the line.
+            int w = MAX_LINE_LENGTH;
+            while (lineBuf.get(w - 1) != '\n') {
+                w--;
+            }
+            end = minEnd + w;
+
+            // Fork out the large slice.
+            long len = end - start;
+            MappedByteBuffer slice = fc.map(FileChannel.MapMode.READ_ONLY, start, len);
+            if (InputAdvice.ENABLED) {
+                InputAdvice.mapped(MemorySegment.ofBuffer(slice).address(), len);
+            }
+            if (JfrEvents.ENABLED) {
+                JfrEvents.ChunkClaimed claimed = new JfrEvents.ChunkClaimed();
+                if (claimed.shouldCommit()) {
+                    claimed.offset = start;
+                    claimed.size = len;
+                    claimed.commit();
+                }
+            }
+            start += len;
 
-                // FJP API: Announce we have a pending task before forking.
-                addToPendingCount(1);
+            // FJP API: Announce we have a pending task before forking.
+            addToPendingCount(1);
 
-                // ...and fork it!
-                new ParsingTask(this, slice).fork();
+            // ...and fork it! The main thread is not in the pool, its forks
+            // would go to the common pool.
+            ParsingTask task = new ParsingTask(this, slice);
+            if (ForkJoinTask.inForkJoinPool()) {
+                task.fork();
+            }
+            else {
+                pool.execute(task);
             }
 
-            // All mappings are up, can close the channel now.
-            fc.close();
+            if (start >= size) {
+                // All mappings are up, can close the channel now.
+                fc.close();
 
-            // FJP API: We have finished, try to complete the whole task tree.
-            propagateCompletion();
+                // FJP API: We have finished, try to complete the whole task tree.
+                propagateCompletion();
+            }
+            return true;
         }
 
         @Override
@@ -597,7 +712,8 @@ public class CalculateAverage_shipilev {
         ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
         // This little line carries the whole world
-        pool.submit(new RootTask());
+        RootTask root = new RootTask(pool);
+        pool.submit(root);
 
         // While the root task is working, prepare what we need for the
         // end of the run. Go and try to report something to prepare the
@@ -615,13 +731,34 @@ public class CalculateAverage_shipilev {
         // that it is done by giving us a poison pill.
         ByteBuffer buf;
         while ((buf = RELEASABLE_BUFFERS.take()) != RELEASABLE_BUFFER_POISON_PILL) {
+            JfrEvents.Unmap unmap = JfrEvents.ENABLED ? new JfrEvents.Unmap() : null;
+            if (unmap != null) {
+                unmap.begin();
+            }
+            int size = buf.capacity();
             DirectUnmaps.invokeCleaner(buf);
+            if (unmap != null && unmap.shouldCommit()) {
+                unmap.size = size;
+                unmap.commit();
+            }
+            if (MMAP_LIMIT > 0) {
+                root.mapNext();
+            }
         }
 
         // All done. Merge results from thread-local maps...
+        JfrEvents.Merge merge = JfrEvents.ENABLED ? new JfrEvents.Merge() : null;
+        if (merge != null) {
+            merge.begin();
+        }
         for (MeasurementsMap m : ALL_MAPS) {
             map.merge(m);
         }
+        if (merge != null && merge.shouldCommit()) {
+            merge.maps = ALL_MAPS.size();
+            merge.keys = map.size;
+            merge.commit();
+        }
 
         // ...and truly report them
         System.out.println(report(map, rows, sb));
@@ -35,6 +35,13 @@ import java.util.concurrent.atomic.AtomicLong;
  *  Jaromir Hamala for showing that avoiding the branch misprediction between <8 and 8-16 cases is a big win even if
  *  more work is performed
  *  Van Phu DO for demonstrating the lookup tables based on masks instead of bit shifting
+ *
+ * With {@code -Donebrc.mmap.limit=<bytes>}, at most that many bytes of the file are mapped at once, for huge files in
+ * containers with little memory. Each worker then maps only the segment it works on, plus the line running over its
+ * end, and hands it to a {@link BackgroundUnmapper} before taking the next one; names of new stations are copied out of
+ * the segment. Half of the limit goes to the segments being parsed, the other half to those waiting to be unmapped.
+ * Segments shrink below {@link #SEGMENT_SIZE} when the limit does not allow one per worker, down to
+ * {@link #MIN_SEGMENT_SIZE}, below which fewer workers are started.
  */
 public class CalculateAverage_thomaswue {
     private static final String FILE = "./measurements.txt";
@@ -43,6 +50,12 @@ public class CalculateAverage_thomaswue {
     private static final int MAX_NAME_LENGTH = 100;
     private static final int MAX_CITIES = 10000;
     private static final int SEGMENT_SIZE = 1 << 21;
+    private static final int MIN_SEGMENT_SIZE = 1 << 16;
+    private static final int PAGE_SIZE = 1 << 12;
+    // Mapped after a segment, for its last line and the word-wise reads beyond it
+    private static final int WINDOW_OVERLAP = 256;
+    private static final long MMAP_LIMIT = Long.getLong("onebrc.mmap.limit", 0);
+    private static final boolean COPY_NAMES = MMAP_LIMIT > 0;
     private static final int HASH_TABLE_SIZE = 1 << 17;
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -53,11 +66,19 @@ public class CalculateAverage_thomaswue {
         }
 
         int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        if (MMAP_LIMIT > 0) {
+            parseWindowed(numberOfWorkers);
+            return;
+        }
         try (var fileChannel = FileChannel.open(java.nio.file.Path.of(FILE), java.nio.file.StandardOpenOption.READ)) {
             long fileSize = fileChannel.size();
             final long fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, java.lang.foreign.Arena.global()).address();
             final long fileEnd = fileStart + fileSize;
             final AtomicLong cursor = new AtomicLong(fileStart);
+            if (InputAdvice.ENABLED) {
+                InputAdvice.file(java.nio.file.Path.of(FILE));
+                InputAdvice.mapped(fileStart, fileSize);
+            }
 
             // Parallel processing of segments.
             Thread[] threads = new Thread[numberOfWorkers];
@@ -66,7 +87,7 @@ public class CalculateAverage_thomaswue {
                 final int index = i;
                 threads[i] = new Thread(() -> {
                     List<Result> results = new ArrayList<>(MAX_CITIES);
-                    parseLoop(cursor, fileEnd, fileStart, results);
+                    parseLoop(index, cursor, fileEnd, fileStart, results);
                     allResults[index] = results;
                 });
                 threads[i].start();
@@ -81,6 +102,72 @@ public class CalculateAverage_thomaswue {
         }
     }
 
+    // Like main, but each worker maps a window of one segment at a time, see the class comment.
+    private static void parseWindowed(int numberOfWorkers) throws IOException, InterruptedException {
+        // A window is one segment and the overlap, which fit into one more page as segments are page aligned
+        long segmentSize = (MMAP_LIMIT / 2 / numberOfWorkers - PAGE_SIZE) & -PAGE_SIZE;
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            numberOfWorkers = (int) Math.max(1, MMAP_LIMIT / 2 / (MIN_SEGMENT_SIZE + PAGE_SIZE));
+            segmentSize = MIN_SEGMENT_SIZE;
+        }
+        final long windowSegment = Math.min(SEGMENT_SIZE, segmentSize);
+        try (var fileChannel = FileChannel.open(java.nio.file.Path.of(FILE), java.nio.file.StandardOpenOption.READ)) {
+            final long fileSize = fileChannel.size();
+            final AtomicLong cursor = new AtomicLong();
+            final BackgroundUnmapper unmapper = new BackgroundUnmapper(MMAP_LIMIT / 2);
+            if (InputAdvice.ENABLED) {
+                InputAdvice.file(java.nio.file.Path.of(FILE));
+            }
+
+            Thread[] threads = new Thread[numberOfWorkers];
+            List<Result>[] allResults = new List[numberOfWorkers];
+            for (int i = 0; i < threads.length; ++i) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    List<Result> results = new ArrayList<>(MAX_CITIES);
+                    windowLoop(index, cursor, fileChannel, fileSize, windowSegment, unmapper, results);
+                    allResults[index] = results;
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            System.out.println(accumulateResults(allResults));
+            System.out.close();
+            // The result is out, the exit unmaps whatever the cleaner has not got to yet
+            unmapper.detach();
+        }
+    }
+
+    private static void windowLoop(int worker, AtomicLong counter, FileChannel fileChannel, long fileSize, long segmentSize, BackgroundUnmapper unmapper,
+                                   List<Result> collectedResults) {
+        Result[] results = new Result[HASH_TABLE_SIZE];
+        while (true) {
+            long offset = counter.addAndGet(segmentSize) - segmentSize;
+            if (offset >= fileSize) {
+                return;
+            }
+            long windowSize = Math.min(fileSize - offset, segmentSize + WINDOW_OVERLAP);
+            java.lang.foreign.Arena arena = java.lang.foreign.Arena.ofShared();
+            try {
+                long windowStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, windowSize, arena).address();
+                if (InputAdvice.ENABLED) {
+                    InputAdvice.mapped(windowStart, windowSize);
+                    InputAdvice.progress(worker, windowStart, windowStart + windowSize);
+                }
+                // Addresses as if the whole file was mapped, only the window is ever read
+                long fileStart = windowStart - offset;
+                parseSegment(windowStart, fileStart + fileSize, fileStart, segmentSize, results, collectedResults);
+            }
+            catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            unmapper.release(arena, windowSize);
+        }
+    }
+
     private static void spawnWorker() throws IOException {
         ProcessHandle.Info info = ProcessHandle.current().info();
         ArrayList<String> workerCommand = new ArrayList<>();
@@ -92,6 +179,10 @@ public class CalculateAverage_thomaswue {
     }
 
     private static TreeMap<String, Result> accumulateResults(List<Result>[] allResults) {
+        JfrEvents.Merge event = JfrEvents.ENABLED ? new JfrEvents.Merge() : null;
+        if (event != null) {
+            event.begin();
+        }
         TreeMap<String, Result> result = new TreeMap<>();
         for (List<Result> resultArr : allResults) {
             for (Result r : resultArr) {
@@ -101,87 +192,115 @@ public class CalculateAverage_thomaswue {
                 }
             }
         }
+        if (event != null && event.shouldCommit()) {
+            event.maps = allResults.length;
+            event.keys = result.size();
+            event.commit();
+        }
         return result;
     }
 
-    private static void parseLoop(AtomicLong counter, long fileEnd, long fileStart, List<Result> collectedResults) {
+    private static void parseLoop(int worker, AtomicLong counter, long fileEnd, long fileStart, List<Result> collectedResults) {
         Result[] results = new Result[HASH_TABLE_SIZE];
         while (true) {
             long current = counter.addAndGet(SEGMENT_SIZE) - SEGMENT_SIZE;
             if (current >= fileEnd) {
                 return;
             }
+            InputAdvice.progress(worker, current, fileEnd);
+            parseSegment(current, fileEnd, fileStart, SEGMENT_SIZE, results, collectedResults);
+        }
+    }
 
-            long segmentEnd = nextNewLine(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
-            long segmentStart;
-            if (current == fileStart) {
-                segmentStart = current;
-            }
-            else {
-                segmentStart = nextNewLine(current) + 1;
-            }
+    private static void parseSegment(long current, long fileEnd, long fileStart, long segmentSize, Result[] results, List<Result> collectedResults) {
+        JfrEvents.ChunkParsed parsed = null;
+        int keysBefore = 0;
+        if (JfrEvents.ENABLED) {
+            chunkClaimed(current - fileStart, Math.min(segmentSize, fileEnd - current));
+            parsed = new JfrEvents.ChunkParsed();
+            parsed.begin();
+            keysBefore = collectedResults.size();
+        }
 
-            long dist = (segmentEnd - segmentStart) / 3;
-            long midPoint1 = nextNewLine(segmentStart + dist);
-            long midPoint2 = nextNewLine(segmentStart + dist + dist);
+        long segmentEnd = nextNewLine(Math.min(fileEnd - 1, current + segmentSize));
+        long segmentStart;
+        if (current == fileStart) {
+            segmentStart = current;
+        }
+        else {
+            segmentStart = nextNewLine(current) + 1;
+        }
 
-            Scanner scanner1 = new Scanner(segmentStart, midPoint1);
-            Scanner scanner2 = new Scanner(midPoint1 + 1, midPoint2);
-            Scanner scanner3 = new Scanner(midPoint2 + 1, segmentEnd);
-            while (true) {
-                if (!scanner1.hasNext()) {
-                    break;
-                }
-                if (!scanner2.hasNext()) {
-                    break;
-                }
-                if (!scanner3.hasNext()) {
-                    break;
-                }
-                long word1 = scanner1.getLong();
-                long word2 = scanner2.getLong();
-                long word3 = scanner3.getLong();
-                long delimiterMask1 = findDelimiter(word1);
-                long delimiterMask2 = findDelimiter(word2);
-                long delimiterMask3 = findDelimiter(word3);
-                long word1b = scanner1.getLongAt(scanner1.pos() + 8);
-                long word2b = scanner2.getLongAt(scanner2.pos() + 8);
-                long word3b = scanner3.getLongAt(scanner3.pos() + 8);
-                long delimiterMask1b = findDelimiter(word1b);
-                long delimiterMask2b = findDelimiter(word2b);
-                long delimiterMask3b = findDelimiter(word3b);
-                Result existingResult1 = findResult(word1, delimiterMask1, word1b, delimiterMask1b, scanner1, results, collectedResults);
-                Result existingResult2 = findResult(word2, delimiterMask2, word2b, delimiterMask2b, scanner2, results, collectedResults);
-                Result existingResult3 = findResult(word3, delimiterMask3, word3b, delimiterMask3b, scanner3, results, collectedResults);
-                long number1 = scanNumber(scanner1);
-                long number2 = scanNumber(scanner2);
-                long number3 = scanNumber(scanner3);
-                record(existingResult1, number1);
-                record(existingResult2, number2);
-                record(existingResult3, number3);
-            }
+        long dist = (segmentEnd - segmentStart) / 3;
+        long midPoint1 = nextNewLine(segmentStart + dist);
+        long midPoint2 = nextNewLine(segmentStart + dist + dist);
 
-            while (scanner1.hasNext()) {
-                long word = scanner1.getLong();
-                long pos = findDelimiter(word);
-                long wordB = scanner1.getLongAt(scanner1.pos() + 8);
-                long posB = findDelimiter(wordB);
-                record(findResult(word, pos, wordB, posB, scanner1, results, collectedResults), scanNumber(scanner1));
+        Scanner scanner1 = new Scanner(segmentStart, midPoint1);
+        Scanner scanner2 = new Scanner(midPoint1 + 1, midPoint2);
+        Scanner scanner3 = new Scanner(midPoint2 + 1, segmentEnd);
+        while (true) {
+            if (!scanner1.hasNext()) {
+                break;
             }
-            while (scanner2.hasNext()) {
-                long word = scanner2.getLong();
-                long pos = findDelimiter(word);
-                long wordB = scanner2.getLongAt(scanner2.pos() + 8);
-                long posB = findDelimiter(wordB);
-                record(findResult(word, pos, wordB, posB, scanner2, results, collectedResults), scanNumber(scanner2));
+            if (!scanner2.hasNext()) {
+                break;
             }
-            while (scanner3.hasNext()) {
-                long word = scanner3.getLong();
-                long pos = findDelimiter(word);
-                long wordB = scanner3.getLongAt(scanner3.pos() + 8);
-                long posB = findDelimiter(wordB);
-                record(findResult(word, pos, wordB, posB, scanner3, results, collectedResults), scanNumber(scanner3));
+            if (!scanner3.hasNext()) {
+                break;
             }
+            long word1 = scanner1.getLong();
+            long word2 = scanner2.getLong();
+            long word3 = scanner3.getLong();
+            long delimiterMask1 = findDelimiter(word1);
+            long delimiterMask2 = findDelimiter(word2);
+            long delimiterMask3 = findDelimiter(word3);
+            long word1b = scanner1.getLongAt(scanner1.pos() + 8);
+            long word2b = scanner2.getLongAt(scanner2.pos() + 8);
+            long word3b = scanner3.getLongAt(scanner3.pos() + 8);
+            long delimiterMask1b = findDelimiter(word1b);
+            long delimiterMask2b = findDelimiter(word2b);
+            long delimiterMask3b = findDelimiter(word3b);
+            Result existingResult1 = findResult(word1, delimiterMask1, word1b, delimiterMask1b, scanner1, results, collectedResults);
+            Result existingResult2 = findResult(word2, delimiterMask2, word2b, delimiterMask2b, scanner2, results, collectedResults);
+            Result existingResult3 = findResult(word3, delimiterMask3, word3b, delimiterMask3b, scanner3, results, collectedResults);
+            long number1 = scanNumber(scanner1);
+            long number2 = scanNumber(scanner2);
+            long number3 = scanNumber(scanner3);
+            record(existingResult1, number1);
+            record(existingResult2, number2);
+            record(existingResult3, number3);
+        }
+
+        while (scanner1.hasNext()) {
+            long word = scanner1.getLong();
+            long pos = findDelimiter(word);
+            long wordB = scanner1.getLongAt(scanner1.pos() + 8);
+            long posB = findDelimiter(wordB);
+            record(findResult(word, pos, wordB, posB, scanner1, results, collectedResults), scanNumber(scanner1));
+        }
+        while (scanner2.hasNext()) {
+            long word = scanner2.getLong();
+            long pos = findDelimiter(word);
+            long wordB = scanner2.getLongAt(scanner2.pos() + 8);
+            long posB = findDelimiter(wordB);
+            record(findResult(word, pos, wordB, posB, scanner2, results, collectedResults), scanNumber(scanner2));
+        }
+        while (scanner3.hasNext()) {
+            long word = scanner3.getLong();
+            long pos = findDelimiter(word);
+            long wordB = scanner3.getLongAt(scanner3.pos() + 8);
+            long posB = findDelimiter(wordB);
+            record(findResult(word, pos, wordB, posB, scanner3, results, collectedResults), scanNumber(scanner3));
+        }
+
+        if (parsed != null) {
+            parsed.end();
+        }
+        if (parsed != null && parsed.shouldCommit()) {
+            parsed.bytes = segmentEnd + 1 - segmentStart;
+            parsed.rows = countLines(segmentStart, segmentEnd + 1);
+            parsed.newKeys = collectedResults.size() - keysBefore;
+            parsed.commit();
         }
     }
 
@@ -237,6 +356,7 @@ public class CalculateAverage_thomaswue {
 
         // Final calculation for index into hash table.
         int tableIndex = hashToIndex(hash, results);
+        int probes = 0;
         outer: while (true) {
             existingResult = results[tableIndex];
             if (existingResult == null) {
@@ -248,6 +368,9 @@ public class CalculateAverage_thomaswue {
                 if (scanner.getLongAt(existingResult.nameAddress + i) != scanner.getLongAt(nameAddress + i)) {
                     // Collision error, try next.
                     tableIndex = (tableIndex + 31) & (results.length - 1);
+                    if (JfrEvents.ENABLED && ++probes == JfrEvents.PROBE_OVERFLOW) {
+                        probeOverflow(probes, results.length, nameLength);
+                    }
                     continue outer;
                 }
             }
@@ -259,6 +382,9 @@ public class CalculateAverage_thomaswue {
             else {
                 // Collision error, try next.
                 tableIndex = (tableIndex + 31) & (results.length - 1);
+                if (JfrEvents.ENABLED && ++probes == JfrEvents.PROBE_OVERFLOW) {
+                    probeOverflow(probes, results.length, nameLength);
+                }
             }
         }
         return existingResult;
@@ -280,6 +406,36 @@ public class CalculateAverage_thomaswue {
         return prev;
     }
 
+    // Only for JFR events, not on the hot path.
+    private static long countLines(long start, long end) {
+        long lines = 0;
+        for (long address = start; address < end; address++) {
+            if (Scanner.UNSAFE.getByte(address) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static void chunkClaimed(long offset, long size) {
+        JfrEvents.ChunkClaimed event = new JfrEvents.ChunkClaimed();
+        if (event.shouldCommit()) {
+            event.offset = offset;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    private static void probeOverflow(int probes, int tableSize, int nameLength) {
+        JfrEvents.ProbeOverflow event = new JfrEvents.ProbeOverflow();
+        if (event.shouldCommit()) {
+            event.probes = probes;
+            event.tableSize = tableSize;
+            event.nameLength = nameLength;
+            event.commit();
+        }
+    }
+
     private static long scanNumber(Scanner scanPtr) {
         long numberWord = scanPtr.getLongAt(scanPtr.pos() + 1);
         int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
@@ -337,7 +493,14 @@ public class CalculateAverage_thomaswue {
         else if (totalLength < 16) {
             r.secondNameWord = r.secondNameWord & MASK1[totalLength - 9];
         }
-        r.nameAddress = nameAddress;
+        if (COPY_NAMES) {
+            // The window is unmapped later; the copy is padded for the word-wise comparisons
+            r.nameAddress = Scanner.UNSAFE.allocateMemory(totalLength + 16);
+            Scanner.UNSAFE.copyMemory(nameAddress, r.nameAddress, totalLength);
+        }
+        else {
+            r.nameAddress = nameAddress;
+        }
         collectedResults.add(r);
         return r;
     }
@@ -19,14 +19,24 @@ import sun.misc.Unsafe;
 
 import java.io.IOException;
 import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -49,10 +59,12 @@ public class CalculateAverage_vaidhy<I, T> {
         private final long[] hashes;
 
         private final int twoPow;
+        private final boolean copyKeys;
         private int next = -1;
 
-        PrimitiveHashMap(int twoPow) {
+        PrimitiveHashMap(int twoPow, boolean copyKeys) {
             this.twoPow = twoPow;
+            this.copyKeys = copyKeys;
             this.entries = new HashEntry[1 << twoPow];
             this.hashes = new long[1 << twoPow];
             for (int i = 0; i < entries.length; i++) {
@@ -88,7 +100,7 @@ public class CalculateAverage_vaidhy<I, T> {
 
             if (hashEntry == 0) {
                 HashEntry entry = entries[i];
-                entry.startAddress = startAddress;
+                entry.startAddress = copyKeys ? copyKey(startAddress, lookupLength) : startAddress;
                 entry.keyLength = lookupLength;
                 hashes[i] = hash;
                 entry.suffix = suffix;
@@ -122,7 +134,7 @@ public class CalculateAverage_vaidhy<I, T> {
                 }
                 if (hashEntry == 0) {
                     HashEntry entry = entries[i];
-                    entry.startAddress = startAddress;
+                    entry.startAddress = copyKeys ? copyKey(startAddress, lookupLength) : startAddress;
                     entry.keyLength = lookupLength;
                     hashes[i] = hash;
                     entry.suffix = suffix;
@@ -140,6 +152,13 @@ public class CalculateAverage_vaidhy<I, T> {
             return null;
         }
 
+        // The memory of the key goes away with its window, keep it until the outputs are combined
+        private static long copyKey(long startAddress, long length) {
+            long copy = UNSAFE.allocateMemory(Math.max(length, 8));
+            UNSAFE.copyMemory(startAddress, copy, length);
+            return copy;
+        }
+
         private static boolean compareEntryKeys(long startAddress, long endAddress, long entryStartAddress) {
             long entryIndex = entryStartAddress;
             long lookupIndex = startAddress;
@@ -235,10 +254,42 @@ public class CalculateAverage_vaidhy<I, T> {
     private final Supplier<MapReduce<I>> chunkProcessCreator;
     private final Function<List<I>, T> reducer;
 
+    // A line is at most 100 bytes of name, ';', 5 bytes of temperature and '\n'
+    private static final long MAX_LINE_LENGTH = 128;
+
+    // Workers read a long at a time, also past the last line they need
+    private static final long PADDING = 8;
+
     interface FileService {
         long length();
 
-        long address();
+        /**
+         * Bytes a worker reads at once, the whole chunk if the file is already in memory.
+         */
+        long windowSize();
+
+        /**
+         * Whether addresses returned by readers stay valid until the end, so that keys can point into them.
+         */
+        boolean stable();
+
+        /**
+         * A reader for one worker, which reads from offset to offset + size, readers are not thread-safe.
+         */
+        Reader reader(long offset, long size) throws IOException;
+    }
+
+    interface Reader extends AutoCloseable {
+
+        /**
+         * Makes the bytes from offset to offset + size readable and returns the address of offset. The range is clipped
+         * to the end of the file, and {@link #PADDING} bytes after it must be safe to read. The bytes stay readable
+         * until the next call or close, unless the file service is {@link FileService#stable()}.
+         */
+        long read(long offset, long size) throws IOException;
+
+        @Override
+        void close();
     }
 
     CalculateAverage_vaidhy(FileService fileService,
@@ -262,9 +313,9 @@ public class CalculateAverage_vaidhy<I, T> {
                 .allocate(8)
                 .order(ByteOrder.LITTLE_ENDIAN);
 
-        public LineStream(FileService fileService, long offset, long chunkSize) {
-            long fileStart = fileService.address();
-            this.fileEnd = fileStart + fileService.length();
+        // fileStart is where offset 0 would be, only the chunk itself has to be readable
+        public LineStream(long fileStart, long fileLength, long offset, long chunkSize) {
+            this.fileEnd = fileStart + fileLength;
             this.chunkEnd = fileStart + offset + chunkSize;
             this.position = fileStart + offset;
             this.hash = 0;
@@ -345,14 +396,30 @@ public class CalculateAverage_vaidhy<I, T> {
         return (match - START_BYTE_INDICATOR) & ((~match) & END_BYTE_INDICATOR);
     }
 
-    private void bigWorker(long offset, long chunkSize, MapReduce<I> lineConsumer) {
-        long chunkStart = offset + fileService.address();
-        long chunkEnd = chunkStart + chunkSize;
-        long fileEnd = fileService.address() + fileService.length();
-        long stopPoint = Math.min(chunkEnd + 1, fileEnd);
+    private void bigWorker(long offset, long chunkSize, MapReduce<I> lineConsumer) throws IOException {
+        long fileLength = fileService.length();
+        // Lines starting at chunkEnd belong to this chunk, the next one skips its first line
+        long stop = Math.min(offset + chunkSize + 1, fileLength);
+        long windowSize = Math.max(fileService.windowSize(), 4096);
+
+        try (Reader reader = fileService.reader(offset, stop - offset + MAX_LINE_LENGTH)) {
+            boolean skip = offset != 0;
+            for (long position = offset; position < stop;) {
+                long windowEnd = stop - position <= windowSize ? stop : position + windowSize;
+                long fileStart = reader.read(position, windowEnd - position + MAX_LINE_LENGTH) - position;
+                position = parseLines(fileStart, position, windowEnd, skip, lineConsumer) - fileStart;
+                skip = false;
+            }
+        }
+    }
 
-        boolean skip = offset != 0;
-        for (long position = chunkStart; position < stopPoint;) {
+    // Parses the lines starting before stop, returns the offset of the line after them
+    private long parseLines(long fileStart, long offset, long stop, boolean skip, MapReduce<I> lineConsumer) {
+        long chunkStart = fileStart + offset;
+        long stopPoint = fileStart + stop;
+
+        long position = chunkStart;
+        while (position < stopPoint) {
             if (skip) {
                 long data = UNSAFE.getLong(position);
                 long newLineMask = findByteOctet(data, NEW_LINE_DETECTION);
@@ -416,10 +483,17 @@ public class CalculateAverage_vaidhy<I, T> {
 
             lineConsumer.process(stationStart, stationEnd, hash, suffix, temperature);
         }
+        return position;
     }
 
-    private void smallWorker(long offset, long chunkSize, MapReduce<I> lineConsumer) {
-        LineStream lineStream = new LineStream(fileService, offset, chunkSize);
+    private void smallWorker(long offset, long chunkSize, MapReduce<I> lineConsumer) throws IOException {
+        try (Reader reader = fileService.reader(offset, chunkSize + 1 + MAX_LINE_LENGTH)) {
+            long fileStart = reader.read(offset, chunkSize + 1 + MAX_LINE_LENGTH) - offset;
+            smallWorker(new LineStream(fileStart, fileService.length(), offset, chunkSize), offset, lineConsumer);
+        }
+    }
+
+    private void smallWorker(LineStream lineStream, long offset, MapReduce<I> lineConsumer) {
 
         if (offset != 0) {
             if (lineStream.hasNext()) {
@@ -499,6 +573,9 @@ public class CalculateAverage_vaidhy<I, T> {
         return reducer.apply(summariesDone);
     }
 
+    /**
+     * Maps the whole file once, fastest when it is in the page cache.
+     */
     static class DiskFileService implements FileService {
         private final long fileSize;
         private final long mappedAddress;
@@ -517,15 +594,395 @@ public class CalculateAverage_vaidhy<I, T> {
         }
 
         @Override
-        public long address() {
-            return mappedAddress;
+        public long windowSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean stable() {
+            return true;
+        }
+
+        @Override
+        public Reader reader(long offset, long size) {
+            return new Reader() {
+                @Override
+                public long read(long offset, long size) {
+                    return mappedAddress + offset;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Maps one window at a time and unmaps it before the next, so that only the windows being parsed take memory.
+     */
+    static class WindowedFileService implements FileService {
+        private final FileChannel fileChannel;
+        private final long fileSize;
+        private final long windowSize;
+
+        WindowedFileService(String fileName, long windowSize) throws IOException {
+            this.fileChannel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+            this.fileSize = fileChannel.size();
+            this.windowSize = windowSize;
+        }
+
+        @Override
+        public long length() {
+            return fileSize;
+        }
+
+        @Override
+        public long windowSize() {
+            return windowSize;
+        }
+
+        @Override
+        public boolean stable() {
+            return false;
+        }
+
+        @Override
+        public Reader reader(long offset, long size) {
+            return new Reader() {
+                private Arena window;
+
+                @Override
+                public long read(long offset, long size) throws IOException {
+                    close();
+                    window = Arena.ofConfined();
+                    return fileChannel.map(FileChannel.MapMode.READ_ONLY, offset,
+                            Math.min(size + PADDING, fileSize - offset), window).address();
+                }
+
+                @Override
+                public void close() {
+                    if (window != null) {
+                        window.close();
+                        window = null;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Copies each window into a buffer of the reader. Buffers are pooled, there are as many as workers reading at
+     * the same time.
+     */
+    abstract static class BufferedFileService implements FileService {
+        private static final long ALIGNMENT = 4096;
+
+        private final long fileSize;
+        private final long windowSize;
+        private final ConcurrentLinkedQueue<MemorySegment> buffers = new ConcurrentLinkedQueue<>();
+
+        BufferedFileService(long fileSize, long windowSize) {
+            this.fileSize = fileSize;
+            this.windowSize = windowSize;
+        }
+
+        /**
+         * Reads the file from offset into the buffer until it is full or the file ends, returns the bytes read.
+         */
+        abstract long read(MemorySegment buffer, long offset) throws IOException;
+
+        /**
+         * Offsets and sizes of reads have to be multiples of this.
+         */
+        long alignment() {
+            return 1;
+        }
+
+        @Override
+        public long length() {
+            return fileSize;
+        }
+
+        @Override
+        public long windowSize() {
+            return windowSize;
+        }
+
+        @Override
+        public boolean stable() {
+            return false;
+        }
+
+        @Override
+        public Reader reader(long offset, long size) {
+            return new Reader() {
+                private MemorySegment buffer = buffers.poll();
+
+                @Override
+                public long read(long offset, long size) throws IOException {
+                    long alignedOffset = offset - offset % alignment();
+                    long alignedSize = roundUp(offset - alignedOffset + Math.min(size, fileSize - offset), alignment());
+                    if (buffer == null || buffer.byteSize() < alignedSize + PADDING) {
+                        // Room for a whole window, whatever its alignment, so that pooled buffers fit all reads
+                        long bufferSize = Math.max(alignedSize, windowSize + MAX_LINE_LENGTH + 2 * alignment()) + PADDING;
+                        buffer = Arena.global().allocate(roundUp(bufferSize, ALIGNMENT), ALIGNMENT);
+                    }
+                    long bytes = BufferedFileService.this.read(buffer.asSlice(0, alignedSize), alignedOffset);
+                    buffer.asSlice(bytes, PADDING).fill((byte) 0);
+                    return buffer.address() + offset - alignedOffset;
+                }
+
+                @Override
+                public void close() {
+                    if (buffer != null) {
+                        buffers.add(buffer);
+                        buffer = null;
+                    }
+                }
+            };
+        }
+
+        private static long roundUp(long value, long alignment) {
+            return (value + alignment - 1) / alignment * alignment;
+        }
+    }
+
+    /**
+     * Reads windows with pread, large sequential reads beat the page faults of mmap when the file is not cached.
+     */
+    static class PreadFileService extends BufferedFileService {
+        private final FileChannel fileChannel;
+
+        PreadFileService(String fileName, long windowSize) throws IOException {
+            this(FileChannel.open(Path.of(fileName), StandardOpenOption.READ), windowSize);
+        }
+
+        private PreadFileService(FileChannel fileChannel, long windowSize) throws IOException {
+            super(fileChannel.size(), windowSize);
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        long read(MemorySegment buffer, long offset) throws IOException {
+            ByteBuffer byteBuffer = buffer.asByteBuffer();
+            while (byteBuffer.hasRemaining()) {
+                if (fileChannel.read(byteBuffer, offset + byteBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            return byteBuffer.position();
+        }
+    }
+
+    /**
+     * Reads windows with pread on a file opened with O_DIRECT, through the FFM API as Java has no way to open one.
+     * The reads bypass the page cache, so they neither depend on what is cached nor evict anything. Linux only.
+     */
+    static class DirectFileService extends BufferedFileService {
+        private static final long BLOCK_SIZE = 4096;
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+        private static final VarHandle ERRNO = CALL_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+        private static final MethodHandle OPEN = LINKER.downcallHandle(
+                LINKER.defaultLookup().find("open").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT),
+                Linker.Option.firstVariadicArg(2), Linker.Option.captureCallState("errno"));
+        private static final MethodHandle PREAD = LINKER.downcallHandle(
+                LINKER.defaultLookup().find("pread").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG),
+                Linker.Option.captureCallState("errno"));
+
+        private final int fd;
+
+        DirectFileService(String fileName, long windowSize) throws IOException {
+            super(Files.size(Path.of(fileName)), windowSize);
+            if (!System.getProperty("os.name").equals("Linux")) {
+                throw new UnsupportedOperationException("O_DIRECT is only supported on Linux");
+            }
+            // O_RDONLY | O_DIRECT, which differs between architectures
+            int flags = System.getProperty("os.arch").equals("aarch64") ? 0x10000 : 0x4000;
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment callState = arena.allocate(CALL_STATE);
+                this.fd = (int) OPEN.invokeExact(callState, arena.allocateUtf8String(fileName), flags, 0);
+                if (fd < 0) {
+                    throw new IOException(STR."Cannot open \{fileName} with O_DIRECT, errno \{(int) ERRNO.get(callState)}");
+                }
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        long alignment() {
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        long read(MemorySegment buffer, long offset) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment callState = arena.allocate(CALL_STATE);
+                long total = 0;
+                while (total < buffer.byteSize()) {
+                    long bytes = (long) PREAD.invokeExact(callState, fd, buffer.asSlice(total), buffer.byteSize() - total, offset + total);
+                    if (bytes < 0) {
+                        throw new IOException(STR."pread with O_DIRECT failed, errno \{(int) ERRNO.get(callState)}");
+                    }
+                    if (bytes == 0) {
+                        break;
+                    }
+                    total += bytes;
+                }
+                return total;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads windows through an io_uring, a few windows ahead of the worker, so that it parses one window while the
+     * kernel reads the next ones. Where io_uring is not available, e.g. in containers whose seccomp profile blocks it,
+     * {@link #open} falls back to pread.
+     */
+    static class UringFileService implements FileService {
+        private final Path file;
+        private final long fileSize;
+        private final long windowSize;
+        private final int readAhead;
+
+        static FileService open(String fileName, long windowSize, int readAhead) throws IOException {
+            try (IoUring ring = new IoUring(Path.of(fileName))) {
+                return new UringFileService(Path.of(fileName), windowSize, readAhead);
+            }
+            catch (IOException e) {
+                System.err.println(STR."\{e.getMessage()}, reading with pread");
+                return new PreadFileService(fileName, windowSize);
+            }
+        }
+
+        private UringFileService(Path file, long windowSize, int readAhead) throws IOException {
+            this.file = file;
+            this.fileSize = Files.size(file);
+            this.windowSize = windowSize;
+            this.readAhead = readAhead;
+        }
+
+        @Override
+        public long length() {
+            return fileSize;
+        }
+
+        @Override
+        public long windowSize() {
+            return windowSize;
+        }
+
+        @Override
+        public boolean stable() {
+            return false;
+        }
+
+        @Override
+        public Reader reader(long offset, long size) throws IOException {
+            return new UringReader(offset, Math.min(offset + size, fileSize));
+        }
+
+        private class UringReader implements Reader {
+            private final long end;
+            private final long bufferSize;
+            private final Arena arena = Arena.ofConfined();
+            private final MemorySegment[] buffers;
+            private final long[] starts;
+            private final IoUring ring;
+            // Buffers being read, in the order of the file
+            private final ArrayDeque<Integer> reading = new ArrayDeque<>();
+            private final ArrayDeque<Integer> free = new ArrayDeque<>();
+            private int current = -1;
+
+            UringReader(long offset, long end) throws IOException {
+                this.end = end;
+                // A window read k windows ahead may be asked for up to k lines later than it starts
+                this.bufferSize = Math.min(windowSize, end - offset) + (readAhead + 2) * MAX_LINE_LENGTH;
+                this.buffers = new MemorySegment[(int) Math.max(1, Math.min(readAhead + 1, (end - offset + windowSize - 1) / windowSize))];
+                this.starts = new long[buffers.length];
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = arena.allocate(bufferSize + PADDING, 4096);
+                    free.add(i);
+                }
+                try {
+                    this.ring = new IoUring(file, buffers);
+                }
+                catch (IOException e) {
+                    arena.close();
+                    throw e;
+                }
+            }
+
+            @Override
+            public long read(long offset, long size) throws IOException {
+                if (current != -1) {
+                    free.add(current);
+                    current = -1;
+                }
+                long readEnd = Math.min(offset + size, fileSize);
+
+                // Normally the first buffer has it, anything before that is of no use anymore
+                long bytes = 0;
+                while (current == -1 && !reading.isEmpty()) {
+                    int buffer = reading.poll();
+                    bytes = ring.complete(buffer);
+                    if (starts[buffer] <= offset && starts[buffer] + bytes >= readEnd) {
+                        current = buffer;
+                    }
+                    else {
+                        free.add(buffer);
+                    }
+                }
+                if (current == -1) {
+                    current = free.poll();
+                    starts[current] = offset;
+                    ring.read(current, 0, offset, readEnd - offset);
+                    bytes = ring.complete(current);
+                }
+                buffers[current].asSlice(bytes, PADDING).fill((byte) 0);
+
+                // The worker asks for the next window where the last line of this one ends, or a little later
+                for (long start = offset + (reading.size() + 1) * windowSize; !free.isEmpty() && start < end; start += windowSize) {
+                    int buffer = free.poll();
+                    starts[buffer] = start;
+                    ring.read(buffer, 0, start, Math.min(bufferSize, fileSize - start));
+                    reading.add(buffer);
+                }
+                ring.submit();
+                return buffers[current].address() + offset - starts[current];
+            }
+
+            @Override
+            public void close() {
+                ring.close();
+                arena.close();
+            }
         }
     }
 
     private static class ChunkProcessorImpl implements MapReduce<PrimitiveHashMap> {
 
         // 1 << 14 > 10,000 so it works
-        private final PrimitiveHashMap statistics = new PrimitiveHashMap(15);
+        private final PrimitiveHashMap statistics;
+
+        ChunkProcessorImpl(boolean copyKeys) {
+            this.statistics = new PrimitiveHashMap(15, copyKeys);
+        }
 
         @Override
         public void process(long keyStartAddress, long keyEndAddress, long hash, long suffix, int temperature) {
@@ -540,11 +997,44 @@ public class CalculateAverage_vaidhy<I, T> {
     }
 
     public static void main(String[] args) throws IOException {
-        DiskFileService diskFileService = new DiskFileService(FILE);
+        // mmap: map the whole file, window: map windowSizeBits at a time, pread: read into buffers,
+        // direct: read into buffers with O_DIRECT, uring: read readAhead windows ahead through io_uring
+        String io = "mmap";
+        int windowSizeBits = 24;
+        int readAhead = 4;
+
+        for (String arg : args) {
+            String key = arg.substring(0, arg.indexOf('=')).trim();
+            String value = arg.substring(key.length() + 1).trim();
+            switch (key) {
+                case "io":
+                    io = value;
+                    break;
+                case "windowSizeBits":
+                    windowSizeBits = Integer.parseInt(value);
+                    break;
+                case "readAhead":
+                    readAhead = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
 
+        long windowSize = 1L << Math.max(windowSizeBits, 12);
+        FileService fileService = switch (io) {
+            case "mmap" -> new DiskFileService(FILE);
+            case "window" -> new WindowedFileService(FILE, windowSize);
+            case "pread" -> new PreadFileService(FILE, windowSize);
+            case "direct" -> new DirectFileService(FILE, windowSize);
+            case "uring" -> UringFileService.open(FILE, windowSize, readAhead);
+            default -> throw new IllegalArgumentException("Unknown io: " + io);
+        };
+
+        boolean copyKeys = !fileService.stable();
         CalculateAverage_vaidhy<PrimitiveHashMap, Map<String, IntSummaryStatistics>> calculateAverageVaidhy = new CalculateAverage_vaidhy<>(
-                diskFileService,
-                ChunkProcessorImpl::new,
+                fileService,
+                () -> new ChunkProcessorImpl(copyKeys),
                 CalculateAverage_vaidhy::combineOutputs);
 
         int proc = Runtime.getRuntime().availableProcessors();
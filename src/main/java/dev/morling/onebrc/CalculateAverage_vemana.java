@@ -17,6 +17,7 @@ package dev.morling.onebrc;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -24,7 +25,6 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -230,18 +230,21 @@ public class CalculateAverage_vemana {
         // - hashtableSizeBits = \{hashtableSizeBits}
         // """);
 
-        System.out.println(
-                new Runner(
-                        Path.of(inputFile),
-                        nThreads,
-                        chunkSizeBits,
-                        commonChunkFraction,
-                        commonChunkSizeBits,
-                        hashtableSizeBits,
-                        minReservedBytesAtFileTail,
-                        munmapFraction,
-                        fakeAdvance)
-                                .getSummaryStatistics());
+        AggregateResult result = new Runner(
+                Path.of(inputFile),
+                nThreads,
+                chunkSizeBits,
+                commonChunkFraction,
+                commonChunkSizeBits,
+                hashtableSizeBits,
+                minReservedBytesAtFileTail,
+                munmapFraction,
+                fakeAdvance)
+                        .getSummaryStatistics();
+
+        PhaseTracing.start(PhaseTracing.Phase.FORMAT, 0);
+        System.out.println(result);
+        PhaseTracing.end(PhaseTracing.Phase.FORMAT, 0);
 
         Tracing.recordEvent("Final result printed");
     }
@@ -265,6 +268,7 @@ public class CalculateAverage_vemana {
         private final long fileSize;
         private final long maxEndPos; // Treat as if the file ends here
         private final RandomAccessFile raf;
+        private final int shardIdx; // Only for tracing
         private final List<MappedByteBuffer> unclosedBuffers = new ArrayList<>();
 
         // ***************** What this is doing and why *****************
@@ -292,9 +296,10 @@ public class CalculateAverage_vemana {
         private long bufferStart; // byteBuffer's begin coordinate
 
         // Uninitialized; for mutability
-        public ByteRange(RandomAccessFile raf, long maxEndPos) {
+        public ByteRange(RandomAccessFile raf, long maxEndPos, int shardIdx) {
             this.raf = raf;
             this.maxEndPos = maxEndPos;
+            this.shardIdx = shardIdx;
             try {
                 this.fileSize = raf.length();
             }
@@ -378,8 +383,13 @@ public class CalculateAverage_vemana {
                 unclosedBuffers.add(byteBuffer);
             }
             try {
+                PhaseTracing.start(PhaseTracing.Phase.MAP, shardIdx);
                 byteBuffer = raf.getChannel().map(MapMode.READ_ONLY, start, end - start);
+                PhaseTracing.end(PhaseTracing.Phase.MAP, shardIdx, end - start);
                 byteBuffer.order(ByteOrder.nativeOrder());
+                if (InputAdvice.ENABLED) {
+                    InputAdvice.mapped(MemorySegment.ofBuffer(byteBuffer).address(), end - start);
+                }
             }
             catch (IOException e) {
                 throw new RuntimeException(e);
@@ -512,8 +522,6 @@ public class CalculateAverage_vemana {
             executorService.shutdown();
             executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
             Tracing.recordEvent("Executor terminated");
-
-            Tracing.analyzeWorkThreads(nThreads);
             return result;
         }
 
@@ -536,6 +544,8 @@ public class CalculateAverage_vemana {
         private AggregateResult merge(List<Future<AggregateResult>> results)
                 throws ExecutionException, InterruptedException {
             Tracing.recordEvent("Merge start time");
+            // Only one thread merges
+            PhaseTracing.start(PhaseTracing.Phase.MERGE, 0);
             Map<String, Stat> output = null;
             boolean[] isDone = new boolean[results.size()];
             int remaining = results.size();
@@ -558,6 +568,7 @@ public class CalculateAverage_vemana {
                     }
                 }
             }
+            PhaseTracing.end(PhaseTracing.Phase.MERGE, 0);
             Tracing.recordEvent("Merge end time");
             return new AggregateResult(output);
         }
@@ -595,6 +606,7 @@ public class CalculateAverage_vemana {
             Checks.checkArg(fileTailReservedBytes >= 0);
             this.raf = new RandomAccessFile(filePath.toFile(), "r");
             this.fileSize = raf.length();
+            InputAdvice.file(filePath);
             fileTailReservedBytes = fileTailReservedBytes == 0
                     ? 0
                     : consumeToPreviousNewLineExclusive(raf, fileTailReservedBytes);
@@ -635,7 +647,7 @@ public class CalculateAverage_vemana {
 
             this.byteRanges = new ByteRange[shards << 4];
             for (int i = 0; i < shards; i++) {
-                byteRanges[i << 4] = new ByteRange(raf, effectiveFileSize);
+                byteRanges[i << 4] = new ByteRange(raf, effectiveFileSize, i);
             }
 
             this.seqLock = new SeqLock();
@@ -649,7 +661,7 @@ public class CalculateAverage_vemana {
         @Override
         public Optional<ByteRange> fileTailEndWork(int idx) {
             if (idx == 0 && effectiveFileSize < fileSize) {
-                ByteRange chunk = new ByteRange(raf, fileSize);
+                ByteRange chunk = new ByteRange(raf, fileSize, idx);
                 chunk.setRange(
                         effectiveFileSize == 0 ? 0 : effectiveFileSize - 1 /* will consume newline at eFS-1 */,
                         fileSize);
@@ -682,7 +694,9 @@ public class CalculateAverage_vemana {
                     return null;
                 }
                 rangeEnd = rangeStart + commonChunkSize;
+                PhaseTracing.steal(shardIdx);
             }
+            PhaseTracing.bytes(PhaseTracing.Phase.PARSE, shardIdx, Math.min(rangeEnd, effectiveFileSize) - rangeStart);
 
             if (perThreadData[pos + 2] < perThreadData[pos + 3] && perThreadData[pos + 4] > 0) {
                 if (attemptIntermediateClose(shardIdx)) {
@@ -692,6 +706,10 @@ public class CalculateAverage_vemana {
 
             ByteRange chunk = byteRanges[pos];
             chunk.setRange(rangeStart, rangeEnd);
+            if (InputAdvice.ENABLED) {
+                long address = MemorySegment.ofBuffer(chunk.byteBuffer).address();
+                InputAdvice.progress(shardIdx, address + chunk.startInBuf, address + chunk.byteBuffer.capacity());
+            }
             return chunk;
         }
 
@@ -1012,124 +1030,31 @@ public class CalculateAverage_vemana {
         }
     }
 
+    /**
+     * Adapter to {@link PhaseTracing}, run with {@code -Donebrc.tracing} to see the timeline, which is printed at
+     * shutdown so that it includes the merge and the printing of the result.
+     */
     static class Tracing {
 
-        private static final Map<String, ThreadTimingsArray> knownWorkThreadEvents;
-        private static long startTime;
-
-        static {
-            // Maintain the ordering to be chronological in execution
-            // Map.of(..) screws up ordering
-            knownWorkThreadEvents = new LinkedHashMap<>();
-            for (String id : List.of("Shard", "Intermediate Cleaner", "Ending Cleaner")) {
-                knownWorkThreadEvents.put(id, new ThreadTimingsArray(id, 1 << 6 << 1));
-            }
-        }
-
-        static void analyzeWorkThreads(int nThreads) {
-            for (ThreadTimingsArray array : knownWorkThreadEvents.values()) {
-                errPrint(array.analyze(nThreads));
-            }
-        }
-
         static void recordAppStart() {
-            startTime = System.nanoTime();
+            PhaseTracing.event("App start");
         }
 
         static void recordEvent(String event) {
-            printEvent(event, System.nanoTime());
+            PhaseTracing.event(event);
         }
 
         static void recordWorkEnd(String id, int threadId) {
-            knownWorkThreadEvents.get(id).recordEnd(threadId);
+            PhaseTracing.end(phase(id), threadId);
         }
 
         static void recordWorkStart(String id, int threadId) {
-            knownWorkThreadEvents.get(id).recordStart(threadId);
+            PhaseTracing.start(phase(id), threadId);
         }
 
-        /////////////////////////////////////////////////////////////////////////////////////////////////
-
-        private static void errPrint(String message) {
-            System.err.println(message);
-        }
-
-    private static void printEvent(String message, long nanoTime) {
-      errPrint(STR."\{message} = \{(nanoTime - startTime) / 1_000_000}ms");
-    }
-
-        public static class ThreadTimingsArray {
-
-            private static String toString(long[] array) {
-                return Arrays.stream(array)
-                        .map(x -> x < 0 ? -1 : x)
-                        .mapToObj(x -> String.format("%6d", x))
-                        .collect(Collectors.joining(", ", "[ ", " ]"));
-            }
-
-            private final String id;
-            private final long[] timestamps;
-            private boolean hasData = false;
-
-            public ThreadTimingsArray(String id, int maxSize) {
-                this.timestamps = new long[maxSize];
-                this.id = id;
-            }
-
-      public String analyze(int nThreads) {
-        if (!hasData) {
-          return "%s has no thread timings data".formatted(id);
-        }
-        Checks.checkArg(nThreads <= timestamps.length);
-        long minDuration = Long.MAX_VALUE, maxDuration = Long.MIN_VALUE;
-        long minBegin = Long.MAX_VALUE, maxCompletion = Long.MIN_VALUE;
-        long maxBegin = Long.MIN_VALUE, minCompletion = Long.MAX_VALUE;
-
-        long[] durationsMs = new long[nThreads];
-        long[] completionsMs = new long[nThreads];
-        long[] beginMs = new long[nThreads];
-        for (int i = 0; i < nThreads; i++) {
-          long durationNs = timestamps[2 * i + 1] - timestamps[2 * i];
-          durationsMs[i] = durationNs / 1_000_000;
-          completionsMs[i] = (timestamps[2 * i + 1] - startTime) / 1_000_000;
-          beginMs[i] = (timestamps[2 * i] - startTime) / 1_000_000;
-
-          minDuration = Math.min(minDuration, durationNs);
-          maxDuration = Math.max(maxDuration, durationNs);
-
-          minBegin = Math.min(minBegin, timestamps[2 * i] - startTime);
-          maxBegin = Math.max(maxBegin, timestamps[2 * i] - startTime);
-
-          maxCompletion = Math.max(maxCompletion, timestamps[2 * i + 1] - startTime);
-          minCompletion = Math.min(minCompletion, timestamps[2 * i + 1] - startTime);
-        }
-        return STR."""
-        -------------------------------------------------------------------------------------------
-                                       \{id} Stats
-        -------------------------------------------------------------------------------------------
-        Max duration                              = \{maxDuration / 1_000_000} ms
-        Min duration                              = \{minDuration / 1_000_000} ms
-        Timespan[max(end)-min(start)]             = \{(maxCompletion - minBegin) / 1_000_000} ms [\{maxCompletion / 1_000_000} - \{minBegin / 1_000_000} ]
-        Completion Timespan[max(end)-min(end)]    = \{(maxCompletion - minCompletion) / 1_000_000} ms
-        Begin Timespan[max(begin)-min(begin)]     = \{(maxBegin - minBegin) / 1_000_000} ms
-        Average Duration                          = \{Arrays.stream(durationsMs)
-                                                            .average()
-                                                            .getAsDouble()} ms
-        Durations                                 = \{toString(durationsMs)} ms
-        Begin Timestamps                          = \{toString(beginMs)} ms
-        Completion Timestamps                     = \{toString(completionsMs)} ms
-        """;
-      }
-
-            public void recordEnd(int idx) {
-                timestamps[2 * idx + 1] = System.nanoTime();
-                hasData = true;
-            }
-
-            public void recordStart(int idx) {
-                timestamps[2 * idx] = System.nanoTime();
-                hasData = true;
-            }
+        // "Shard" processes the chunks, the cleaners unmap them
+        private static PhaseTracing.Phase phase(String id) {
+            return id.equals("Shard") ? PhaseTracing.Phase.PARSE : PhaseTracing.Phase.UNMAP;
         }
     }
 }
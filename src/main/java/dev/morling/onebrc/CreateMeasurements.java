@@ -16,9 +16,12 @@
 package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class CreateMeasurements {
@@ -35,14 +38,14 @@ public class CreateMeasurements {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--seed=<n>] [--threads=<n>]");
             System.exit(1);
         }
 
-        int size = 0;
+        long size = 0;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Long.parseLong(args[0]);
         }
         catch (NumberFormatException e) {
             System.out.println("Invalid value for <number of records to create>");
@@ -489,8 +492,16 @@ public class CreateMeasurements {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
+        Map<String, String> options = ShardedGenerator.parseOptions(args, 1, "seed", "threads");
+        if (options.containsKey("seed")) {
+            int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            createSeeded(stations, size, Long.parseLong(options.get("seed")), threads);
+            System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+            return;
+        }
+
         try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
-            for (int i = 0; i < size; i++) {
+            for (long i = 0; i < size; i++) {
                 if (i > 0 && i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
                 }
@@ -502,4 +513,28 @@ public class CreateMeasurements {
         }
         System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
     }
+
+    /**
+     * Reproducible variant: the same seed and record count always produce the same file, whatever the number of
+     * threads, see {@link ShardedGenerator}.
+     */
+    private static void createSeeded(List<WeatherStation> stations, long size, long seed, int threads) throws IOException {
+        String[] ids = new String[stations.size()];
+        byte[][] names = new byte[stations.size()][];
+        double[] means = new double[stations.size()];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = stations.get(i).id();
+            names[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            means[i] = stations.get(i).meanTemperature();
+        }
+
+        ShardedGenerator.write(MEASUREMENT_FILE, size, seed, threads, ids, (random, buffer, aggregates) -> {
+            int station = random.nextInt(names.length);
+            int tenths = (int) Math.round(random.nextGaussian(means[station], 10) * 10.0);
+            buffer.put(names[station]).put((byte) ';');
+            ShardedGenerator.putTemperature(buffer, tenths);
+            buffer.put((byte) '\n');
+            aggregates.add(station, tenths);
+        });
+    }
 }
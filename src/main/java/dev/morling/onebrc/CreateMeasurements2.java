@@ -15,15 +15,17 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
-import org.rschwietzke.CheaperCharBuffer;
+import org.rschwietzke.CheaperByteBuffer;
 import org.rschwietzke.FastRandom;
 
 /**
@@ -34,20 +36,23 @@ public class CreateMeasurements2 {
 
     private static final String FILE = "./measurements2.txt";
 
-    static class WeatherStation {
-        final static char[] NUMBERS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+    // the buffer goes to the channel once it holds that many bytes
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    // rows whose random numbers are drawn in one bulk call
+    private static final int BATCH_SIZE = 1024;
 
+    static class WeatherStation {
         final String id;
         final int meanTemperature;
 
-        final char[] firstPart;
-        final FastRandom r = new FastRandom(ThreadLocalRandom.current().nextLong());
+        final byte[] firstPart;
 
         WeatherStation(String id, double meanTemperature) {
             this.id = id;
             this.meanTemperature = (int) meanTemperature;
-            // make it directly copyable
-            this.firstPart = (id + ";").toCharArray();
+            // make it directly copyable, encoded once and not per row
+            this.firstPart = (id + ";").getBytes(StandardCharsets.UTF_8);
         }
 
         /**
@@ -56,27 +61,31 @@ public class CreateMeasurements2 {
          * purpose, the fake numbers here will do it. Less
          *
          * @param buffer the buffer to append to
+         * @param variance a random number from 0 to 209
+         * @return the appended value in tenths of a degree
          */
-        void measurement(final CheaperCharBuffer buffer) {
+        int measurement(final CheaperByteBuffer buffer, final int variance) {
             // fake -10.9 to +10.9 variance without double operations and rounding
             // gives us -10 to +10
-            int m = meanTemperature + (r.nextInt(21) - 10);
-            // gives us a decimal digit 0 to 9 as char
-            char d = NUMBERS[r.nextInt(10)];
+            int m = meanTemperature + (variance / 10 - 10);
+            // gives us a decimal digit 0 to 9
+            int digit = variance % 10;
 
-            // just append, only one number has to be converted and we can do
-            // better... if we watn
+            // just append, the number goes in as ASCII digits without a String
             buffer.append(firstPart, 0, firstPart.length)
-                    .append(String.valueOf(m)).append('.').append(d)
-                    .append('\n');
+                    .appendInt(m).append((byte) '.').append((byte) ('0' + digit))
+                    .append((byte) '\n');
+
+            // the sign of m applies to the decimal digit as well
+            return m < 0 ? m * 10 - digit : m * 10 + digit;
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements2.sh <number of records to create> [--seed=<n>] [--threads=<n>]");
             System.exit(1);
         }
 
@@ -529,95 +538,102 @@ public class CreateMeasurements2 {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        File file = new File(FILE);
+        Map<String, String> options = ShardedGenerator.parseOptions(args, 1, "seed", "threads");
+        if (options.containsKey("seed")) {
+            int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            createSeeded(stations, size, Long.parseLong(options.get("seed")), threads);
+            System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
+            return;
+        }
+
+        Path file = Path.of(FILE);
+        String[] ids = new String[stations.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = stations.get(i).id;
+        }
+        // what we emit, so the expected result needs no second pass over the file
+        MeasurementAggregates aggregates = new MeasurementAggregates(ids);
 
         // break the loop and unroll it manually
         int strideSize = 50_000_000;
         int outer = size / strideSize;
         int remainder = size - (outer * strideSize);
 
-        try (final BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // reuse buffer across strides
+            final CheaperByteBuffer sb = new CheaperByteBuffer(WRITE_BUFFER_SIZE + BATCH_SIZE * 128);
+
             for (int i = 0; i < outer; i++) {
-                produce(bw, stations, strideSize);
+                produce(channel, sb, stations, strideSize, aggregates);
 
                 // we avoid a modulo if here and use the stride size to print and update
                 System.out.println("Wrote %,d measurements in %s ms".formatted((i + 1) * strideSize, System.currentTimeMillis() - start));
             }
             // there might be a rest
-            produce(bw, stations, remainder);
+            produce(channel, sb, stations, remainder, aggregates);
 
             // write fully before taking measurements
-            bw.flush();
+            sb.drainTo(channel);
+            aggregates.writeResult(file);
             System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
         }
     }
 
-    private static void produce(BufferedWriter bw, List<WeatherStation> stations, int count) throws IOException {
+    private static void produce(FileChannel channel, CheaperByteBuffer sb, List<WeatherStation> stations, int count, MeasurementAggregates aggregates)
+            throws IOException {
         final int stationCount = stations.size();
-        final int rest = count % 8;
 
         // use a fast ranodm impl without atomics to be able to utilize the cpu better
-        // and avoid sideeffects, FastRandom is very fake random and does not have a state
-        final FastRandom r1 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r2 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r3 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r4 = new FastRandom(ThreadLocalRandom.current().nextLong());
+        // and avoid sideeffects, FastRandom is very fake random and does not have a state;
+        // the bulk calls fill whole arrays at once, with the Vector API if available
+        final FastRandom r = FastRandom.forBulk(ThreadLocalRandom.current().nextLong());
+        final int[] stationIndexes = new int[BATCH_SIZE];
+        // 21 variations of the mean times 10 decimal digits, see WeatherStation.measurement
+        final int[] variances = new int[BATCH_SIZE];
 
-        // write to a fix buffer first, don't create strings ever
-        // reuse buffer
-        final CheaperCharBuffer sb = new CheaperCharBuffer(200);
+        for (int i = 0; i < count; i += BATCH_SIZE) {
+            final int rows = Math.min(BATCH_SIZE, count - i);
+            r.nextInts(stationIndexes, 0, rows, stationCount);
+            r.nextInts(variances, 0, rows, 21 * 10);
 
-        // manual loop unroll for less jumps
-        for (int i = 0; i < count; i = i + 8) {
-            {
-                // try to fill teh cpu pipeline as much as possible with
-                // independent operations
-                int s1 = r1.nextInt(stationCount);
-                int s2 = r2.nextInt(stationCount);
-                int s3 = r3.nextInt(stationCount);
-                int s4 = r4.nextInt(stationCount);
-                // get us the ojects one after the other to have the array
-                // in our L1 cache and not push it out with other data
-                var w1 = stations.get(s1);
-                var w2 = stations.get(s2);
-                var w3 = stations.get(s3);
-                var w4 = stations.get(s4);
-                // write our data to our buffer
-                w1.measurement(sb);
-                w2.measurement(sb);
-                w3.measurement(sb);
-                w4.measurement(sb);
-            }
-            {
-                int s1 = r1.nextInt(stationCount);
-                int s2 = r2.nextInt(stationCount);
-                int s3 = r3.nextInt(stationCount);
-                int s4 = r4.nextInt(stationCount);
-                var w1 = stations.get(s1);
-                var w2 = stations.get(s2);
-                var w3 = stations.get(s3);
-                var w4 = stations.get(s4);
-                w1.measurement(sb);
-                w2.measurement(sb);
-                w3.measurement(sb);
-                w4.measurement(sb);
+            for (int j = 0; j < rows; j++) {
+                final int s = stationIndexes[j];
+                aggregates.add(s, stations.get(s).measurement(sb, variances[j]));
             }
-            // write the buffer directly, no intermediate string copy
-            bw.write(sb.data_, 0, sb.length_);
 
-            // reuse buffer, reset only, no cleaning
-            sb.clear();
+            // write the bytes directly, no encoder and no intermediate copy,
+            // draining also resets the buffer for reuse
+            if (sb.length_ >= WRITE_BUFFER_SIZE) {
+                sb.drainTo(channel);
+            }
         }
+    }
 
-        // there might be a rest to write
-        for (int i = 0; i < rest; i++) {
-            sb.clear();
-
-            int s = r1.nextInt(stationCount);
-            var w = stations.get(s);
-            w.measurement(sb);
-
-            bw.write(sb.data_, 0, sb.length_);
+    /**
+     * Reproducible variant with the same faked distribution as {@link WeatherStation#measurement}: the same seed
+     * and record count always produce the same file, whatever the number of threads, see {@link ShardedGenerator}.
+     */
+    private static void createSeeded(List<WeatherStation> stations, long size, long seed, int threads) throws IOException {
+        String[] ids = new String[stations.size()];
+        byte[][] names = new byte[stations.size()][];
+        int[] means = new int[stations.size()];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = stations.get(i).id;
+            names[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            means[i] = stations.get(i).meanTemperature;
         }
+
+        ShardedGenerator.write(Path.of(FILE), size, seed, threads, ids, (random, buffer, aggregates) -> {
+            int station = random.nextInt(names.length);
+            int m = means[station] + (random.nextInt(21) - 10);
+            int d = random.nextInt(10);
+            // "m.d" in tenths, the sign of m applies to the decimal digit as well
+            int tenths = m < 0 ? m * 10 - d : m * 10 + d;
+            buffer.put(names[station]).put((byte) ';');
+            ShardedGenerator.putTemperature(buffer, tenths);
+            buffer.put((byte) '\n');
+            aggregates.add(station, tenths);
+        });
     }
 }
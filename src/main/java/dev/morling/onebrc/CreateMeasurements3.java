@@ -16,61 +16,124 @@
 package dev.morling.onebrc;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 public class CreateMeasurements3 {
 
     public static final int MAX_NAME_LEN = 100;
     public static final int KEYSET_SIZE = 10_000;
 
+    // Keys whose names are generated by one task
+    private static final int NAME_BLOCK_SIZE = 1 << 16;
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements3.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements3.sh <number of records to create> [--keys=<n>] "
+                    + "[--lengths=curve|uniform|short|long|bimodal|<n>] [--seed=<n>] [--threads=<n>]");
             System.exit(1);
         }
-        int size = 0;
+        long size = 0;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Long.parseLong(args[0]);
         }
         catch (NumberFormatException e) {
             System.out.println("Invalid value for <number of records to create>");
             System.out.println("Usage: create_measurements3.sh <number of records to create>");
             System.exit(1);
         }
-        final var weatherStations = generateWeatherStations();
+        Map<String, String> options = ShardedGenerator.parseOptions(args, 1, "keys", "lengths", "seed", "threads");
+        int keys = Integer.parseInt(options.getOrDefault("keys", String.valueOf(KEYSET_SIZE)));
+        NameLengths lengths = NameLengths.of(options.getOrDefault("lengths", "curve"));
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : ThreadLocalRandom.current().nextLong();
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (!options.containsKey("seed")) {
+            System.out.printf("Using seed %d%n", seed);
+        }
+
+        // Split off a stream for the names that does not overlap with the shard seeds drawn from the master seed
+        final var weatherStations = generateWeatherStations(keys, lengths, new SplittableRandom(seed).split(), threads);
         final var start = System.currentTimeMillis();
-        final var rnd = ThreadLocalRandom.current();
-        try (var out = new BufferedWriter(new FileWriter("measurements3.txt"))) {
-            for (int i = 1; i <= size; i++) {
-                var station = weatherStations.get(rnd.nextInt(KEYSET_SIZE));
-                double temp = rnd.nextGaussian(station.avgTemp, 7.0);
-                out.write(station.name);
-                out.write(';');
-                out.write(Double.toString(Math.round(temp * 10.0) / 10.0));
-                out.write('\n');
-                if (i % 50_000_000 == 0) {
-                    System.out.printf("Wrote %,d measurements in %,d ms%n", i, System.currentTimeMillis() - start);
-                }
-            }
+        final String[] ids = new String[keys];
+        final float[] avgTemps = new float[keys];
+        // All names in one array, so a row costs a single cache miss for its name even with millions of keys
+        final int[] nameOffsets = new int[keys + 1];
+        final var nameBytes = new ByteArrayOutputStream(keys * 16);
+        for (int i = 0; i < keys; i++) {
+            ids[i] = weatherStations[i].name;
+            avgTemps[i] = weatherStations[i].avgTemp;
+            nameBytes.writeBytes(ids[i].getBytes(StandardCharsets.UTF_8));
+            nameOffsets[i + 1] = nameBytes.size();
         }
+        final byte[] names = nameBytes.toByteArray();
+        // Rows are formatted as bytes in parallel, the same seed always gives the same file, see ShardedGenerator
+        ShardedGenerator.write(Path.of("measurements3.txt"), size, seed, threads, ids, (random, buffer, aggregates) -> {
+            int station = random.nextInt(keys);
+            int tenths = (int) Math.round(random.nextGaussian(avgTemps[station], 7.0) * 10.0);
+            buffer.put(names, nameOffsets[station], nameOffsets[station + 1] - nameOffsets[station]).put((byte) ';');
+            ShardedGenerator.putTemperature(buffer, tenths);
+            buffer.put((byte) '\n');
+            aggregates.add(station, tenths);
+        });
+        System.out.printf("Wrote %,d measurements in %,d ms%n", size, System.currentTimeMillis() - start);
     }
 
     record WeatherStation(String name, float avgTemp) {
     }
 
-    private static ArrayList<WeatherStation> generateWeatherStations() throws Exception {
+    /**
+     * Distribution of the name lengths in chars; names are cut to {@link #MAX_NAME_LEN} bytes afterwards.
+     */
+    @FunctionalInterface
+    interface NameLengths {
+        int next(RandomGenerator rnd);
+
+        static NameLengths of(String spec) {
+            return switch (spec) {
+                // Use a 7th-order curve to simulate the name length distribution.
+                // It gives us mostly short names, but with large outliers.
+                case "curve" -> rnd -> (int) (4 + 2500 * Math.pow(rnd.nextDouble() - 0.372, 7));
+                case "uniform" -> rnd -> 1 + rnd.nextInt(MAX_NAME_LEN);
+                // Everything fits into a single 8 byte word, or is close to the maximum
+                case "short" -> rnd -> 1 + rnd.nextInt(8);
+                case "long" -> rnd -> MAX_NAME_LEN - rnd.nextInt(8);
+                // Defeats branch prediction on the name length
+                case "bimodal" -> rnd -> rnd.nextBoolean() ? 1 + rnd.nextInt(8) : MAX_NAME_LEN - rnd.nextInt(8);
+                default -> {
+                    int length = Integer.parseInt(spec);
+                    if (length < 1 || length > MAX_NAME_LEN) {
+                        throw new IllegalArgumentException("Name length must be between 1 and " + MAX_NAME_LEN + ": " + spec);
+                    }
+                    yield rnd -> length;
+                }
+            };
+        }
+    }
+
+    /**
+     * Generates {@code keys} unique station names from slices of the concatenated names of the public station list.
+     * The candidates are generated in parallel, blocks of {@link #NAME_BLOCK_SIZE} keys each drawing from their own
+     * random stream; duplicates are then resolved in key order, so the result only depends on the random stream, not on
+     * the number of threads.
+     */
+    private static WeatherStation[] generateWeatherStations(int keys, NameLengths lengths, SplittableRandom rnd, int threads) throws Exception {
         // Use a public list of city names and concatenate them all into a long string,
         // which we'll use as a "source of city name randomness"
         var bigName = new StringBuilder(1 << 20);
-        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv"));) {
+        var latitudes = new ArrayList<Float>();
+        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv"))) {
             skipComments(rows);
             while (true) {
                 var row = rows.readLine();
@@ -78,87 +141,107 @@ public class CreateMeasurements3 {
                     break;
                 }
                 bigName.append(row, 0, row.indexOf(';'));
+                latitudes.add(Float.parseFloat(row.substring(row.indexOf(';') + 1)));
+            }
+        }
+        final var nameSource = bigName.toString();
+
+        final var candidates = new String[keys];
+        final int blocks = (keys + NAME_BLOCK_SIZE - 1) / NAME_BLOCK_SIZE;
+        final var futures = new CompletableFuture<?>[blocks];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int b = 0; b < blocks; b++) {
+                final var blockRnd = rnd.split();
+                final int from = b * NAME_BLOCK_SIZE;
+                final int to = Math.min(keys, from + NAME_BLOCK_SIZE);
+                futures[b] = CompletableFuture.runAsync(() -> {
+                    for (int i = from; i < to; i++) {
+                        candidates[i] = candidateName(nameSource, lengths.next(blockRnd), blockRnd);
+                    }
+                }, executor);
             }
+            CompletableFuture.allOf(futures).join();
+        }
+        finally {
+            executor.shutdown();
         }
-        final var weatherStations = new ArrayList<WeatherStation>();
-        final var names = new HashSet<String>();
+
+        final var weatherStations = new WeatherStation[keys];
+        final var names = new HashSet<String>(keys * 2);
         var minLen = Integer.MAX_VALUE;
         var maxLen = Integer.MIN_VALUE;
-        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv"))) {
-            skipComments(rows);
-            final var nameSource = new StringReader(bigName.toString());
-            final var buf = new char[MAX_NAME_LEN];
-            final var rnd = ThreadLocalRandom.current();
-            final double yOffset = 4;
-            final double factor = 2500;
-            final double xOffset = 0.372;
-            final double power = 7;
-            for (int i = 0; i < KEYSET_SIZE; i++) {
-                var row = rows.readLine();
-                if (row == null) {
-                    break;
-                }
-                // Use a 7th-order curve to simulate the name length distribution.
-                // It gives us mostly short names, but with large outliers.
-                var nameLen = (int) (yOffset + factor * Math.pow(rnd.nextDouble() - xOffset, power));
-                var count = nameSource.read(buf, 0, nameLen);
-                if (count == -1) {
-                    throw new Exception("Name source exhausted");
-                }
-                var nameBuf = new StringBuilder(nameLen);
-                nameBuf.append(buf, 0, nameLen);
-                if (Character.isWhitespace(nameBuf.charAt(0))) {
-                    nameBuf.setCharAt(0, readNonSpace(nameSource));
-                }
-                if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
-                    nameBuf.setCharAt(nameBuf.length() - 1, readNonSpace(nameSource));
-                }
-                var name = nameBuf.toString();
-                while (names.contains(name)) {
-                    nameBuf.setCharAt(rnd.nextInt(nameBuf.length()), readNonSpace(nameSource));
-                    name = nameBuf.toString();
-                }
-                int actualLen;
-                while (true) {
-                    actualLen = name.getBytes(StandardCharsets.UTF_8).length;
-                    if (actualLen <= 100) {
-                        break;
-                    }
-                    nameBuf.deleteCharAt(nameBuf.length() - 1);
-                    if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
-                        nameBuf.setCharAt(nameBuf.length() - 1, readNonSpace(nameSource));
-                    }
-                    name = nameBuf.toString();
+        for (int i = 0; i < keys; i++) {
+            var name = candidates[i];
+            for (int attempt = 1; !names.add(name); attempt++) {
+                var nameBuf = new StringBuilder(name);
+                // Short names can run out of variations, so make them longer every now and then
+                if (attempt % 8 == 0 && nameBuf.length() < MAX_NAME_LEN) {
+                    nameBuf.append(nonSpace(nameSource, rnd));
                 }
-                if (name.indexOf(';') != -1) {
-                    throw new Exception("Station name contains a semicolon!");
+                else {
+                    nameBuf.setCharAt(rnd.nextInt(nameBuf.length()), nonSpace(nameSource, rnd));
                 }
-                names.add(name);
-                minLen = Integer.min(minLen, actualLen);
-                maxLen = Integer.max(maxLen, actualLen);
-                var lat = Float.parseFloat(row.substring(row.indexOf(';') + 1));
-                // Guesstimate mean temperature using cosine of latitude
-                var avgTemp = (float) (30 * Math.cos(Math.toRadians(lat))) - 10;
-                weatherStations.add(new WeatherStation(name, avgTemp));
+                name = finish(nameBuf, nameSource, rnd);
             }
+            int actualLen = name.getBytes(StandardCharsets.UTF_8).length;
+            minLen = Integer.min(minLen, actualLen);
+            maxLen = Integer.max(maxLen, actualLen);
+            // Stations beyond the size of the list reuse its latitudes
+            var lat = latitudes.get(i % latitudes.size());
+            // Guesstimate mean temperature using cosine of latitude
+            var avgTemp = (float) (30 * Math.cos(Math.toRadians(lat))) - 10;
+            weatherStations[i] = new WeatherStation(name, avgTemp);
         }
-        System.out.format("Generated %,d station names with length from %,d to %,d%n", KEYSET_SIZE, minLen, maxLen);
+        System.out.format("Generated %,d station names with length from %,d to %,d%n", keys, minLen, maxLen);
         return weatherStations;
     }
 
+    private static String candidateName(String nameSource, int nameLen, RandomGenerator rnd) {
+        int from = rnd.nextInt(nameSource.length() - MAX_NAME_LEN);
+        var nameBuf = new StringBuilder(nameLen);
+        nameBuf.append(nameSource, from, from + Math.max(1, Math.min(nameLen, MAX_NAME_LEN)));
+        return finish(nameBuf, nameSource, rnd);
+    }
+
+    /**
+     * Makes a valid station name: no surrogates of split-up pairs, no whitespace at either end and at most
+     * {@link #MAX_NAME_LEN} bytes of UTF-8.
+     */
+    private static String finish(StringBuilder nameBuf, String nameSource, RandomGenerator rnd) {
+        for (int i = 0; i < nameBuf.length(); i++) {
+            if (Character.isSurrogate(nameBuf.charAt(i))) {
+                nameBuf.setCharAt(i, nonSpace(nameSource, rnd));
+            }
+        }
+        var name = nameBuf.toString();
+        while (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LEN) {
+            nameBuf.deleteCharAt(nameBuf.length() - 1);
+            name = nameBuf.toString();
+        }
+        if (Character.isWhitespace(nameBuf.charAt(0))) {
+            nameBuf.setCharAt(0, nonSpace(nameSource, rnd));
+        }
+        if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
+            nameBuf.setCharAt(nameBuf.length() - 1, nonSpace(nameSource, rnd));
+        }
+        name = nameBuf.toString();
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LEN) {
+            // A multi-byte char replaced a single-byte one at the end
+            return finish(nameBuf, nameSource, rnd);
+        }
+        return name;
+    }
+
     private static void skipComments(BufferedReader rows) throws IOException {
         while (rows.readLine().startsWith("#")) {
         }
     }
 
-    private static char readNonSpace(StringReader nameSource) throws IOException {
+    private static char nonSpace(String nameSource, RandomGenerator rnd) {
         while (true) {
-            var n = nameSource.read();
-            if (n == -1) {
-                throw new IOException("Name source exhausted");
-            }
-            var ch = (char) n;
-            if (ch != ' ') {
+            var ch = nameSource.charAt(rnd.nextInt(nameSource.length()));
+            if (!Character.isWhitespace(ch) && !Character.isSurrogate(ch)) {
                 return ch;
             }
         }
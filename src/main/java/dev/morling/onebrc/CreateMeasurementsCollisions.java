@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates a measurements file whose station names all land in the same few buckets of one entry's hash table, to
+ * see how it copes with long probe sequences before real data does it. The entry's hash is given as a
+ * {@link BucketFunction}; names are random, optionally sharing a common prefix and suffix, which is all it takes for
+ * hashes that only look at some of the bytes of a name.
+ */
+public class CreateMeasurementsCollisions {
+
+    public static final int MAX_NAME_LEN = 100;
+    public static final int KEYSET_SIZE = 10_000;
+
+    // Candidates tried by one task, each with its own random stream
+    private static final int SEARCH_BLOCK_SIZE = 1 << 20;
+
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements_collisions.sh <number of records to create> "
+                    + "[--hash=thomaswue|serkan_ozal|shipilev|<class name>] [--keys=<n>] [--buckets=<n>] "
+                    + "[--prefix=<n>] [--length=<n>] [--suffix=<n>] [--attempts=<n>] [--seed=<n>] [--threads=<n>]");
+            System.exit(1);
+        }
+        long size = 0;
+        try {
+            size = Long.parseLong(args[0]);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid value for <number of records to create>");
+            System.out.println("Usage: create_measurements_collisions.sh <number of records to create>");
+            System.exit(1);
+        }
+        Map<String, String> options = ShardedGenerator.parseOptions(args, 1, "hash", "keys", "buckets", "prefix", "length", "suffix", "attempts", "seed", "threads");
+        BucketFunction hash = BucketFunction.of(options.getOrDefault("hash", "thomaswue"));
+        int keys = Integer.parseInt(options.getOrDefault("keys", String.valueOf(KEYSET_SIZE)));
+        int buckets = Integer.parseInt(options.getOrDefault("buckets", "64"));
+        int prefix = Integer.parseInt(options.getOrDefault("prefix", "0"));
+        int length = Integer.parseInt(options.getOrDefault("length", "8"));
+        int suffix = Integer.parseInt(options.getOrDefault("suffix", "0"));
+        long attempts = Long.parseLong(options.getOrDefault("attempts", String.valueOf(1L << 32)));
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : ThreadLocalRandom.current().nextLong();
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (!options.containsKey("seed")) {
+            System.out.printf("Using seed %d%n", seed);
+        }
+        if (length < 1 || prefix < 0 || suffix < 0 || prefix + length + suffix > MAX_NAME_LEN) {
+            throw new IllegalArgumentException("Names must have a random part and at most " + MAX_NAME_LEN + " bytes");
+        }
+        if (keys > hash.tableSize()) {
+            throw new IllegalArgumentException("More keys than the " + hash.tableSize() + " buckets of the table");
+        }
+
+        // Split off a stream for the names that does not overlap with the shard seeds drawn from the master seed
+        SplittableRandom nameRnd = new SplittableRandom(seed).split();
+        // The search takes a split per block and may try more blocks with more threads, the temperatures come first
+        SplittableRandom tempRnd = nameRnd.split();
+        NameShape shape = new NameShape(randomBytes(prefix, nameRnd), length, randomBytes(suffix, nameRnd));
+        final String[] ids = findCollisions(hash, shape, keys, buckets, attempts, nameRnd, threads);
+        printProbeLengths(hash, ids);
+
+        final var start = System.currentTimeMillis();
+        final int stations = ids.length;
+        final byte[][] names = new byte[stations][];
+        final float[] avgTemps = new float[stations];
+        for (int i = 0; i < stations; i++) {
+            names[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            avgTemps[i] = (float) tempRnd.nextDouble(-10.0, 30.0);
+        }
+        ShardedGenerator.write(Path.of("measurements_collisions.txt"), size, seed, threads, ids, (random, buffer, aggregates) -> {
+            int station = random.nextInt(stations);
+            int tenths = (int) Math.round(random.nextGaussian(avgTemps[station], 7.0) * 10.0);
+            buffer.put(names[station]).put((byte) ';');
+            ShardedGenerator.putTemperature(buffer, tenths);
+            buffer.put((byte) '\n');
+            aggregates.add(station, tenths);
+        });
+        System.out.printf("Wrote %,d measurements in %,d ms%n", size, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The hash table of an entry, as far as the placement of names is concerned. Implementations need a public no-arg
+     * constructor to be passed by class name, and must be thread-safe.
+     */
+    public interface BucketFunction {
+
+        /**
+         * @return the number of buckets of the table, a power of two
+         */
+        int tableSize();
+
+        /**
+         * @return how far the entry moves on from a bucket taken by another name, odd so that all buckets are reached
+         */
+        default int probeStride() {
+            return 1;
+        }
+
+        /**
+         * @return the bucket probed after the given one
+         */
+        default int nextBucket(int bucket) {
+            return (bucket + probeStride()) & (tableSize() - 1);
+        }
+
+        /**
+         * @param name the UTF-8 bytes of a station name, without the ';'
+         * @return the bucket the entry starts probing at, between 0 and {@link #tableSize()}
+         */
+        int bucket(byte[] name);
+
+        static BucketFunction of(String spec) throws ReflectiveOperationException {
+            return switch (spec) {
+                case "thomaswue" -> new ThomasWue();
+                case "serkan_ozal" -> new SerkanOzal();
+                case "shipilev" -> new Shipilev();
+                default -> Class.forName(spec).asSubclass(BucketFunction.class).getDeclaredConstructor().newInstance();
+            };
+        }
+    }
+
+    /**
+     * {@code CalculateAverage_thomaswue}: the first two words of the name, masked at the ';' if it is within them,
+     * xor-ed with all further words; {@code HASH_TABLE_SIZE = 1 << 17}, probing every 31st bucket.
+     */
+    static final class ThomasWue implements BucketFunction {
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+        // The masks of the entry, which keep the name and the ';' of the word the ';' is in
+        private static final long[] MASK1 = new long[]{ 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL,
+                0xFFFFFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFFFL };
+        private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+        @Override
+        public int tableSize() {
+            return 1 << 17;
+        }
+
+        @Override
+        public int probeStride() {
+            return 31;
+        }
+
+        @Override
+        public int bucket(byte[] name) {
+            // What the entry reads from the file: the name, the ';' and whatever follows it, which the masks cut off
+            byte[] row = Arrays.copyOf(name, (name.length + 1 + 7 & ~7) + 8);
+            row[name.length] = ';';
+            long word = (long) LONGS.get(row, 0);
+            long word2 = (long) LONGS.get(row, 8);
+            long delimiterMask = findDelimiter(word);
+            long delimiterMask2 = findDelimiter(word2);
+            long hash;
+            if ((delimiterMask | delimiterMask2) != 0) {
+                int letterCount1 = Long.numberOfTrailingZeros(delimiterMask) >>> 3;
+                int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3;
+                word &= MASK1[letterCount1];
+                word2 = MASK2[letterCount1] & word2 & MASK1[letterCount2];
+                hash = word ^ word2;
+            }
+            else {
+                hash = word ^ word2;
+                for (int pos = 16;; pos += 8) {
+                    word = (long) LONGS.get(row, pos);
+                    long mask = findDelimiter(word);
+                    if (mask != 0) {
+                        hash ^= word << (63 - Long.numberOfTrailingZeros(mask));
+                        break;
+                    }
+                    hash ^= word;
+                }
+            }
+            long h = hash ^ (hash >>> 33) ^ (hash >>> 15);
+            return (int) (h & (tableSize() - 1));
+        }
+
+        private static long findDelimiter(long word) {
+            long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+            return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+        }
+    }
+
+    /**
+     * {@code CalculateAverage_serkan_ozal}: the first and the last four bytes of the name (or its first and last byte
+     * if it is shorter), {@code MAP_CAPACITY = 1 << 17}.
+     */
+    static final class SerkanOzal implements BucketFunction {
+        private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final int HASH_SEED = 0x9E3779B9;
+        private static final int HASH_ROTATE = 5;
+
+        @Override
+        public int tableSize() {
+            return 1 << 17;
+        }
+
+        @Override
+        public int bucket(byte[] name) {
+            int x;
+            int y;
+            if (name.length > 3) {
+                x = (int) INTS.get(name, 0);
+                y = (int) INTS.get(name, name.length - 4);
+            }
+            else {
+                x = name[0];
+                y = name[name.length - 1];
+            }
+            int keyHash = (Integer.rotateLeft(x * HASH_SEED, HASH_ROTATE) ^ y) * HASH_SEED;
+            return keyHash & (tableSize() - 1);
+        }
+    }
+
+    /**
+     * {@code CalculateAverage_shipilev}: all bytes of the name multiplied and xor-ed, {@code MAP_SIZE = 1 << 15}. The
+     * order of the bytes does not matter, and pairs of the same byte cancel out.
+     */
+    static final class Shipilev implements BucketFunction {
+
+        @Override
+        public int tableSize() {
+            return 1 << 15;
+        }
+
+        @Override
+        public int bucket(byte[] name) {
+            int nameHash = 0;
+            for (byte b : name) {
+                nameHash ^= (b & 0xFF) * 82805;
+            }
+            return nameHash & (tableSize() - 1);
+        }
+    }
+
+    /**
+     * Candidate names: a fixed prefix, {@code length} random letters and a fixed suffix.
+     */
+    record NameShape(byte[] prefix, int length, byte[] suffix) {
+
+        byte[] next(SplittableRandom rnd) {
+            byte[] name = new byte[prefix.length + length + suffix.length];
+            System.arraycopy(prefix, 0, name, 0, prefix.length);
+            for (int i = prefix.length; i < prefix.length + length; i++) {
+                name[i] = ALPHABET[rnd.nextInt(ALPHABET.length)];
+            }
+            System.arraycopy(suffix, 0, name, prefix.length + length, suffix.length);
+            return name;
+        }
+    }
+
+    /**
+     * Searches up to {@code keys} unique names whose bucket is one of the first {@code buckets} buckets of the probe
+     * sequence starting at the bucket of the first candidate, so that they all end up probing along the same buckets. Candidates are tried in parallel blocks of {@link #SEARCH_BLOCK_SIZE}, each drawing from its
+     * own random stream; the hits are taken in block order, so the result only depends on the random stream, not on the
+     * number of threads.
+     */
+    private static String[] findCollisions(BucketFunction hash, NameShape shape, int keys, int buckets, long attempts, SplittableRandom rnd,
+                                           int threads) {
+        final int mask = hash.tableSize() - 1;
+        final int target = hash.bucket(shape.next(rnd));
+        // The step of a bucket in the probe sequence is its distance from the target divided by the stride
+        final int strideInverse = inverse(hash.probeStride());
+        final var names = new LinkedHashSet<String>(keys * 2);
+        long tried = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            while (names.size() < keys && tried < attempts) {
+                List<CompletableFuture<List<String>>> futures = new ArrayList<>(threads);
+                for (int t = 0; t < threads && tried < attempts; t++, tried += SEARCH_BLOCK_SIZE) {
+                    final var blockRnd = rnd.split();
+                    futures.add(CompletableFuture.supplyAsync(() -> {
+                        List<String> hits = new ArrayList<>();
+                        for (int i = 0; i < SEARCH_BLOCK_SIZE; i++) {
+                            byte[] name = shape.next(blockRnd);
+                            if (((hash.bucket(name) - target) * strideInverse & mask) < buckets) {
+                                hits.add(new String(name, StandardCharsets.UTF_8));
+                            }
+                        }
+                        return hits;
+                    }, executor));
+                }
+                for (var future : futures) {
+                    for (String name : future.join()) {
+                        if (names.size() < keys) {
+                            names.add(name);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        if (names.isEmpty()) {
+            throw new IllegalStateException("No name within " + buckets + " probes of bucket " + target + " after " + tried + " candidates");
+        }
+        System.out.format("Found %,d station names within %,d probes of bucket %,d after %,d candidates%n", names.size(), buckets, target, tried);
+        return names.toArray(String[]::new);
+    }
+
+    /**
+     * Inserts the names into a table, probing as the entry does.
+     */
+    private static void printProbeLengths(BucketFunction hash, String[] names) {
+        final int tableSize = hash.tableSize();
+        final boolean[] used = new boolean[tableSize];
+        long total = 0;
+        int max = 0;
+        for (String name : names) {
+            int bucket = hash.bucket(name.getBytes(StandardCharsets.UTF_8));
+            int probes = 1;
+            while (used[bucket]) {
+                bucket = hash.nextBucket(bucket);
+                probes++;
+            }
+            used[bucket] = true;
+            total += probes;
+            max = Math.max(max, probes);
+        }
+        System.out.format("Probing takes %,.1f probes per station on average, %,d at most%n", (double) total / names.length, max);
+    }
+
+    // The multiplicative inverse modulo 2^32, by Newton's iteration; each step doubles the correct low bits
+    private static int inverse(int stride) {
+        if ((stride & 1) == 0) {
+            throw new IllegalArgumentException("Probe stride " + stride + " does not reach all buckets");
+        }
+        int inverse = stride;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - stride * inverse;
+        }
+        return inverse;
+    }
+
+    private static byte[] randomBytes(int length, SplittableRandom rnd) {
+        return new NameShape(new byte[0], length, new byte[0]).next(rnd);
+    }
+}
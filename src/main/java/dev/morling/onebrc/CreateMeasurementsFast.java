@@ -17,38 +17,41 @@ package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
+import org.rschwietzke.FastRandom;
+
 public class CreateMeasurementsFast {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
     static final Executor EXECUTOR_SERVICE = Executors.newWorkStealingPool();
 
+    // rows whose random numbers are drawn in one bulk call
+    private static final int BATCH_SIZE = 1024;
+
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
-            return Math.round(m * 10.0) / 10.0;
-        }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements_fast.sh <number of records to create> [--mode=append|positional] [--seed=<n>] [--threads=<n>]");
             System.exit(1);
         }
 
-        int size = 0;
+        long size = 0;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Long.parseLong(args[0]);
         }
         catch (NumberFormatException e) {
             System.out.println("Invalid value for <number of records to create>");
@@ -56,6 +59,20 @@ public class CreateMeasurementsFast {
             System.exit(1);
         }
 
+        Map<String, String> options = ShardedGenerator.parseOptions(args, 1, "mode", "seed", "threads");
+        // A seed only makes sense for the reproducible positional mode
+        String mode = options.getOrDefault("mode", options.containsKey("seed") ? "positional" : "append");
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : ThreadLocalRandom.current().nextLong();
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (!mode.equals("append") && !mode.equals("positional")) {
+            System.out.println("Unknown mode: " + mode);
+            System.exit(1);
+        }
+        if (mode.equals("append") && size > Integer.MAX_VALUE) {
+            System.out.println("append mode supports at most " + Integer.MAX_VALUE + " records, use --mode=positional");
+            System.exit(1);
+        }
+
         try {
             Files.deleteIfExists(MEASUREMENT_FILE);
             Files.createFile(MEASUREMENT_FILE);
@@ -503,23 +520,46 @@ public class CreateMeasurementsFast {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        int chunkSize = (size / 10_000_000) == 0 ? size : 10_000_000;
-        int numberOfFutures = size / chunkSize;
+        if (mode.equals("positional")) {
+            createPositional(stations, size, seed, threads);
+            System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+            return;
+        }
+
+        int chunkSize = (size / 10_000_000) == 0 ? (int) size : 10_000_000;
+        int numberOfFutures = (int) (size / chunkSize);
         if (numberOfFutures == 0) {
             numberOfFutures = 1;
         }
         CompletableFuture<?>[] futures = new CompletableFuture[numberOfFutures];
+        String[] ids = stations.stream().map(WeatherStation::id).toArray(String[]::new);
+        // the means have one decimal, so rounding the mean plus a deviation equals the mean plus the rounded deviation
+        int[] meanTenths = stations.stream().mapToInt(station -> (int) Math.round(station.meanTemperature() * 10.0)).toArray();
+        // one per future, merged once all of them are done
+        MeasurementAggregates[] aggregates = new MeasurementAggregates[numberOfFutures];
 
         for (int n = 0; n < numberOfFutures; n++) {
             int finalN = n;
+            MeasurementAggregates partial = aggregates[n] = new MeasurementAggregates(ids);
             futures[n] = CompletableFuture.runAsync(() -> {
+                // stations and Gaussian deviations (standard deviation 10) are filled in bulk, a batch at a time
+                FastRandom random = FastRandom.forBulk(ThreadLocalRandom.current().nextLong());
+                int[] indexes = new int[BATCH_SIZE];
+                short[] deviations = new short[BATCH_SIZE];
                 StringBuilder builder = new StringBuilder();
-                for (int i = finalN * chunkSize; i <= (finalN + 1) * chunkSize - 1; i++) {
-                    WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
-                    builder.append(station.id())
-                            .append(";")
-                            .append(station.measurement())
-                            .append('\n');
+                for (int i = 0; i < chunkSize; i += BATCH_SIZE) {
+                    int rows = Math.min(BATCH_SIZE, chunkSize - i);
+                    random.nextInts(indexes, 0, rows, stations.size());
+                    random.nextGaussianTenths(deviations, 0, rows, 0.0, 10.0);
+                    for (int j = 0; j < rows; j++) {
+                        int index = indexes[j];
+                        int tenths = meanTenths[index] + deviations[j];
+                        builder.append(ids[index])
+                                .append(";")
+                                .append(tenths / 10.0)
+                                .append('\n');
+                        partial.add(index, tenths);
+                    }
                 }
                 try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
                     bw.write(builder.toString());
@@ -531,7 +571,37 @@ public class CreateMeasurementsFast {
         }
 
         CompletableFuture.allOf(futures).join();
+        for (int n = 1; n < numberOfFutures; n++) {
+            aggregates[0].merge(aggregates[n]);
+        }
+        aggregates[0].writeResult(MEASUREMENT_FILE);
 
         System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
     }
+
+    /**
+     * Writes the file through {@link ShardedGenerator}: rows are formatted as UTF-8 straight into a reusable direct
+     * buffer per thread and written with positional writes, so shards always land at the same offsets and the same
+     * seed always yields the same file.
+     */
+    private static void createPositional(List<WeatherStation> stations, long size, long seed, int threads) throws IOException {
+        String[] ids = new String[stations.size()];
+        byte[][] names = new byte[stations.size()][];
+        double[] means = new double[stations.size()];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = stations.get(i).id();
+            names[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            means[i] = stations.get(i).meanTemperature();
+        }
+
+        ShardedGenerator.write(MEASUREMENT_FILE, size, seed, threads, ids, (random, buffer, aggregates) -> {
+            int station = random.nextInt(names.length);
+            // Gaussian around the station mean with a standard deviation of 10, in tenths of a degree
+            int tenths = (int) Math.round(random.nextGaussian(means[station], 10) * 10.0);
+            buffer.put(names[station]).put((byte) ';');
+            ShardedGenerator.putTemperature(buffer, tenths);
+            buffer.put((byte) '\n');
+            aggregates.add(station, tenths);
+        });
+    }
 }
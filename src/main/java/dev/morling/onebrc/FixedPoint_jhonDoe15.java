@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Integer measurement path shared by the CalculateAverage_jhonDoe15 variants. Temperatures always carry exactly one
+ * fractional digit, so they are parsed straight into tenths of a degree, summed into a {@code long} and only turned
+ * into decimals when the result is printed.
+ */
+final class FixedPoint_jhonDoe15 {
+
+    private FixedPoint_jhonDoe15() {
+    }
+
+    /**
+     * Parses the measurement in {@code [from, to)}, e.g. {@code "-12.3"}, into tenths of a degree.
+     */
+    static int parseTenths(byte[] data, int from, int to) {
+        boolean negative = data[from] == '-';
+        int value = 0;
+        for (int pos = negative ? from + 1 : from; pos < to; pos++) {
+            byte b = data[pos];
+            if (b != '.' && b != '\r') {
+                value = value * 10 + (b - '0');
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Same as {@link #parseTenths(byte[], int, int)} for a (mapped) buffer, using absolute reads.
+     */
+    static int parseTenths(ByteBuffer data, int from, int to) {
+        boolean negative = data.get(from) == '-';
+        int value = 0;
+        for (int pos = negative ? from + 1 : from; pos < to; pos++) {
+            byte b = data.get(pos);
+            if (b != '.' && b != '\r') {
+                value = value * 10 + (b - '0');
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Same as {@link #parseTenths(byte[], int, int)} for a line that was already decoded, without creating a
+     * substring.
+     */
+    static int parseTenths(String line, int from, int to) {
+        boolean negative = line.charAt(from) == '-';
+        int value = 0;
+        for (int pos = negative ? from + 1 : from; pos < to; pos++) {
+            char c = line.charAt(pos);
+            if (c != '.' && c != '\r') {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    static double toDouble(long tenths) {
+        return tenths / 10.0;
+    }
+
+    /**
+     * Mean in degrees, rounded like the baseline does.
+     */
+    static double mean(long sum, long count) {
+        return round(toDouble(sum) / count);
+    }
+
+    static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    static String format(int min, long sum, long count, int max) {
+        return toDouble(min) + "/" + mean(sum, count) + "/" + toDouble(max);
+    }
+}
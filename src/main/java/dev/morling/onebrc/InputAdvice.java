@@ -0,0 +1,349 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Hints to the kernel about how an entry reads its mapped input, and a thread which maps in the pages a few segments
+ * ahead of each worker, so that fewer page faults fall on the workers:
+ *
+ * <pre>
+ * -Donebrc.madvise=sequential,willneed,hugepage,populate_read   madvise() every mapping
+ * -Donebrc.fadvise=willneed                                     posix_fadvise() the file
+ * -Donebrc.prefetch=4                                           prefetch 4 segments ahead of each worker
+ * -Donebrc.prefetch.segment=2097152                             of 2 MB, the default
+ * </pre>
+ * <p>
+ * Entries tell it about the file with {@link #file(Path)}, about each mapping with {@link #mapped(long, long)} and
+ * about each worker moving on with {@link #progress(int, long, long)}. Each method first checks {@link #ENABLED}, a
+ * constant the JIT folds; without any of the options nothing happens, in particular the FFM linker, which takes
+ * hundreds of milliseconds to set up, is not touched. Linux only.
+ * <p>
+ * posix_fadvise() only takes {@code willneed}, which starts reading the file into the page cache. The other advice
+ * changes the read-ahead of the open file it is given, which is not the one the entry maps; {@code madvise=sequential}
+ * does that for the mapping.
+ * <p>
+ * The prefetcher serves the worker with the least prefetched ahead of it first. It uses {@code MADV_POPULATE_READ}
+ * (Linux 5.14), which maps the pages in the prefetcher thread, or {@code MADV_WILLNEED} on older kernels, which only
+ * starts reading them from disk. madvise() of memory that is not mapped anymore fails harmlessly, so entries may unmap
+ * while the prefetcher is at work.
+ * <p>
+ * At exit, the page faults of the process are printed to stderr, along with how many of them the advice layer took
+ * itself, which would otherwise have fallen on the workers. Comparing with a run without options shows how many were
+ * avoided altogether.
+ */
+public final class InputAdvice {
+
+    private static final String MADVISE = System.getProperty("onebrc.madvise", "");
+    private static final String FADVISE = System.getProperty("onebrc.fadvise", "");
+    private static final int PREFETCH = Integer.getInteger("onebrc.prefetch", 0);
+    private static final long SEGMENT = Long.getLong("onebrc.prefetch.segment", 1 << 21);
+
+    public static final boolean ENABLED = (!MADVISE.isEmpty() || !FADVISE.isEmpty() || PREFETCH > 0) && linux();
+
+    private static final int MADV_SEQUENTIAL = 2;
+    private static final int MADV_WILLNEED = 3;
+    private static final int MADV_HUGEPAGE = 14;
+    private static final int MADV_POPULATE_READ = 22;
+    private static final int POSIX_FADV_WILLNEED = 3;
+    private static final int O_RDONLY_CLOEXEC = 0x80000;
+    private static final int RUSAGE_SELF = 0;
+    private static final int RUSAGE_THREAD = 1;
+    private static final int EINVAL = 22;
+    private static final long PAGE_SIZE = 4096;
+
+    private static final int MAX_WORKERS = 256;
+    // Cursor and limit of a worker, a cache line apart from those of the next one
+    private static final int CURSOR = 0;
+    private static final int LIMIT = 1;
+    private static final int STRIDE = 8;
+
+    private static final AtomicLongArray lanes = new AtomicLongArray(ENABLED && PREFETCH > 0 ? MAX_WORKERS * STRIDE : 0);
+    private static final AtomicInteger workers = new AtomicInteger();
+    private static final AtomicBoolean prefetching = new AtomicBoolean();
+    private static final AtomicBoolean reported = new AtomicBoolean();
+
+    private static final AtomicInteger mappings = new AtomicInteger();
+    private static final AtomicLong mappedBytes = new AtomicLong();
+    private static final AtomicLong prefetchedBytes = new AtomicLong();
+    private static final AtomicLong minorFaults = new AtomicLong();
+    private static final AtomicLong majorFaults = new AtomicLong();
+    private static final Map<String, Integer> errors = new ConcurrentHashMap<>();
+    private static volatile boolean populateRead = true;
+    private static volatile boolean fileAdvised;
+
+    private static final long[] processFaults;
+
+    static {
+        if (ENABLED) {
+            processFaults = Native.faults(RUSAGE_SELF);
+            Runtime.getRuntime().addShutdownHook(new Thread(InputAdvice::report));
+        }
+        else {
+            processFaults = null;
+        }
+    }
+
+    private InputAdvice() {
+    }
+
+    /**
+     * Applies {@code -Donebrc.fadvise} to the file.
+     */
+    public static void file(Path file) {
+        if (!ENABLED || FADVISE.isEmpty()) {
+            return;
+        }
+        for (String advice : FADVISE.split(",")) {
+            int error = Native.fadvise(file, switch (advice.trim()) {
+                case "willneed" -> POSIX_FADV_WILLNEED;
+                default -> throw new IllegalArgumentException("Unknown fadvise: " + advice + ", only willneed acts on the mapped file");
+            });
+            if (error != 0) {
+                errors.putIfAbsent("fadvise " + advice.trim(), error);
+            }
+        }
+        fileAdvised = true;
+    }
+
+    /**
+     * Applies {@code -Donebrc.madvise} to a mapping of the input.
+     */
+    public static void mapped(long address, long size) {
+        if (!ENABLED) {
+            return;
+        }
+        mappings.incrementAndGet();
+        mappedBytes.addAndGet(size);
+        if (MADVISE.isEmpty()) {
+            return;
+        }
+        long[] before = Native.faults(RUSAGE_THREAD);
+        for (String advice : MADVISE.split(",")) {
+            int error = Native.madvise(address, address + size, switch (advice.trim()) {
+                case "sequential" -> MADV_SEQUENTIAL;
+                case "willneed" -> MADV_WILLNEED;
+                case "hugepage" -> MADV_HUGEPAGE;
+                case "populate_read" -> MADV_POPULATE_READ;
+                default -> throw new IllegalArgumentException("Unknown madvise: " + advice);
+            });
+            if (error != 0) {
+                errors.putIfAbsent("madvise " + advice.trim(), error);
+            }
+        }
+        countFaults(before);
+    }
+
+    /**
+     * The worker reads on from address, in a mapping which ends at limit. With {@code -Donebrc.prefetch}, a thread
+     * maps in the pages after it. Workers are numbered from 0, those from 256 on are not prefetched for.
+     */
+    public static void progress(int worker, long address, long limit) {
+        if (!ENABLED || PREFETCH == 0 || worker >= MAX_WORKERS) {
+            return;
+        }
+        // The limit first, so that the prefetcher never sees the new cursor with the old limit
+        lanes.lazySet(worker * STRIDE + LIMIT, limit);
+        lanes.set(worker * STRIDE + CURSOR, address);
+        if (workers.get() <= worker) {
+            workers.accumulateAndGet(worker + 1, Math::max);
+        }
+        if (!prefetching.get() && prefetching.compareAndSet(false, true)) {
+            Thread prefetcher = new Thread(InputAdvice::prefetch, "onebrc-prefetcher");
+            prefetcher.setDaemon(true);
+            prefetcher.setPriority(Thread.MIN_PRIORITY);
+            prefetcher.start();
+        }
+    }
+
+    private static void prefetch() {
+        long[] prefetched = new long[MAX_WORKERS];
+        long[] limits = new long[MAX_WORKERS];
+        long lead = PREFETCH * SEGMENT;
+        while (true) {
+            int neediest = -1;
+            long leastAhead = lead;
+            for (int w = 0; w < workers.get(); w++) {
+                long cursor = lanes.get(w * STRIDE + CURSOR);
+                long limit = lanes.get(w * STRIDE + LIMIT);
+                if (cursor == 0) {
+                    continue;
+                }
+                // The worker overtook the prefetcher or went on to another mapping
+                if (prefetched[w] < cursor || limits[w] != limit) {
+                    prefetched[w] = cursor;
+                    limits[w] = limit;
+                }
+                long ahead = prefetched[w] - cursor;
+                if (prefetched[w] < limit && ahead < leastAhead) {
+                    neediest = w;
+                    leastAhead = ahead;
+                }
+            }
+            if (neediest == -1) {
+                LockSupport.parkNanos(50_000);
+                continue;
+            }
+
+            long start = prefetched[neediest];
+            long end = Math.min(start + SEGMENT, limits[neediest]);
+            long[] before = Native.faults(RUSAGE_THREAD);
+            int error = Native.madvise(start, end, populateRead ? MADV_POPULATE_READ : MADV_WILLNEED);
+            if (error == EINVAL && populateRead) {
+                populateRead = false;
+                Native.madvise(start, end, MADV_WILLNEED);
+            }
+            countFaults(before);
+            prefetchedBytes.addAndGet(end - start);
+            prefetched[neediest] = end;
+        }
+    }
+
+    private static void countFaults(long[] before) {
+        long[] after = Native.faults(RUSAGE_THREAD);
+        minorFaults.addAndGet(after[0] - before[0]);
+        majorFaults.addAndGet(after[1] - before[1]);
+    }
+
+    private static void report() {
+        if (!reported.compareAndSet(false, true)) {
+            return;
+        }
+        long[] faults = Native.faults(RUSAGE_SELF);
+        List<String> parts = new ArrayList<>();
+        parts.add("%d mappings of %s".formatted(mappings.get(), size(mappedBytes.get())));
+        if (!MADVISE.isEmpty()) {
+            parts.add("madvise " + MADVISE);
+        }
+        if (fileAdvised) {
+            parts.add("fadvise " + FADVISE);
+        }
+        if (PREFETCH > 0) {
+            parts.add("prefetched %s, %d segments of %s ahead, with %s".formatted(size(prefetchedBytes.get()), PREFETCH, size(SEGMENT),
+                    populateRead ? "MADV_POPULATE_READ" : "MADV_WILLNEED"));
+        }
+        errors.forEach((call, errno) -> parts.add("%s failed with errno %d".formatted(call, errno)));
+        System.err.println("Input advice: " + String.join(", ", parts));
+        System.err.println("Page faults: %d minor and %d major, of which the advice layer took %d minor and %d major off the workers".formatted(
+                faults[0] - processFaults[0], faults[1] - processFaults[1], minorFaults.get(), majorFaults.get()));
+        System.err.flush();
+    }
+
+    private static boolean linux() {
+        if (!System.getProperty("os.name").equals("Linux")) {
+            System.err.println("Input advice is only available on Linux, ignoring it");
+            return false;
+        }
+        return true;
+    }
+
+    private static String size(long bytes) {
+        if (bytes >= 1L << 30) {
+            return "%.1f GB".formatted(bytes / (double) (1L << 30));
+        }
+        if (bytes >= 1L << 20) {
+            return "%.1f MB".formatted(bytes / (double) (1L << 20));
+        }
+        return bytes + " bytes";
+    }
+
+    // Loaded on first use only, creating downcall handles is what takes long
+    private static final class Native {
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+        private static final VarHandle ERRNO = CALL_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+        // struct rusage, ru_minflt and ru_majflt after two struct timeval and four longs
+        private static final long RUSAGE_SIZE = 144;
+        private static final long RU_MINFLT = 64;
+        private static final long RU_MAJFLT = 72;
+
+        private static final MethodHandle MADVISE = downcall("madvise", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT),
+                Linker.Option.captureCallState("errno"));
+        private static final MethodHandle GETRUSAGE = downcall("getrusage", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS));
+        private static final MethodHandle OPEN = FADVISE.isEmpty() ? null
+                : downcall("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), Linker.Option.firstVariadicArg(2));
+        private static final MethodHandle CLOSE = FADVISE.isEmpty() ? null : downcall("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        private static final MethodHandle POSIX_FADVISE = FADVISE.isEmpty() ? null
+                : downcall("posix_fadvise", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT));
+
+        // Returns the errno, or 0
+        static int madvise(long start, long end, int advice) {
+            long alignedStart = start & -PAGE_SIZE;
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment callState = arena.allocate(CALL_STATE);
+                int result = (int) MADVISE.invokeExact(callState, MemorySegment.ofAddress(alignedStart), end - alignedStart, advice);
+                return result == 0 ? 0 : (int) ERRNO.get(callState);
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Returns the error, or 0
+        static int fadvise(Path file, int advice) {
+            try (Arena arena = Arena.ofConfined()) {
+                int fd = (int) OPEN.invokeExact(arena.allocateUtf8String(file.toString()), O_RDONLY_CLOEXEC, 0);
+                if (fd < 0) {
+                    return -1;
+                }
+                int result = (int) POSIX_FADVISE.invokeExact(fd, 0L, 0L, advice);
+                int ignored = (int) CLOSE.invokeExact(fd);
+                return result;
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Minor and major faults
+        static long[] faults(int who) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment usage = arena.allocate(RUSAGE_SIZE);
+                int ignored = (int) GETRUSAGE.invokeExact(who, usage);
+                return new long[]{ usage.get(JAVA_LONG, RU_MINFLT), usage.get(JAVA_LONG, RU_MAJFLT) };
+            }
+            catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+            return LINKER.downcallHandle(LINKER.defaultLookup().find(name).orElseThrow(), descriptor, options);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * Reads of one file through an io_uring, driven with the FFM API, so that the kernel reads while the caller parses:
+ *
+ * <pre>
+ * try (IoUring ring = new IoUring(file, buffers)) {
+ *     ring.read(0, 0, offset, length);
+ *     ring.submit();
+ *     ... parse something else ...
+ *     long bytes = ring.complete(0);
+ * }
+ * </pre>
+ * <p>
+ * Each read goes into one of the buffers given up front, and there is at most one read per buffer in flight. The
+ * buffers are registered with the ring, which saves the kernel from mapping them on every read; where that fails, for
+ * instance because they exceed {@code RLIMIT_MEMLOCK} on older kernels, plain reads are used. Short reads are
+ * continued until the length asked for or the end of the file.
+ * <p>
+ * A ring is not thread-safe, the thread consuming the buffers submits and completes their reads. The constructor
+ * throws an {@link IOException} if io_uring is not available, i.e. not on Linux 5.6 or later, or blocked by a seccomp
+ * profile as in many containers, and callers are expected to fall back to {@code pread}.
+ * <p>
+ * Creating the downcall handles costs about half a second on JDK 21, so this only pays off for large files which are
+ * not in the page cache.
+ */
+public final class IoUring implements AutoCloseable {
+
+    private static final long SYS_IO_URING_SETUP = 425;
+    private static final long SYS_IO_URING_ENTER = 426;
+    private static final long SYS_IO_URING_REGISTER = 427;
+
+    private static final int IORING_OP_READ_FIXED = 4;
+    private static final int IORING_OP_READ = 22;
+    private static final int IORING_ENTER_GETEVENTS = 1;
+    private static final int IORING_REGISTER_BUFFERS = 0;
+    private static final long IORING_OFF_SQ_RING = 0;
+    private static final long IORING_OFF_CQ_RING = 0x8000000L;
+    private static final long IORING_OFF_SQES = 0x10000000L;
+
+    private static final int O_RDONLY_CLOEXEC = 0x80000;
+    private static final int PROT_READ_WRITE = 0x3;
+    private static final int MAP_SHARED_POPULATE = 0x8001;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    // struct io_uring_params, with struct io_sqring_offsets at 40 and struct io_cqring_offsets at 80
+    private static final int PARAMS_SIZE = 120;
+    private static final int SQ_OFF = 40;
+    private static final int CQ_OFF = 80;
+    private static final int SQE_SIZE = 64;
+    private static final int CQE_SIZE = 16;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+    private static final VarHandle ERRNO = CALL_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+    private static final VarHandle INT = JAVA_INT.varHandle();
+
+    // Every downcall handle takes tens of milliseconds to create, the first one hundreds, so there is one for all
+    // io_uring syscalls, with arguments as longs
+    private static final MethodHandle SYSCALL = downcall("syscall",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG),
+            Linker.Option.firstVariadicArg(1), Linker.Option.captureCallState("errno"));
+    private static final MethodHandle OPEN = downcall("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT),
+            Linker.Option.firstVariadicArg(2), Linker.Option.captureCallState("errno"));
+    private static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle MMAP = downcall("mmap", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG),
+            Linker.Option.captureCallState("errno"));
+    private static final MethodHandle MUNMAP = downcall("munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG));
+
+    private final Arena arena = Arena.ofConfined();
+    private final MemorySegment callState = arena.allocate(CALL_STATE);
+    private final MemorySegment[] buffers;
+    private final int fileFd;
+    private final int ringFd;
+    private final boolean fixed;
+
+    private final MemorySegment sqRing;
+    private final MemorySegment cqRing;
+    private final MemorySegment sqes;
+    private final MemorySegment sqTail;
+    private final MemorySegment sqArray;
+    private final int sqMask;
+    private final MemorySegment cqHead;
+    private final MemorySegment cqTail;
+    private final MemorySegment cqes;
+    private final int cqMask;
+    private int sqTailValue;
+    private int cqHeadValue;
+    private int unsubmitted;
+
+    // Per buffer, the read in flight
+    private final long[] fileOffsets;
+    private final long[] bufferOffsets;
+    private final long[] lengths;
+    private final long[] done;
+    private final int[] errors;
+    private final boolean[] pending;
+
+    public IoUring(Path file, MemorySegment... buffers) throws IOException {
+        this.buffers = buffers;
+        this.fileOffsets = new long[buffers.length];
+        this.bufferOffsets = new long[buffers.length];
+        this.lengths = new long[buffers.length];
+        this.done = new long[buffers.length];
+        this.errors = new int[buffers.length];
+        this.pending = new boolean[buffers.length];
+
+        // The syscall numbers mean something else elsewhere
+        if (!System.getProperty("os.name").equals("Linux")) {
+            arena.close();
+            throw new IOException("io_uring is only available on Linux");
+        }
+        // What is already open or mapped when a later step fails
+        int openFd = -1;
+        int openRingFd = -1;
+        MemorySegment[] mapped = new MemorySegment[3];
+        try {
+            fileFd = openFd = (int) OPEN.invokeExact(callState, arena.allocateUtf8String(file.toString()), O_RDONLY_CLOEXEC, 0);
+            if (fileFd < 0) {
+                throw new IOException(STR."Cannot open \{file}, errno \{errno()}");
+            }
+            MemorySegment params = arena.allocate(PARAMS_SIZE);
+            ringFd = openRingFd = (int) syscall(SYS_IO_URING_SETUP, Integer.highestOneBit(Math.max(1, buffers.length) * 2 - 1), params.address(), 0, 0, 0);
+            if (ringFd < 0) {
+                throw new IOException(STR."io_uring is not available, errno \{errno()}");
+            }
+
+            int sqEntries = params.get(JAVA_INT, 0);
+            int cqEntries = params.get(JAVA_INT, 4);
+            sqRing = mapped[0] = mmap(params.get(JAVA_INT, SQ_OFF + 24) + sqEntries * 4L, IORING_OFF_SQ_RING);
+            cqRing = mapped[1] = mmap(params.get(JAVA_INT, CQ_OFF + 20) + cqEntries * (long) CQE_SIZE, IORING_OFF_CQ_RING);
+            sqes = mapped[2] = mmap(sqEntries * (long) SQE_SIZE, IORING_OFF_SQES);
+            sqTail = sqRing.asSlice(params.get(JAVA_INT, SQ_OFF + 4), 4);
+            sqMask = sqRing.get(JAVA_INT, params.get(JAVA_INT, SQ_OFF + 8));
+            sqArray = sqRing.asSlice(params.get(JAVA_INT, SQ_OFF + 24));
+            cqHead = cqRing.asSlice(params.get(JAVA_INT, CQ_OFF), 4);
+            cqTail = cqRing.asSlice(params.get(JAVA_INT, CQ_OFF + 4), 4);
+            cqMask = cqRing.get(JAVA_INT, params.get(JAVA_INT, CQ_OFF + 8));
+            cqes = cqRing.asSlice(params.get(JAVA_INT, CQ_OFF + 20));
+            sqTailValue = (int) INT.getAcquire(sqTail);
+            cqHeadValue = (int) INT.getAcquire(cqHead);
+
+            // struct iovec per buffer
+            MemorySegment iovecs = arena.allocate(16L * Math.max(1, buffers.length));
+            for (int i = 0; i < buffers.length; i++) {
+                iovecs.set(JAVA_LONG, 16L * i, buffers[i].address());
+                iovecs.set(JAVA_LONG, 16L * i + 8, buffers[i].byteSize());
+            }
+            fixed = buffers.length > 0
+                    && syscall(SYS_IO_URING_REGISTER, ringFd, IORING_REGISTER_BUFFERS, iovecs.address(), buffers.length, 0) == 0;
+        }
+        catch (Throwable e) {
+            release(openFd, openRingFd, mapped, e);
+            arena.close();
+            if (e instanceof IOException io) {
+                throw io;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Undoes what a failed constructor already set up, -1 and null stand for what it did not get to
+    private static void release(int fileFd, int ringFd, MemorySegment[] mapped, Throwable failure) {
+        try {
+            for (MemorySegment ring : mapped) {
+                if (ring != null) {
+                    int ignored = (int) MUNMAP.invokeExact(ring, ring.byteSize());
+                }
+            }
+            if (ringFd >= 0) {
+                int ignored = (int) CLOSE.invokeExact(ringFd);
+            }
+            if (fileFd >= 0) {
+                int ignored = (int) CLOSE.invokeExact(fileFd);
+            }
+        }
+        catch (Throwable e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Queues a read of the file from fileOffset into the buffer from bufferOffset, sent to the kernel by the next
+     * {@link #submit()} or {@link #complete(int)}.
+     */
+    public void read(int buffer, long bufferOffset, long fileOffset, long length) {
+        if (pending[buffer]) {
+            throw new IllegalStateException(STR."Buffer \{buffer} is still being read");
+        }
+        fileOffsets[buffer] = fileOffset;
+        bufferOffsets[buffer] = bufferOffset;
+        lengths[buffer] = length;
+        done[buffer] = 0;
+        errors[buffer] = 0;
+        pending[buffer] = true;
+        queue(buffer);
+    }
+
+    /**
+     * Sends all queued reads to the kernel, without waiting for any.
+     */
+    public void submit() throws IOException {
+        enter(0);
+    }
+
+    /**
+     * Waits for the read into the buffer and returns the bytes read, fewer than asked for only at the end of the file.
+     */
+    public long complete(int buffer) throws IOException {
+        while (pending[buffer]) {
+            if (!reap()) {
+                enter(1);
+            }
+        }
+        if (errors[buffer] != 0) {
+            throw new IOException(STR."io_uring read failed, errno \{errors[buffer]}");
+        }
+        return done[buffer];
+    }
+
+    /**
+     * Whether reads go into registered buffers.
+     */
+    public boolean fixedBuffers() {
+        return fixed;
+    }
+
+    /**
+     * Waits for all reads in flight, the kernel may not write into the buffers after they are freed.
+     */
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < buffers.length; i++) {
+                try {
+                    complete(i);
+                }
+                catch (IOException e) {
+                    // Only the buffer matters, not what was read
+                }
+            }
+            int ignored = (int) MUNMAP.invokeExact(sqes, sqes.byteSize());
+            ignored = (int) MUNMAP.invokeExact(cqRing, cqRing.byteSize());
+            ignored = (int) MUNMAP.invokeExact(sqRing, sqRing.byteSize());
+            ignored = (int) CLOSE.invokeExact(ringFd);
+            ignored = (int) CLOSE.invokeExact(fileFd);
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            arena.close();
+        }
+    }
+
+    // Enough entries for one read per buffer, so the submission queue never overflows
+    private void queue(int buffer) {
+        int index = sqTailValue & sqMask;
+        MemorySegment sqe = sqes.asSlice((long) index * SQE_SIZE, SQE_SIZE);
+        long done = this.done[buffer];
+        sqe.fill((byte) 0);
+        sqe.set(JAVA_BYTE, 0, (byte) (fixed ? IORING_OP_READ_FIXED : IORING_OP_READ));
+        sqe.set(JAVA_INT, 4, fileFd);
+        sqe.set(JAVA_LONG, 8, fileOffsets[buffer] + done);
+        sqe.set(JAVA_LONG, 16, buffers[buffer].address() + bufferOffsets[buffer] + done);
+        sqe.set(JAVA_INT, 24, (int) (lengths[buffer] - done));
+        sqe.set(JAVA_LONG, 32, buffer);
+        sqe.set(JAVA_SHORT, 40, (short) (fixed ? buffer : 0));
+        sqArray.setAtIndex(JAVA_INT, index, index);
+        sqTailValue++;
+        unsubmitted++;
+    }
+
+    // Returns whether there were any completions
+    private boolean reap() {
+        int tail = (int) INT.getAcquire(cqTail);
+        if (tail == cqHeadValue) {
+            return false;
+        }
+        for (; cqHeadValue != tail; cqHeadValue++) {
+            MemorySegment cqe = cqes.asSlice((long) (cqHeadValue & cqMask) * CQE_SIZE, CQE_SIZE);
+            int buffer = (int) cqe.get(JAVA_LONG, 0);
+            int result = cqe.get(JAVA_INT, 8);
+            if (result == -EAGAIN || result == -EINTR) {
+                queue(buffer);
+            }
+            else if (result < 0) {
+                errors[buffer] = -result;
+                pending[buffer] = false;
+            }
+            else {
+                done[buffer] += result;
+                if (result == 0 || done[buffer] == lengths[buffer]) {
+                    pending[buffer] = false;
+                }
+                else {
+                    queue(buffer);
+                }
+            }
+        }
+        INT.setRelease(cqHead, cqHeadValue);
+        return true;
+    }
+
+    private void enter(int minComplete) throws IOException {
+        INT.setRelease(sqTail, sqTailValue);
+        try {
+            while (true) {
+                long submitted = syscall(SYS_IO_URING_ENTER, ringFd, unsubmitted, minComplete, minComplete > 0 ? IORING_ENTER_GETEVENTS : 0, 0);
+                if (submitted >= 0) {
+                    unsubmitted -= (int) submitted;
+                    return;
+                }
+                if (errno() != EINTR) {
+                    throw new IOException(STR."io_uring_enter failed, errno \{errno()}");
+                }
+            }
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private MemorySegment mmap(long size, long offset) throws Throwable {
+        MemorySegment address = (MemorySegment) MMAP.invokeExact(callState, MemorySegment.NULL, size, PROT_READ_WRITE, MAP_SHARED_POPULATE, ringFd, offset);
+        if (address.address() == -1) {
+            throw new IOException(STR."Cannot map the io_uring, errno \{errno()}");
+        }
+        return address.reinterpret(size);
+    }
+
+    private int errno() {
+        return (int) ERRNO.get(callState);
+    }
+
+    private long syscall(long number, long a, long b, long c, long d, long e) throws Throwable {
+        return (long) SYSCALL.invokeExact(callState, number, a, b, c, d, e, 0L);
+    }
+
+    private static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+        return LINKER.downcallHandle(LINKER.defaultLookup().find(name).orElseThrow(), descriptor, options);
+    }
+}
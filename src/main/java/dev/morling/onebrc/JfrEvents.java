@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events of the phases of an entry, to line up its chunks with GC, safepoints and page faults in JMC:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=onebrc-%p.jfr,settings=profile ...
+ * </pre>
+ * <p>
+ * Loading an event class sets up parts of JFR, which takes hundreds of milliseconds even when nothing is recorded. So
+ * entries only touch the events if {@link #ENABLED}, a constant the JIT folds, and without a recording all that remains
+ * is the class of this holder. Anything that costs more than a field store, like counting rows, only happens once
+ * {@code shouldCommit()} says the event is wanted, and after {@code end()}, so that it is not part of the duration:
+ *
+ * <pre>
+ * JfrEvents.ChunkParsed event = JfrEvents.ENABLED ? new JfrEvents.ChunkParsed() : null;
+ * if (event != null) {
+ *     event.begin();
+ * }
+ * ...
+ * if (event != null) {
+ *     event.end();
+ * }
+ * if (event != null &amp;&amp; event.shouldCommit()) {
+ *     event.bytes = ...;
+ *     event.commit();
+ * }
+ * </pre>
+ * <p>
+ * Recordings have to start with the JVM, {@code -XX:StartFlightRecording}; one started later through {@code jcmd}
+ * does not see these events.
+ * <p>
+ * Stack traces are off, they are the same for every event of a kind. Entries that start a worker process pass the JVM
+ * options on, hence the {@code %p} in the file name.
+ */
+public final class JfrEvents {
+
+    public static final boolean ENABLED = FlightRecorder.isInitialized();
+
+    /**
+     * Probes for one name after which an entry emits {@link ProbeOverflow}, once per name.
+     */
+    public static final int PROBE_OVERFLOW = 8;
+
+    private static final String CATEGORY = "1BRC";
+
+    private JfrEvents() {
+    }
+
+    @Name("dev.morling.onebrc.ChunkClaimed")
+    @Label("Chunk Claimed")
+    @Description("A part of the file was handed out for processing")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class ChunkClaimed extends Event {
+        @Label("Offset")
+        @DataAmount
+        public long offset;
+
+        @Label("Size")
+        @DataAmount
+        public long size;
+    }
+
+    @Name("dev.morling.onebrc.ChunkParsed")
+    @Label("Chunk Parsed")
+    @Description("A worker aggregated all rows of a chunk")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class ChunkParsed extends Event {
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("New Keys")
+        @Description("Stations the worker had not seen before this chunk")
+        public int newKeys;
+    }
+
+    @Name("dev.morling.onebrc.ProbeOverflow")
+    @Label("Probe Overflow")
+    @Description("Finding the entry of a station took more probes than expected, the hash table is crowded or the hash is weak")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class ProbeOverflow extends Event {
+        @Label("Probes")
+        public int probes;
+
+        @Label("Table Size")
+        public int tableSize;
+
+        @Label("Name Length")
+        @DataAmount
+        public int nameLength;
+    }
+
+    @Name("dev.morling.onebrc.Merge")
+    @Label("Merge")
+    @Description("The results of the workers were combined")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Merge extends Event {
+        @Label("Maps")
+        public int maps;
+
+        @Label("Keys")
+        public int keys;
+    }
+
+    @Name("dev.morling.onebrc.Unmap")
+    @Label("Unmap")
+    @Description("A mapped part of the file was released")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Unmap extends Event {
+        @Label("Size")
+        @DataAmount
+        public long size;
+    }
+}
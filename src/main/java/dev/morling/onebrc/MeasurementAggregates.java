@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Per-station min/max/sum/count of the values a generator emits, kept in tenths of a degree so that the expected
+ * result can be written next to the measurements file without reading it again. Instances are owned by a single
+ * worker and merged once at the end, or shared by all workers, which collect the values of a part of the rows in a
+ * {@link Buffer} each and hand it to {@link #addAll(Buffer)}; then the memory does not grow with the number of
+ * threads, only one table of the size of the key set exists.
+ */
+final class MeasurementAggregates implements ShardedGenerator.Sink {
+
+    // min, max, sum and count of a station next to each other, one cache miss per row even for millions of stations
+    private static final int MIN = 0;
+    private static final int MAX = 1;
+    private static final int SUM = 2;
+    private static final int COUNT = 3;
+    private static final int FIELDS = 4;
+
+    // Stations are locked in stripes by the lowest bits of their index when buffers are added
+    private static final int STRIPES = 64;
+
+    /**
+     * Ignores everything, for rows that are formatted a second time, see {@link ShardedGenerator}.
+     */
+    static final ShardedGenerator.Sink NONE = (station, tenths) -> {
+    };
+
+    private final String[] names;
+    private final long[] values;
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * @param names the station names, indexed like the station indexes passed to {@link #add(int, int)}
+     */
+    MeasurementAggregates(String[] names) {
+        this.names = names;
+        this.values = new long[names.length * FIELDS];
+        for (int i = 0; i < values.length; i += FIELDS) {
+            values[i + MIN] = Integer.MAX_VALUE;
+            values[i + MAX] = Integer.MIN_VALUE;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public void add(int station, int tenths) {
+        int i = station * FIELDS;
+        values[i + MIN] = Math.min(values[i + MIN], tenths);
+        values[i + MAX] = Math.max(values[i + MAX], tenths);
+        values[i + SUM] += tenths;
+        values[i + COUNT]++;
+    }
+
+    /**
+     * Adds the values of the buffer and empties it; thread-safe. The values are grouped by stripe first, each stripe
+     * is then added under its lock, and callers start at different stripes so that they rarely wait for each other.
+     */
+    void addAll(Buffer buffer) {
+        int[] starts = new int[STRIPES + 1];
+        for (int i = 0; i < buffer.size; i++) {
+            starts[(buffer.stations[i] & (STRIPES - 1)) + 1]++;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            starts[i + 1] += starts[i];
+        }
+        int[] next = Arrays.copyOf(starts, STRIPES);
+        for (int i = 0; i < buffer.size; i++) {
+            int to = next[buffer.stations[i] & (STRIPES - 1)]++;
+            buffer.groupedStations[to] = buffer.stations[i];
+            buffer.groupedTenths[to] = buffer.tenths[i];
+        }
+        int first = (int) Thread.currentThread().threadId();
+        for (int n = 0; n < STRIPES; n++) {
+            int stripe = (first + n) & (STRIPES - 1);
+            synchronized (stripes[stripe]) {
+                for (int i = starts[stripe]; i < starts[stripe + 1]; i++) {
+                    add(buffer.groupedStations[i], buffer.groupedTenths[i]);
+                }
+            }
+        }
+        buffer.size = 0;
+    }
+
+    MeasurementAggregates merge(MeasurementAggregates other) {
+        for (int i = 0; i < values.length; i += FIELDS) {
+            values[i + MIN] = Math.min(values[i + MIN], other.values[i + MIN]);
+            values[i + MAX] = Math.max(values[i + MAX], other.values[i + MAX]);
+            values[i + SUM] += other.values[i + SUM];
+            values[i + COUNT] += other.values[i + COUNT];
+        }
+        return this;
+    }
+
+    /**
+     * Writes the result in the format of {@code calculate_average_baseline.sh} to the {@code .out} file belonging to
+     * the given measurements file, e.g. {@code measurements.out} for {@code measurements.txt}.
+     */
+    void writeResult(Path measurementsFile) throws IOException {
+        // Sorting the indexes once is much cheaper than a TreeMap for millions of stations
+        Integer[] order = IntStream.range(0, names.length).filter(i -> values[i * FIELDS + COUNT] > 0).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparing(i -> names[i]));
+        StringBuilder result = new StringBuilder("{");
+        for (int station : order) {
+            if (result.length() > 1) {
+                result.append(", ");
+            }
+            int i = station * FIELDS;
+            result.append(names[station]).append('=')
+                    .append(round(values[i + MIN] / 10.0)).append('/')
+                    .append(round((values[i + SUM] / 10.0) / values[i + COUNT])).append('/')
+                    .append(round(values[i + MAX] / 10.0));
+        }
+        result.append("}\n");
+        String fileName = measurementsFile.getFileName().toString();
+        int extension = fileName.lastIndexOf('.');
+        Path outFile = measurementsFile.resolveSibling((extension == -1 ? fileName : fileName.substring(0, extension)) + ".out");
+        Files.writeString(outFile, result);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * The values of up to a fixed number of rows, owned by one worker, until they are added to the shared aggregates.
+     */
+    static final class Buffer implements ShardedGenerator.Sink {
+        private final int[] stations;
+        private final int[] tenths;
+        private final int[] groupedStations;
+        private final int[] groupedTenths;
+        private int size;
+
+        Buffer(int capacity) {
+            stations = new int[capacity];
+            tenths = new int[capacity];
+            groupedStations = new int[capacity];
+            groupedTenths = new int[capacity];
+        }
+
+        @Override
+        public void add(int station, int tenths) {
+            stations[size] = station;
+            this.tenths[size++] = tenths;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread timings of the phases of an entry, the bytes each thread handled in them and how often it took work from
+ * a shared pool, generalized from the {@code Tracing} of CalculateAverage_vemana so that any entry can use it:
+ *
+ * <pre>
+ * PhaseTracing.start(Phase.PARSE, workerIdx);
+ * ...
+ * PhaseTracing.end(Phase.PARSE, workerIdx, chunkSize);
+ * </pre>
+ * <p>
+ * Nothing is recorded unless the JVM runs with {@code -Donebrc.tracing}. Every method first checks a static final
+ * flag, which the JIT folds, so disabled calls cost nothing in compiled code. When enabled, all state lives in arrays
+ * allocated up front, one per thread so that workers do not share cache lines, and a timeline of all phases is
+ * printed to stderr on {@link #dump()} or at shutdown, whichever comes first.
+ * <p>
+ * Threads are identified by the index the entry gives its workers, up to {@code -Donebrc.tracing.threads} (default
+ * 256); higher indexes are ignored. A thread may enter a phase any number of times, the timeline shows the first
+ * start and the last end, and the busy time is the sum of all spans. Times are relative to the first use of this
+ * class, so entries should call {@link #event(String)} first thing in {@code main}.
+ */
+public final class PhaseTracing {
+
+    public enum Phase {
+        MAP,
+        PARSE,
+        MERGE,
+        FORMAT,
+        UNMAP
+    }
+
+    // -Donebrc.tracing and -Donebrc.tracing=true both enable it
+    public static final boolean ENABLED = !System.getProperty("onebrc.tracing", "false").equals("false");
+
+    private static final int MAX_THREADS = Integer.getInteger("onebrc.tracing.threads", 256);
+    private static final int MAX_EVENTS = 1 << 10;
+    private static final int TIMELINE_WIDTH = 60;
+
+    // Per phase and thread, next to each other in the array of the thread
+    private static final int FIRST_START = 0;
+    private static final int LAST_END = 1;
+    private static final int OPEN_START = 2;
+    private static final int BUSY = 3;
+    private static final int SPANS = 4;
+    private static final int BYTES = 5;
+    private static final int FIELDS = 6;
+    private static final int STEALS = Phase.values().length * FIELDS;
+    // A cache line of padding after the fields, the arrays are allocated one after the other
+    private static final int ROW_LENGTH = STEALS + 1 + 8;
+
+    private static final long startTime = System.nanoTime();
+    private static final long[][] threads;
+    private static final long[] eventTimes;
+    private static final String[] eventNames;
+    private static final AtomicInteger eventCount = new AtomicInteger();
+    private static final AtomicBoolean dumped = new AtomicBoolean();
+
+    static {
+        if (ENABLED) {
+            threads = new long[MAX_THREADS][];
+            for (int i = 0; i < MAX_THREADS; i++) {
+                threads[i] = new long[ROW_LENGTH];
+                for (int p = 0; p < Phase.values().length; p++) {
+                    threads[i][p * FIELDS + FIRST_START] = Long.MAX_VALUE;
+                    threads[i][p * FIELDS + LAST_END] = Long.MIN_VALUE;
+                }
+            }
+            eventTimes = new long[MAX_EVENTS];
+            eventNames = new String[MAX_EVENTS];
+            Runtime.getRuntime().addShutdownHook(new Thread(PhaseTracing::dump));
+        }
+        else {
+            threads = null;
+            eventTimes = null;
+            eventNames = null;
+        }
+    }
+
+    private PhaseTracing() {
+    }
+
+    public static void start(Phase phase, int thread) {
+        if (!ENABLED || thread >= MAX_THREADS) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] row = threads[thread];
+        int base = phase.ordinal() * FIELDS;
+        row[base + OPEN_START] = now;
+        row[base + FIRST_START] = Math.min(row[base + FIRST_START], now);
+    }
+
+    public static void end(Phase phase, int thread) {
+        end(phase, thread, 0);
+    }
+
+    /**
+     * Ends the current span of the phase, which handled the given number of bytes.
+     */
+    public static void end(Phase phase, int thread, long bytes) {
+        if (!ENABLED || thread >= MAX_THREADS) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] row = threads[thread];
+        int base = phase.ordinal() * FIELDS;
+        row[base + LAST_END] = now;
+        row[base + BUSY] += now - row[base + OPEN_START];
+        row[base + SPANS]++;
+        row[base + BYTES] += bytes;
+    }
+
+    /**
+     * Bytes a thread handled in a phase outside of {@link #end(Phase, int, long)}.
+     */
+    public static void bytes(Phase phase, int thread, long bytes) {
+        if (!ENABLED || thread >= MAX_THREADS) {
+            return;
+        }
+        threads[thread][phase.ordinal() * FIELDS + BYTES] += bytes;
+    }
+
+    /**
+     * The thread took a chunk from a shared pool of work instead of its own share.
+     */
+    public static void steal(int thread) {
+        if (!ENABLED || thread >= MAX_THREADS) {
+            return;
+        }
+        threads[thread][STEALS]++;
+    }
+
+    /**
+     * A point in time worth seeing in the timeline, from any thread.
+     */
+    public static void event(String name) {
+        if (!ENABLED) {
+            return;
+        }
+        long now = System.nanoTime();
+        int idx = eventCount.getAndIncrement();
+        if (idx < MAX_EVENTS) {
+            eventTimes[idx] = now;
+            eventNames[idx] = name;
+        }
+    }
+
+    /**
+     * Prints the timeline to stderr, once; later calls and the shutdown hook do nothing.
+     */
+    public static void dump() {
+        if (!ENABLED || !dumped.compareAndSet(false, true)) {
+            return;
+        }
+        System.err.print(timeline(System.nanoTime()));
+        System.err.flush();
+    }
+
+    static String timeline(long now) {
+        long end = now - startTime;
+        StringBuilder out = new StringBuilder();
+        out.append("-".repeat(100)).append('\n');
+        out.append("Phase timeline, %d ms in total, one column is %.1f ms%n".formatted(millis(end), millis(end) / (double) TIMELINE_WIDTH));
+        out.append("-".repeat(100)).append('\n');
+
+        for (Phase phase : Phase.values()) {
+            int base = phase.ordinal() * FIELDS;
+            int active = 0;
+            long spans = 0, bytes = 0, busyMin = Long.MAX_VALUE, busyMax = 0, busySum = 0;
+            long beginMin = Long.MAX_VALUE, beginMax = Long.MIN_VALUE, endMin = Long.MAX_VALUE, endMax = Long.MIN_VALUE;
+            for (long[] row : threads) {
+                if (row[base + SPANS] == 0) {
+                    continue;
+                }
+                active++;
+                spans += row[base + SPANS];
+                bytes += row[base + BYTES];
+                busyMin = Math.min(busyMin, row[base + BUSY]);
+                busyMax = Math.max(busyMax, row[base + BUSY]);
+                busySum += row[base + BUSY];
+                beginMin = Math.min(beginMin, row[base + FIRST_START]);
+                beginMax = Math.max(beginMax, row[base + FIRST_START]);
+                endMin = Math.min(endMin, row[base + LAST_END]);
+                endMax = Math.max(endMax, row[base + LAST_END]);
+            }
+            if (active == 0) {
+                continue;
+            }
+            out.append("%-6s threads %d, spans %d, %s, busy min/avg/max %d/%d/%d ms, begin %d-%d ms, end %d-%d ms%s%n".formatted(
+                    phase, active, spans, size(bytes), millis(busyMin), millis(busySum / active), millis(busyMax),
+                    millis(beginMin - startTime), millis(beginMax - startTime), millis(endMin - startTime), millis(endMax - startTime),
+                    bytes > 0 && busySum > 0 ? ", " + size(bytes * 1_000_000_000L / (busySum / active)) + "/s" : ""));
+            for (int t = 0; t < threads.length; t++) {
+                long[] row = threads[t];
+                if (row[base + SPANS] == 0) {
+                    continue;
+                }
+                long first = row[base + FIRST_START] - startTime;
+                long last = row[base + LAST_END] - startTime;
+                char[] bar = new char[TIMELINE_WIDTH];
+                Arrays.fill(bar, ' ');
+                int from = (int) Math.min(TIMELINE_WIDTH - 1, first * TIMELINE_WIDTH / Math.max(1, end));
+                int to = (int) Math.min(TIMELINE_WIDTH - 1, last * TIMELINE_WIDTH / Math.max(1, end));
+                Arrays.fill(bar, from, to + 1, '#');
+                out.append("  %4d |%s| %6d - %6d ms, busy %6d ms, %d spans, %s%n".formatted(
+                        t, new String(bar), millis(first), millis(last), millis(row[base + BUSY]), row[base + SPANS], size(row[base + BYTES])));
+            }
+        }
+
+        long steals = 0;
+        StringBuilder perThread = new StringBuilder();
+        for (int t = 0; t < threads.length; t++) {
+            if (threads[t][STEALS] > 0) {
+                steals += threads[t][STEALS];
+                perThread.append(perThread.isEmpty() ? "" : ", ").append(t).append('=').append(threads[t][STEALS]);
+            }
+        }
+        if (steals > 0) {
+            out.append("Steals %d: %s%n".formatted(steals, perThread));
+        }
+
+        int events = Math.min(eventCount.get(), MAX_EVENTS);
+        for (int i = 0; i < events; i++) {
+            out.append("Event %6d ms %s%n".formatted(millis(eventTimes[i] - startTime), eventNames[i]));
+        }
+        return out.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String size(long bytes) {
+        if (bytes >= 1L << 30) {
+            return "%.1f GB".formatted(bytes / (double) (1L << 30));
+        }
+        if (bytes >= 1L << 20) {
+            return "%.1f MB".formatted(bytes / (double) (1L << 20));
+        }
+        return bytes + " bytes";
+    }
+}
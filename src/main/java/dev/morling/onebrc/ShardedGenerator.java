@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.random.RandomGenerator;
+
+/**
+ * Seeded, shard-parallel file writer shared by the CreateMeasurements* generators.
+ * <p>
+ * The rows are split into shards of {@link #SHARD_ROWS}. Shard {@code i} draws all of its randomness from the
+ * {@code i}-th seed of a {@link SplittableRandom} seeded with the master seed, so its content only depends on the
+ * master seed and the row count, never on the number of threads. A first parallel pass formats every shard without
+ * writing it to learn its byte length; the lengths are summed into file offsets and a second parallel pass formats
+ * the rows into a reusable direct buffer per thread and writes them with positional
+ * {@link FileChannel#write(ByteBuffer, long)} calls. The first pass also collects the emitted values of each shard
+ * and adds them to aggregates shared by all threads, which yields the expected {@code .out} file without reading the
+ * measurements again; memory grows with the number of stations only once, not once per thread.
+ */
+final class ShardedGenerator {
+
+    static final int SHARD_ROWS = 1 << 20;
+    // Longest possible row: 100 bytes of name, ';', a temperature and '\n'
+    static final int MAX_ROW_LENGTH = 128;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Where a row writer adds the values it emits, see {@link MeasurementAggregates}.
+     */
+    @FunctionalInterface
+    interface Sink {
+        void add(int station, int tenths);
+    }
+
+    /**
+     * Formats one row, drawing only from the given random generator, and adds the emitted value to the aggregates.
+     */
+    @FunctionalInterface
+    interface RowWriter {
+        void write(RandomGenerator random, ByteBuffer buffer, Sink aggregates);
+    }
+
+    private ShardedGenerator() {
+    }
+
+    /**
+     * Writes {@code rows} rows to {@code file} and the expected result to the matching {@code .out} file.
+     *
+     * @param names the station names, indexed like the station indexes the row writer aggregates
+     */
+    static void write(Path file, long rows, long seed, int threads, String[] names, RowWriter rowWriter) throws IOException {
+        int shardCount = (int) ((rows + SHARD_ROWS - 1) / SHARD_ROWS);
+        long[] shardSeeds = new long[shardCount];
+        SplittableRandom master = new SplittableRandom(seed);
+        for (int i = 0; i < shardCount; i++) {
+            shardSeeds[i] = master.nextLong();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE));
+        MeasurementAggregates result = new MeasurementAggregates(names);
+        ThreadLocal<MeasurementAggregates.Buffer> values = ThreadLocal.withInitial(() -> new MeasurementAggregates.Buffer(SHARD_ROWS));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // First pass: byte length of every shard, turned into file offsets, and the aggregates of its values
+            long[] offsets = new long[shardCount + 1];
+            CompletableFuture<?>[] futures = new CompletableFuture[shardCount];
+            for (int n = 0; n < shardCount; n++) {
+                int shard = n;
+                futures[n] = CompletableFuture.runAsync(() -> {
+                    MeasurementAggregates.Buffer shardValues = values.get();
+                    offsets[shard + 1] = writeShard(null, buffers.get(), shardValues, 0, shardRows(rows, shard), shardSeeds[shard], rowWriter);
+                    result.addAll(shardValues);
+                }, executor);
+            }
+            CompletableFuture.allOf(futures).join();
+            for (int i = 0; i < shardCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+
+            // Second pass: format and write every shard at its offset; the values were already aggregated
+            for (int n = 0; n < shardCount; n++) {
+                int shard = n;
+                futures[n] = CompletableFuture.runAsync(
+                        () -> writeShard(channel, buffers.get(), MeasurementAggregates.NONE, offsets[shard], shardRows(rows, shard), shardSeeds[shard], rowWriter),
+                        executor);
+            }
+            CompletableFuture.allOf(futures).join();
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        result.writeResult(file);
+    }
+
+    /**
+     * Formats {@code rows} rows; writes them at {@code position} unless {@code channel} is {@code null}.
+     *
+     * @return the number of bytes of the shard
+     */
+    private static long writeShard(FileChannel channel, ByteBuffer buffer, Sink aggregates, long position, long rows, long seed,
+                                   RowWriter rowWriter) {
+        RandomGenerator random = new SplittableRandom(seed);
+        long length = 0;
+        buffer.clear();
+        try {
+            for (long i = rows; i > 0; i--) {
+                if (buffer.remaining() < MAX_ROW_LENGTH) {
+                    length += flush(channel, buffer, position + length);
+                }
+                rowWriter.write(random, buffer, aggregates);
+            }
+            length += flush(channel, buffer, position + length);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return length;
+    }
+
+    private static long shardRows(long rows, int shard) {
+        return Math.min(SHARD_ROWS, rows - (long) shard * SHARD_ROWS);
+    }
+
+    private static int flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Appends a temperature given in tenths of a degree, formatted like {@code Double.toString} of the rounded value.
+     */
+    static void putTemperature(ByteBuffer buffer, int tenths) {
+        if (tenths < 0) {
+            buffer.put((byte) '-');
+            tenths = -tenths;
+        }
+        int integral = tenths / 10;
+        if (integral >= 100) {
+            buffer.put((byte) ('0' + integral / 100));
+        }
+        if (integral >= 10) {
+            buffer.put((byte) ('0' + integral / 10 % 10));
+        }
+        buffer.put((byte) ('0' + integral % 10));
+        buffer.put((byte) '.');
+        buffer.put((byte) ('0' + tenths % 10));
+    }
+
+    /**
+     * Parses the {@code --key=value} options following the positional arguments; any key but the given ones is
+     * rejected, so that a typo does not silently fall back to the default.
+     */
+    static Map<String, String> parseOptions(String[] args, int from, String... keys) {
+        List<String> known = List.of(keys);
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String key = arg.substring(2, separator);
+            if (!known.contains(key)) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ", expected one of " + known);
+            }
+            options.put(key, arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
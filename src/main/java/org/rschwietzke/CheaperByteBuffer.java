@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.rschwietzke;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * <p>Byte-oriented sibling of {@link CheaperCharBuffer}. Instead of chars that
+ * still have to go through a charset encoder on their way to the disk, this
+ * buffer holds the final bytes: callers append already encoded UTF-8 data,
+ * such as a station name they encoded once upfront, and numbers are appended
+ * as ASCII digits without creating a String first.
+ *
+ * <p>The content can be drained straight into a channel or a {@link ByteBuffer},
+ * so nothing ever touches a Writer.
+ *
+ * <p>Same rules as for {@link CheaperCharBuffer}: this buffer is mutable,
+ * reused, and avoids runtime checks that would result in an array exception
+ * anyway.
+ */
+public class CheaperByteBuffer {
+    // our data, can grow
+    public byte[] data_;
+
+    // the current size of the data
+    public int length_;
+
+    // how much do we grow at least if needed
+    private final int growBy_;
+
+    // how much do we grow if needed, half a cache line
+    public static final int CAPACITY_GROWTH = 64 / 2;
+
+    // what is our start size? one cache line minus the array overhead
+    public static final int INITIAL_CAPACITY = 64 - 24;
+
+    // digits of 0 to 99 as two ASCII bytes each, so we convert two digits at a time
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[i * 2] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[i * 2 + 1] = (byte) ('0' + i % 10);
+        }
+    }
+
+    /**
+     * Constructs a buffer with a default size.
+     */
+    public CheaperByteBuffer() {
+        this(INITIAL_CAPACITY, CAPACITY_GROWTH);
+    }
+
+    /**
+     * Constructs a buffer with a desired size.
+     *
+     * @param startSize the size of the buffer to start with
+     */
+    public CheaperByteBuffer(final int startSize) {
+        this(startSize, CAPACITY_GROWTH);
+    }
+
+    /**
+     * Constructs a buffer with a desired size.
+     *
+     * @param startSize the size of the buffer to start with
+     * @param growBy by how much do we want to grow when needed
+     */
+    public CheaperByteBuffer(final int startSize, final int growBy) {
+        this.data_ = new byte[startSize];
+        this.length_ = 0;
+        this.growBy_ = Math.max(1, growBy);
+    }
+
+    /**
+     * Check capacity and grow if needed automatically
+     *
+     * @param minimumCapacity how much space do we need at least
+     */
+    private void ensureCapacity(final int minimumCapacity) {
+        if (minimumCapacity > this.data_.length) {
+            final int newSize = Math.max(minimumCapacity + this.growBy_, (this.data_.length << 1) + 2);
+            this.data_ = Arrays.copyOf(this.data_, newSize);
+        }
+    }
+
+    /**
+     * Returns the current max capacity without growth.
+     *
+     * @return the current capacity, not taken any usage into account
+     */
+    public int capacity() {
+        return this.data_.length;
+    }
+
+    /**
+     * Returns the current length
+     *
+     * @return the number of bytes in this buffer
+     */
+    public int length() {
+        return this.length_;
+    }
+
+    /**
+     * Appends a single byte to the buffer.
+     *
+     * @param b the byte to append
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte b) {
+        final int oldLength = this.length_++;
+
+        // same as in CheaperCharBuffer.append(char), don't rely on inlining
+        if (oldLength == this.data_.length) {
+            final int newSize = Math.max(oldLength + this.growBy_, (this.data_.length << 1) + 2);
+            this.data_ = Arrays.copyOf(this.data_, newSize);
+        }
+
+        this.data_[oldLength] = b;
+
+        return this;
+    }
+
+    /**
+     * Add already encoded data, e.g. cached UTF-8 bytes of a name.
+     *
+     * @param src the source byte array
+     * @param offset the pos to start to copy from
+     * @param length the length of the data to copy
+     *
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte[] src, final int offset, final int length) {
+        final int start = this.length_;
+        this.length_ = start + length;
+
+        ensureCapacity(this.length_);
+
+        System.arraycopy(src, offset, this.data_, start, length);
+
+        return this;
+    }
+
+    /**
+     * Add already encoded data, e.g. cached UTF-8 bytes of a name.
+     *
+     * @param src the bytes to append
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte[] src) {
+        return append(src, 0, src.length);
+    }
+
+    /**
+     * Appends an int as ASCII digits, like {@link String#valueOf(int)} would
+     * render it, but without the String.
+     *
+     * @param value the number to append
+     * @return this instance
+     */
+    public CheaperByteBuffer appendInt(final int value) {
+        // work on the negative value, so Integer.MIN_VALUE needs no special case
+        int v = value < 0 ? value : -value;
+        final int digits = digits(v) + (value < 0 ? 1 : 0);
+
+        ensureCapacity(this.length_ + digits);
+        int pos = this.length_ + digits;
+        this.length_ = pos;
+
+        while (v <= -100) {
+            final int q = v / 100;
+            final int pair = (q * 100 - v) << 1;
+            this.data_[--pos] = DIGIT_PAIRS[pair + 1];
+            this.data_[--pos] = DIGIT_PAIRS[pair];
+            v = q;
+        }
+        if (v <= -10) {
+            final int pair = -v << 1;
+            this.data_[--pos] = DIGIT_PAIRS[pair + 1];
+            this.data_[--pos] = DIGIT_PAIRS[pair];
+        }
+        else {
+            this.data_[--pos] = (byte) ('0' - v);
+        }
+        if (value < 0) {
+            this.data_[--pos] = '-';
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends a value given in tenths as a number with exactly one fractional
+     * digit, e.g. -123 as "-12.3" and 5 as "0.5".
+     *
+     * @param tenths the value times ten
+     * @return this instance
+     */
+    public CheaperByteBuffer appendTenths(final int tenths) {
+        if (tenths < 0) {
+            append((byte) '-');
+        }
+        // tenths are small, so the absolute value cannot overflow in practice
+        final int abs = Math.abs(tenths);
+        appendInt(abs / 10);
+        ensureCapacity(this.length_ + 2);
+        this.data_[this.length_++] = '.';
+        this.data_[this.length_++] = (byte) ('0' + abs % 10);
+
+        return this;
+    }
+
+    /**
+     * Number of digits of a value that is zero or negative.
+     */
+    private static int digits(final int negative) {
+        int p = -10;
+        for (int i = 1; i < 10; i++) {
+            if (negative > p) {
+                return i;
+            }
+            p = 10 * p;
+        }
+        return 10;
+    }
+
+    /**
+     * Resets the buffer to 0 length. It won't resize it to avoid memory
+     * churn.
+     *
+     * @return this instance for fluid programming
+     */
+    public CheaperByteBuffer clear() {
+        this.length_ = 0;
+
+        return this;
+    }
+
+    /**
+     * Writes the whole content to the channel, e.g. a FileChannel, and clears
+     * the buffer. The backing array is wrapped, not copied.
+     *
+     * @param channel the channel to write to
+     * @return this instance for fluid programming
+     * @throws IOException in case the channel fails
+     */
+    public CheaperByteBuffer drainTo(final WritableByteChannel channel) throws IOException {
+        final ByteBuffer src = ByteBuffer.wrap(this.data_, 0, this.length_);
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+
+        return clear();
+    }
+
+    /**
+     * Copies the whole content into the target buffer and clears this buffer.
+     * The target must have enough space remaining.
+     *
+     * @param target the buffer to put the data into
+     * @return this instance for fluid programming
+     */
+    public CheaperByteBuffer drainTo(final ByteBuffer target) {
+        target.put(this.data_, 0, this.length_);
+
+        return clear();
+    }
+
+    /**
+     * Get the bytes as array, this will be a copy!
+     *
+     * @return a copy of the underlying data
+     */
+    public byte[] getBytes() {
+        return Arrays.copyOf(this.data_, this.length_);
+    }
+}
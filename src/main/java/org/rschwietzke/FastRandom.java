@@ -25,6 +25,36 @@ package org.rschwietzke;
  *
  */
 public class FastRandom {
+    // Ziggurat tables for the normal distribution, 128 layers, after
+    // Marsaglia and Tsang, "The Ziggurat Method for Generating Random Variables"
+    static final double R = 3.442619855899;
+    static final int[] KN = new int[128];
+    static final double[] WN = new double[128];
+    static final double[] FN = new double[128];
+
+    static {
+        final double m1 = 2147483648.0;
+        final double vn = 9.91256303526217e-3;
+        double dn = R;
+        double tn = dn;
+        final double q = vn / Math.exp(-.5 * dn * dn);
+
+        KN[0] = (int) ((dn / q) * m1);
+        KN[1] = 0;
+        WN[0] = q / m1;
+        WN[127] = dn / m1;
+        FN[0] = 1.0;
+        FN[127] = Math.exp(-.5 * dn * dn);
+
+        for (int i = 126; i >= 1; i--) {
+            dn = Math.sqrt(-2 * Math.log(vn / dn + Math.exp(-.5 * dn * dn)));
+            KN[i + 1] = (int) ((dn / tn) * m1);
+            tn = dn;
+            FN[i] = Math.exp(-.5 * dn * dn);
+            WN[i] = dn / m1;
+        }
+    }
+
     private long seed;
 
     public FastRandom() {
@@ -73,4 +103,109 @@ public class FastRandom {
     public int nextInt() {
         return next(32);
     }
+
+    /**
+     * Returns a random generator for the bulk methods, the Vector API
+     * implementation if the jdk.incubator.vector module is there, this
+     * one otherwise.
+     *
+     * @param seed the seed
+     * @return a generator
+     */
+    public static FastRandom forBulk(long seed) {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return new FastRandomVector(seed);
+        }
+        return new FastRandom(seed);
+    }
+
+    /**
+     * Fills an array range with values in {@code [0, bound)}, same as calling
+     * {@link #nextInt(int)} for every element.
+     *
+     * @param dest the array to fill
+     * @param offset the first index to fill
+     * @param length how many values to fill
+     * @param bound the upper bound (exclusive), must be positive
+     */
+    public void nextInts(int[] dest, int offset, int length, int bound) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            dest[i] = nextInt(bound);
+        }
+    }
+
+    /**
+     * Standard normal distributed value, ziggurat method, no Random
+     * inheritance and hence no locking or volatile.
+     *
+     * @return the next Gaussian value with mean 0 and standard deviation 1
+     */
+    public double nextGaussian() {
+        final int hz = next(32);
+        final int iz = hz & 127;
+        // fast path, taken about 99% of the time
+        if (Math.abs(hz) < KN[iz]) {
+            return hz * WN[iz];
+        }
+        return nextGaussianSlow(hz, iz);
+    }
+
+    /**
+     * The rare part of the ziggurat, the wedges and the tail.
+     */
+    double nextGaussianSlow(int hz, int iz) {
+        for (;;) {
+            double x = hz * WN[iz];
+            if (iz == 0) {
+                // the tail beyond R
+                double y;
+                do {
+                    x = -Math.log(nextUniform()) / R;
+                    y = -Math.log(nextUniform());
+                } while (y + y < x * x);
+                return hz > 0 ? R + x : -R - x;
+            }
+            if (FN[iz] + nextUniform() * (FN[iz - 1] - FN[iz]) < Math.exp(-.5 * x * x)) {
+                return x;
+            }
+
+            hz = next(32);
+            iz = hz & 127;
+            if (Math.abs(hz) < KN[iz]) {
+                return hz * WN[iz];
+            }
+        }
+    }
+
+    /**
+     * Uniform in (0, 1), never 0, so we can take the log.
+     */
+    private double nextUniform() {
+        return (next(24) + 0.5) * 0x1.0p-24;
+    }
+
+    /**
+     * Fills an array range with Gaussian values in tenths, e.g. 123 for 12.3,
+     * rounded like {@code Math.round(value * 10.0)}. Values outside the short
+     * range are clamped.
+     *
+     * @param dest the array to fill
+     * @param offset the first index to fill
+     * @param length how many values to fill
+     * @param mean the mean, not in tenths
+     * @param stddev the standard deviation, not in tenths
+     */
+    public void nextGaussianTenths(short[] dest, int offset, int length, double mean, double stddev) {
+        final double m = mean * 10.0;
+        final double s = stddev * 10.0;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            dest[i] = toShort(Math.round(m + s * nextGaussian()));
+        }
+    }
+
+    static short toShort(long value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.rschwietzke;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API version of the bulk methods of {@link FastRandom}. Every lane
+ * runs its own xorshift generator, so one step yields a full vector of
+ * random values. The sequences differ from the scalar ones.
+ *
+ * <p>Use {@link FastRandom#forBulk(long)} to get one, that checks whether the
+ * incubator module is there at all. Not thread-safe either.
+ */
+public class FastRandomVector extends FastRandom {
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // same number of lanes as LONGS, half the bits
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+    // a quarter of the bits, there is no such shape below 64 bits, then we store through the int lanes
+    private static final VectorSpecies<Short> SHORTS = LONGS.vectorBitSize() >= 256
+            ? VectorSpecies.of(short.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 4))
+            : null;
+
+    // one xorshift state per lane
+    private LongVector state;
+
+    // ziggurat layer per lane, for the table gathers
+    private final int[] layers = new int[LONGS.length()];
+    // raw bits and fast path results per lane
+    private final int[] bits = new int[LONGS.length()];
+    private final int[] tenths = new int[LONGS.length()];
+
+    public FastRandomVector(long seed) {
+        super(seed);
+
+        // splitmix64 to spread the seed over the lanes, xorshift must not start at 0
+        final long[] seeds = new long[LONGS.length()];
+        long s = seed;
+        for (int i = 0; i < seeds.length; i++) {
+            s += 0x9E3779B97F4A7C15L;
+            long z = s;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            seeds[i] = z == 0 ? 0x9E3779B97F4A7C15L : z;
+        }
+        this.state = LongVector.fromArray(LONGS, seeds, 0);
+    }
+
+    /**
+     * Same xorshift step as {@link FastRandom#next(int)}, on all lanes.
+     */
+    private LongVector step() {
+        LongVector x = this.state;
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHL, 21));
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 35));
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHL, 4));
+        this.state = x;
+
+        return x;
+    }
+
+    /**
+     * Multiply-shift instead of the rejection loop of {@link #nextInt(int)},
+     * which cannot be done per lane. The bias is at most bound / 2^31, way
+     * below anything we could notice in the data.
+     */
+    @Override
+    public void nextInts(int[] dest, int offset, int length, int bound) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i += LONGS.length()) {
+            final LongVector r = step()
+                    .lanewise(VectorOperators.AND, 0x7fffffffL)
+                    .mul(bound)
+                    .lanewise(VectorOperators.LSHR, 31);
+            final IntVector v = (IntVector) r.convertShape(VectorOperators.L2I, INTS, 0);
+            v.intoArray(dest, i, INTS.indexInRange(i, end));
+        }
+    }
+
+    /**
+     * Runs the fast path of the ziggurat on all lanes at once, the few lanes
+     * that hit a wedge or the tail are finished with the scalar code.
+     */
+    @Override
+    public void nextGaussianTenths(short[] dest, int offset, int length, double mean, double stddev) {
+        final double m = mean * 10.0;
+        final double s = stddev * 10.0;
+        final int lanes = LONGS.length();
+        final int end = offset + length;
+
+        for (int i = offset; i < end; i += lanes) {
+            final IntVector hz = (IntVector) step().convertShape(VectorOperators.L2I, INTS, 0);
+            hz.intoArray(this.bits, 0);
+            hz.lanewise(VectorOperators.AND, 127).intoArray(this.layers, 0);
+
+            final IntVector kn = IntVector.fromArray(INTS, KN, 0, this.layers, 0);
+            final VectorMask<Integer> fast = hz.lanewise(VectorOperators.ABS).compare(VectorOperators.LT, kn);
+
+            // Math.round(m + s * hz * WN[iz]) is floor(x + 0.5), but the conversion truncates
+            final DoubleVector wn = DoubleVector.fromArray(DOUBLES, WN, 0, this.layers, 0);
+            final DoubleVector x = ((DoubleVector) hz.convertShape(VectorOperators.I2D, DOUBLES, 0))
+                    .mul(wn).mul(s).add(m + 0.5);
+            LongVector t = (LongVector) x.convertShape(VectorOperators.D2L, LONGS, 0);
+            final DoubleVector back = (DoubleVector) t.convertShape(VectorOperators.L2D, DOUBLES, 0);
+            t = t.sub(1, back.compare(VectorOperators.GT, x).cast(LONGS));
+            t = t.max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+
+            final int n = Math.min(lanes, end - i);
+            if (SHORTS != null && n == lanes && fast.allTrue()) {
+                // the common case, no lane left for the scalar code
+                ((ShortVector) t.convertShape(VectorOperators.L2S, SHORTS, 0)).intoArray(dest, i);
+                continue;
+            }
+
+            ((IntVector) t.convertShape(VectorOperators.L2I, INTS, 0)).intoArray(this.tenths, 0);
+            final long fastLanes = fast.toLong();
+            for (int j = 0; j < n; j++) {
+                if ((fastLanes & (1L << j)) != 0) {
+                    dest[i + j] = (short) this.tenths[j];
+                }
+                else {
+                    dest[i + j] = toShort(Math.round(m + s * nextGaussianSlow(this.bits[j], this.layers[j])));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Runs every entry on every sample in {@code src/test/resources/samples} and compares the result with the {@code .out}
+ * file, like {@code test_all.sh}, but without a JVM per run where that can be avoided:
+ * <p>
+ * {@code ./mvnw test -Dconformance} runs all entries, {@code -Dconformance=<regex>} those whose name matches.
+ * <p>
+ * The entries are the {@code calculate_average_*.sh} scripts. Each script is run once with a {@code java} on the
+ * {@code PATH} that only records its arguments, which gives the entry class, its JVM options and its program
+ * arguments however the script puts them together. Scripts that start a native image, nothing at all or a class which
+ * is not part of this build are left out.
+ * <p>
+ * The {@code main} method is called in this JVM, in a class loader of its own so that static state does not leak
+ * from one sample into the next. As the entries read {@code ./measurements.txt} and write to {@code System.out}, these
+ * runs take turns. Entries that exit the JVM, start processes, write to the file descriptor directly or need JVM
+ * options this JVM does not have run in a JVM of their own instead, in parallel.
+ * <p>
+ * An entry that times out in this JVM cannot be stopped, its threads go on writing to {@code System.out} and reading
+ * {@code ./measurements.txt}. Its run is repeated in a JVM of its own, as are all of its later runs, and no other
+ * entry runs in this JVM while threads of the timed out one are still alive.
+ */
+@EnabledIfSystemProperty(named = "conformance", matches = ".*")
+@Execution(ExecutionMode.CONCURRENT)
+class CalculateAverageConformanceTest {
+
+    private static final Path CLASSES = Path.of("target", "classes");
+    private static final Path SOURCES = Path.of("src", "main", "java", "dev", "morling", "onebrc");
+    private static final Path SAMPLES = Path.of("src", "test", "resources", "samples");
+    private static final Path MEASUREMENTS = Path.of("measurements.txt");
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(Long.getLong("conformance.timeout", 10));
+
+    // Things an entry can do to this JVM or its output which a class loader does not contain
+    private static final Pattern NEEDS_OWN_JVM = Pattern.compile(
+            "System\\.exit|Runtime\\.getRuntime\\(\\)\\.(exit|halt)|ProcessBuilder|ProcessHandle|FileDescriptor\\.out");
+    // JVM options this JVM runs with, see the surefire configuration, and tuning flags that do not change results
+    private static final Pattern HARMLESS_OPTION = Pattern.compile(
+            "--enable-preview|--add-modules(=| )?(jdk\\.incubator\\.vector)?|jdk\\.incubator\\.vector|-X.*|-server|-d?sa|-da|-ea");
+    private static final Pattern CLASS_PATH_OPTION = Pattern.compile("-cp|-classpath|--class-path");
+    // Launcher options whose value may be the next argument
+    private static final Pattern OPTION_WITH_VALUE = Pattern.compile(
+            "--add-(modules|opens|exports|reads)|--enable-native-access|--limit-modules|--patch-module|--(upgrade-)?module-path|-p");
+    private static final String SCRIPT_PREFIX = "calculate_average_";
+
+    // Prints its arguments NUL-separated, a later call of the same script replaces those of an earlier one
+    private static final String JAVA_SHIM = """
+            #!/bin/sh
+            for arg in "$@"; do printf '%s\\0' "$arg"; done > "$CONFORMANCE_INVOCATION"
+            """;
+
+    // stdout and ./measurements.txt belong to the whole JVM
+    private static final ReentrantLock IN_PROCESS = new ReentrantLock();
+    // Entries that timed out in this JVM, and the thread groups of those runs
+    private static final Set<String> TIMED_OUT = ConcurrentHashMap.newKeySet();
+    private static final List<ThreadGroup> HUNG = new CopyOnWriteArrayList<>();
+
+    /**
+     * How a script starts its entry.
+     */
+    record Invocation(String entry, List<String> javaOptions, List<String> args) {
+    }
+
+    static Stream<Arguments> runs() throws Exception {
+        String filter = System.getProperty("conformance");
+        Pattern forks = filter.isEmpty() || filter.equals("true") ? Pattern.compile(".*") : Pattern.compile(filter);
+        List<Path> samples;
+        try (var files = Files.list(SAMPLES)) {
+            samples = files.filter(p -> p.toString().endsWith(".txt")).sorted().toList();
+        }
+        List<Path> scripts;
+        try (var files = Files.list(Path.of("."))) {
+            scripts = files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SCRIPT_PREFIX) && name.endsWith(".sh")
+                        && forks.matcher(name.substring(SCRIPT_PREFIX.length(), name.length() - ".sh".length())).matches();
+            }).sorted().toList();
+        }
+        List<Arguments> runs = new ArrayList<>();
+        Path shimDir = Files.createTempDirectory("conformance");
+        try {
+            Path java = shimDir.resolve("java");
+            Files.writeString(java, JAVA_SHIM);
+            Files.setPosixFilePermissions(java, PosixFilePermissions.fromString("rwx------"));
+            for (Path script : scripts) {
+                String name = script.getFileName().toString();
+                String fork = name.substring(SCRIPT_PREFIX.length(), name.length() - ".sh".length());
+                Invocation invocation = invocation(script, shimDir);
+                // Not every script has its entry in this source tree
+                if (invocation != null && Files.exists(CLASSES.resolve(invocation.entry().replace('.', '/') + ".class"))) {
+                    for (Path sample : samples) {
+                        runs.add(Arguments.of(fork, sample.getFileName().toString(), invocation));
+                    }
+                }
+            }
+        }
+        finally {
+            deleteRecursively(shimDir);
+        }
+        return runs.stream();
+    }
+
+    @ParameterizedTest(name = "{0} {1}")
+    @MethodSource("runs")
+    void producesExpectedResult(String fork, String sample, Invocation invocation) throws Exception {
+        Path input = SAMPLES.resolve(sample).toAbsolutePath();
+        String expected = Files.readString(SAMPLES.resolve(sample.replace(".txt", ".out")));
+
+        String actual = needsOwnJvm(invocation) ? null : runInProcess(invocation, input);
+        if (actual == null) {
+            actual = runInOwnJvm(invocation, input);
+        }
+        assertThat(rows(actual)).as("%s on %s", fork, sample).containsExactlyElementsOf(rows(expected));
+    }
+
+    private static boolean needsOwnJvm(Invocation invocation) throws IOException {
+        if (TIMED_OUT.contains(invocation.entry()) || !invocation.javaOptions().stream().allMatch(option -> HARMLESS_OPTION.matcher(option).matches())) {
+            return true;
+        }
+        Path source = SOURCES.resolve(invocation.entry().substring(invocation.entry().lastIndexOf('.') + 1) + ".java");
+        // A regular measurements.txt is somebody's data, which we must not replace by a link to a sample
+        return !Files.exists(source)
+                || NEEDS_OWN_JVM.matcher(Files.readString(source)).find()
+                || (Files.exists(MEASUREMENTS, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(MEASUREMENTS));
+    }
+
+    /**
+     * The output of the entry, or {@code null} if it has to run in a JVM of its own after all.
+     */
+    private static String runInProcess(Invocation invocation, Path input) throws Exception {
+        IN_PROCESS.lock();
+        PrintStream stdout = System.out;
+        if (hungThreadsAlive()) {
+            IN_PROCESS.unlock();
+            return null;
+        }
+        try (var loader = new URLClassLoader(new URL[]{ CLASSES.toUri().toURL() }, ClassLoader.getPlatformClassLoader())) {
+            Files.deleteIfExists(MEASUREMENTS);
+            Files.createSymbolicLink(MEASUREMENTS, input);
+            Method main = loader.loadClass(invocation.entry()).getMethod("main", String[].class);
+            // Some entry classes are not public
+            main.setAccessible(true);
+            String[] args = invocation.args().toArray(String[]::new);
+            var output = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+            // Threads the entry starts end up in this group, mostly; pools that are not its own do not
+            ThreadGroup group = new ThreadGroup("conformance " + invocation.entry());
+            var failure = new AtomicReference<Throwable>();
+            Thread runner = new Thread(group, () -> {
+                try {
+                    main.invoke(null, (Object) args);
+                }
+                catch (InvocationTargetException e) {
+                    failure.set(e.getCause());
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+            }, invocation.entry());
+            runner.setDaemon(true);
+            runner.start();
+            runner.join(Math.max(1, TIMEOUT.toMillis()));
+            if (runner.isAlive()) {
+                runner.interrupt();
+                TIMED_OUT.add(invocation.entry());
+                HUNG.add(group);
+                return null;
+            }
+            if (failure.get() instanceof Exception e) {
+                throw e;
+            }
+            if (failure.get() instanceof Error e) {
+                throw e;
+            }
+            System.out.flush();
+            return output.toString(StandardCharsets.UTF_8);
+        }
+        finally {
+            System.setOut(stdout);
+            Files.deleteIfExists(MEASUREMENTS);
+            IN_PROCESS.unlock();
+        }
+    }
+
+    private static boolean hungThreadsAlive() {
+        HUNG.removeIf(group -> group.activeCount() == 0);
+        return !HUNG.isEmpty();
+    }
+
+    private static String runInOwnJvm(Invocation invocation, Path input) throws Exception {
+        Path workDir = Files.createTempDirectory("conformance");
+        try {
+            Files.createSymbolicLink(workDir.resolve(MEASUREMENTS), input);
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            // Heap sizes meant for the evaluation machine may not even fit here
+            invocation.javaOptions().stream().filter(option -> !option.matches("-Xm[sx].*|-XX:\\+AlwaysPreTouch")).forEach(command::add);
+            command.addAll(List.of("--enable-preview", "--add-modules", "jdk.incubator.vector", "-Dstdout.encoding=UTF-8"));
+            // The JVM logs its warnings to stdout by default, which would end up in the result
+            command.addAll(List.of("-Xlog:disable", "-Xlog:all=warning:stderr"));
+            command.addAll(List.of("--class-path", CLASSES.toAbsolutePath().toString(), invocation.entry()));
+            command.addAll(invocation.args());
+            Path stderr = Files.createTempFile("conformance", ".err");
+            Process process = new ProcessBuilder(command)
+                    .directory(workDir.toFile())
+                    .redirectError(stderr.toFile())
+                    .start();
+            var output = new ByteArrayOutputStream();
+            var reader = Thread.ofVirtual().start(() -> {
+                try (var stdout = process.getInputStream()) {
+                    stdout.transferTo(output);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (!process.waitFor(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                fail(invocation.entry() + " timed out");
+            }
+            reader.join();
+            String errors = Files.readString(stderr);
+            Files.delete(stderr);
+            if (process.exitValue() != 0) {
+                fail(invocation.entry() + " exited with " + process.exitValue() + ":\n" + errors);
+            }
+            return output.toString(StandardCharsets.UTF_8);
+        }
+        finally {
+            // Entries may leave files of their own behind
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * The last {@code java} command of the script, or {@code null} if it does not run one.
+     */
+    private static Invocation invocation(Path script, Path shimDir) throws Exception {
+        Path recorded = shimDir.resolve(script.getFileName() + ".args");
+        ProcessBuilder builder = new ProcessBuilder("bash", script.toString())
+                .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        builder.environment().put("PATH", shimDir + File.pathSeparator + System.getenv("PATH"));
+        builder.environment().put("CONFORMANCE_INVOCATION", recorded.toString());
+        Process process = builder.start();
+        if (!process.waitFor(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+        if (!Files.exists(recorded)) {
+            return null;
+        }
+        String content = Files.readString(recorded);
+        List<String> arguments = content.isEmpty() ? List.of() : List.of(content.substring(0, content.length() - 1).split("\0", -1));
+        List<String> javaOptions = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (CLASS_PATH_OPTION.matcher(argument).matches()) {
+                i++;
+            }
+            else if (OPTION_WITH_VALUE.matcher(argument).matches() && i + 1 < arguments.size()) {
+                javaOptions.add(argument);
+                javaOptions.add(arguments.get(++i));
+            }
+            else if (argument.startsWith("-")) {
+                javaOptions.add(argument);
+            }
+            else {
+                return new Invocation(argument, javaOptions, arguments.subList(i + 1, arguments.size()));
+            }
+        }
+        return null;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * One row per station as {@code tocsv.sh} makes it, names may contain ", " themselves.
+     */
+    private static List<String> rows(String result) {
+        String rows = result.strip();
+        if (rows.startsWith("{") && rows.endsWith("}")) {
+            rows = rows.substring(1, rows.length() - 1);
+        }
+        return List.of(rows.split("(?<=[0-9]), "));
+    }
+}
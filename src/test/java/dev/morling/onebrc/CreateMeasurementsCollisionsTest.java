@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the model of {@code CalculateAverage_thomaswue} against the entry itself: its lookup is called on a row in
+ * native memory, and the bucket it takes has to be the one the model predicts.
+ */
+class CreateMeasurementsCollisionsTest {
+
+    private static final CreateMeasurementsCollisions.BucketFunction MODEL = new CreateMeasurementsCollisions.ThomasWue();
+
+    @ParameterizedTest
+    @ValueSource(strings = { "A", "Bonn", "Hamburg", "Abcdefgh", "Düsseldorf", "Rio de Janeiro", "Abcdefghijklmno", "Abcdefghijklmnop",
+            "Las Palmas de Gran Canaria", "Llanfairpwllgwyngyllgogerychwyndrobwllllantysiliogogogoch" })
+    void startsAtTheBucketOfTheEntry(String name) throws Exception {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        try (Arena arena = Arena.ofConfined()) {
+            Entry entry = new Entry();
+            entry.lookUp(row(arena, bytes));
+
+            assertThat(entry.occupiedBuckets()).containsExactly(MODEL.bucket(bytes));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "Bonn", "Abcdefghijklmnop", "Las Palmas de Gran Canaria" })
+    void probesTheNextBucketOfTheEntry(String name) throws Exception {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int bucket = MODEL.bucket(bytes);
+        try (Arena arena = Arena.ofConfined()) {
+            Entry entry = new Entry();
+            Object other = entry.lookUp(row(arena, "Other".getBytes(StandardCharsets.UTF_8)));
+            // Another name in the bucket of this one
+            Array.set(entry.results, bucket, other);
+
+            entry.lookUp(row(arena, bytes));
+
+            assertThat(entry.occupiedBuckets()).contains(MODEL.nextBucket(bucket));
+        }
+    }
+
+    // A line of the file, padded for the word-wise reads beyond it
+    private static MemorySegment row(Arena arena, byte[] name) {
+        byte[] line = (new String(name, StandardCharsets.UTF_8) + ";12.3\n").getBytes(StandardCharsets.UTF_8);
+        MemorySegment row = arena.allocate(line.length + 32, 8);
+        MemorySegment.copy(line, 0, row, ValueLayout.JAVA_BYTE, 0, line.length);
+        return row;
+    }
+
+    /**
+     * The table of the entry and its private lookup.
+     */
+    private static final class Entry {
+        private static final Class<?> RESULT;
+        private static final Constructor<?> SCANNER;
+        private static final Method FIND_DELIMITER;
+        private static final Method FIND_RESULT;
+
+        static {
+            try {
+                Class<?> entry = CalculateAverage_thomaswue.class;
+                RESULT = Class.forName(entry.getName() + "$Result");
+                Class<?> scanner = Class.forName(entry.getName() + "$Scanner");
+                SCANNER = scanner.getDeclaredConstructor(long.class, long.class);
+                SCANNER.setAccessible(true);
+                FIND_DELIMITER = entry.getDeclaredMethod("findDelimiter", long.class);
+                FIND_DELIMITER.setAccessible(true);
+                FIND_RESULT = entry.getDeclaredMethod("findResult", long.class, long.class, long.class, long.class, scanner, RESULT.arrayType(),
+                        List.class);
+                FIND_RESULT.setAccessible(true);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final Object results = Array.newInstance(RESULT, MODEL.tableSize());
+        private final List<Object> collectedResults = new ArrayList<>();
+
+        // What the parse loop of the entry does for each line
+        Object lookUp(MemorySegment row) throws ReflectiveOperationException {
+            long word = row.get(ValueLayout.JAVA_LONG_UNALIGNED, 0);
+            long wordB = row.get(ValueLayout.JAVA_LONG_UNALIGNED, 8);
+            Object scanner = SCANNER.newInstance(row.address(), row.address() + row.byteSize());
+            try {
+                return FIND_RESULT.invoke(null, word, FIND_DELIMITER.invoke(null, word), wordB, FIND_DELIMITER.invoke(null, wordB), scanner, results,
+                        collectedResults);
+            }
+            catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        List<Integer> occupiedBuckets() {
+            List<Integer> buckets = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(results); i++) {
+                if (Array.get(results, i) != null) {
+                    buckets.add(i);
+                }
+            }
+            return buckets;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+set -eo pipefail
+
+if [ -z "$1" ] || [ "$1" = "-h" ]; then
+  echo "Usage: sweep.sh <fork name>"
+  echo
+  echo "Runs calculate_average_<fork name>.sh for every combination of thread count, file size and number of"
+  echo "keys, and prints speedup and parallel efficiency per file. Set in the environment:"
+  echo "  THREADS     thread counts, default powers of two up to the number of CPUs"
+  echo "  SIZES       rows per file, default '10000000 100000000 1000000000'"
+  echo "  KEYS        stations per file, 413 (the original stations) or any other number, default '413 10000'"
+  echo "  RUNS        timed runs per combination after one checked warmup run, default 3"
+  echo "  THREAD_ARG  argument telling the entry its thread count, e.g. 'nThreads=%d' for vemana; the CPUs"
+  echo "              are restricted with taskset either way"
+  echo
+  echo "Files are generated into sweep/ once and kept. Results go to sweep-<fork name>-<timestamp>.csv."
+  exit 1
+fi
+
+FORK=$1
+BOLD_WHITE='\033[1;37m'
+BOLD_RED='\033[1;31m'
+RESET='\033[0m'
+
+CPUS=$(nproc)
+if [ -z "$THREADS" ]; then
+  THREADS=""
+  for ((t = 1; t < CPUS; t *= 2)); do
+    THREADS="$THREADS $t"
+  done
+  THREADS="$THREADS $CPUS"
+fi
+: "${SIZES:=10000000 100000000 1000000000}"
+: "${KEYS:=413 10000}"
+: "${RUNS:=3}"
+
+function check_command_installed {
+  if ! [ -x "$(command -v $1)" ]; then
+    echo "Error: $1 is not installed." >&2
+    exit 1
+  fi
+}
+
+function print_and_execute() {
+  echo "+ $@" >&2
+  "$@"
+}
+
+check_command_installed java
+check_command_installed taskset
+check_command_installed awk
+
+if [ ! -f "./calculate_average_$FORK.sh" ]; then
+  echo -e "${BOLD_RED}ERROR${RESET}: ./calculate_average_$FORK.sh does not exist." >&2
+  exit 1
+fi
+# measurements.txt is linked to each file in turn, like evaluate.sh does
+if [ -f measurements.txt ] && [ ! -L measurements.txt ]; then
+  echo -e "${BOLD_RED}ERROR${RESET}: measurements.txt is a regular file, move it away first." >&2
+  exit 1
+fi
+for t in $THREADS; do
+  if [ $t -gt $CPUS ]; then
+    echo -e "${BOLD_RED}ERROR${RESET}: $t threads requested but only $CPUS CPUs available." >&2
+    exit 1
+  fi
+done
+
+if [ ! -f target/average-1.0.0-SNAPSHOT.jar ]; then
+  print_and_execute ./mvnw --quiet clean verify
+fi
+if [ -f "./prepare_$FORK.sh" ]; then
+  print_and_execute source "./prepare_$FORK.sh"
+fi
+
+# Generates sweep/measurements_<rows>_<keys>.txt and its .out unless they exist
+function generate {
+  local rows=$1 keys=$2
+  local file=sweep/measurements_${rows}_${keys}.txt
+  if [ -f $file ] && [ -f ${file%.txt}.out ]; then
+    return
+  fi
+  mkdir -p sweep/tmp
+  # CreateMeasurements3 reads the stations from data/
+  ln -sfn ../../data sweep/tmp/data
+  if [ $keys = 413 ]; then
+    (cd sweep/tmp && print_and_execute java --class-path ../../target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CreateMeasurements $rows --seed=$rows)
+    mv sweep/tmp/measurements.txt $file
+    mv sweep/tmp/measurements.out ${file%.txt}.out
+  else
+    (cd sweep/tmp && print_and_execute java --class-path ../../target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CreateMeasurements3 $rows --keys=$keys --seed=$rows)
+    mv sweep/tmp/measurements3.txt $file
+    mv sweep/tmp/measurements3.out ${file%.txt}.out
+  fi
+  rm -rf sweep/tmp
+}
+
+# Wall time of one run in seconds, the result of the run goes to the file given
+function timed_run {
+  local threads=$1 output=$2
+  local args=()
+  if [ -n "$THREAD_ARG" ]; then
+    args+=("$(printf "$THREAD_ARG" $threads)")
+  fi
+  local start=$(date +%s%N)
+  taskset -c 0-$((threads - 1)) ./calculate_average_$FORK.sh "${args[@]}" > $output 2>/dev/null
+  local end=$(date +%s%N)
+  awk -v start=$start -v end=$end 'BEGIN { printf "%.3f", (end - start) / 1e9 }'
+}
+
+trap 'rm -rf measurements.txt sweep/tmp' EXIT
+
+timestamp=$(date +"%Y%m%d%H%M%S")
+csv=sweep-$FORK-$timestamp.csv
+echo "fork,rows,keys,threads,median_s,min_s,max_s,speedup,efficiency,serial_fraction,output_matches" > $csv
+
+for rows in $SIZES; do
+  for keys in $KEYS; do
+    generate $rows $keys
+    file=sweep/measurements_${rows}_${keys}.txt
+    rm -f measurements.txt
+    ln -s $file measurements.txt
+
+    results=$(mktemp)
+    for threads in $THREADS; do
+      # The first run warms the page cache and checks the result
+      timed_run $threads $results.result > /dev/null
+      matches=yes
+      if ! diff -q <(./tocsv.sh < $results.result) <(./tocsv.sh < ${file%.txt}.out) > /dev/null; then
+        matches=no
+        echo -e "${BOLD_RED}FAILURE${RESET}: $FORK with $threads threads on $file did not match ${file%.txt}.out" >&2
+      fi
+      times=""
+      for ((run = 0; run < RUNS; run++)); do
+        times="$times $(timed_run $threads $results.result)"
+      done
+      echo "$threads $matches $times" >> $results
+      echo "  $rows rows, $keys keys, $threads threads:$times" >&2
+    done
+
+    # Speedup is relative to the first thread count, scaled by it if that is not 1. The serial fraction is the
+    # Karp-Flatt metric, (1/speedup - 1/threads) / (1 - 1/threads): flat means Amdahl, growing means overhead.
+    echo ""
+    echo -e "${BOLD_WHITE}$FORK${RESET}, $rows rows, $keys keys"
+    echo ""
+    echo "| Threads | Median (s) | Min (s) | Max (s) | Speedup | Efficiency | Serial fraction |"
+    echo "|---------|------------|---------|---------|---------|------------|-----------------|"
+    awk -v fork=$FORK -v rows=$rows -v keys=$keys -v csv=$csv '
+      {
+        threads = $1; matches = $2; n = NF - 2
+        for (i = 1; i <= n; i++) t[i] = $(i + 2)
+        for (i = 1; i <= n; i++) for (j = i + 1; j <= n; j++) if (t[j] < t[i]) { x = t[i]; t[i] = t[j]; t[j] = x }
+        median = n % 2 ? t[(n + 1) / 2] : (t[n / 2] + t[n / 2 + 1]) / 2
+        if (NR == 1) { base = median * threads }
+        speedup = base / median
+        efficiency = speedup / threads
+        serial = threads > 1 ? sprintf("%.3f", (1 / speedup - 1 / threads) / (1 - 1 / threads)) : "-"
+        note = matches == "yes" ? "" : " output did not match"
+        printf "| %7d | %10.3f | %7.3f | %7.3f | %7.2f | %9.0f%% | %15s |%s\n", threads, median, t[1], t[n], speedup, efficiency * 100, serial, note
+        printf "%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%s,%s\n", fork, rows, keys, threads, median, t[1], t[n], speedup, efficiency, serial == "-" ? "" : serial, matches >> csv
+      }' $results
+    rm -f $results $results.result
+  done
+done
+
+echo ""
+echo "Results saved to $csv"